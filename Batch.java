@@ -0,0 +1,183 @@
+package tex61;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/** A batch of documents to be formatted concurrently in one JVM, each
+ *  with its own Controller, InputParser and PageAssembler.  An error in
+ *  one document is reported in the batch's summary and does not affect
+ *  the others.
+ *  @author Austin Gandy
+ */
+class Batch {
+
+    /** A new, empty batch formatted according to OPTIONS, with output
+     *  going by default to the directory OUTDIR, or next to each input
+     *  file if OUTDIR is null. */
+    Batch(Options options, String outDir) {
+        _options = options;
+        _outDir = outDir;
+        _jobs = new ArrayList<Job>();
+    }
+
+    /** Add the documents in SOURCE: all the files in it if it is a
+     *  directory, and otherwise the files listed in it, one "INFILE
+     *  [OUTFILE]" per line.  Blank lines and lines starting with # are
+     *  ignored. */
+    void add(String source) throws IOException {
+        File dir = new File(source);
+        if (dir.isDirectory()) {
+            String[] names = dir.list();
+            Arrays.sort(names);
+            for (String name : names) {
+                File file = new File(dir, name);
+                if (file.isFile() && !name.endsWith(OUT_SUFFIX)) {
+                    add(file.getPath(), null);
+                }
+            }
+            return;
+        }
+        for (String line : Files.readAllLines(dir.toPath(),
+                                              StandardCharsets.UTF_8)) {
+            line = line.trim();
+            if (line.isEmpty() || line.startsWith("#")) {
+                continue;
+            }
+            String[] fields = line.split("\\s+");
+            if (fields.length > 2) {
+                throw new IOException(String.format("%s: bad manifest line: "
+                                                    + "%s", source, line));
+            }
+            add(fields[0], fields.length == 2 ? fields[1] : null);
+        }
+    }
+
+    /** Add the document INFILE, to be formatted onto OUTFILE, or onto the
+     *  default output file for INFILE if OUTFILE is null. */
+    void add(String infile, String outfile) {
+        if (outfile == null) {
+            if (_outDir == null) {
+                outfile = infile + OUT_SUFFIX;
+            } else {
+                outfile = new File(_outDir, new File(infile).getName())
+                    .getPath();
+            }
+        }
+        _jobs.add(new Job(infile, outfile));
+    }
+
+    /** Format all documents, as many at a time as the --threads option
+     *  says (by default, one per processor), and print a summary with the
+     *  outcome and time taken for each on REPORT.  Returns the number of
+     *  documents that could not be formatted. */
+    int run(PrintStream report) {
+        int threads = _options.threads();
+        if (threads == 0) {
+            threads = Runtime.getRuntime().availableProcessors();
+        }
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        long start = System.nanoTime();
+        List<Future<Job>> results = new ArrayList<Future<Job>>();
+        for (Job job : _jobs) {
+            results.add(pool.submit(job::run, job));
+        }
+        int failures = 0;
+        double busy = 0;
+        for (Future<Job> result : results) {
+            Job job;
+            try {
+                job = result.get();
+            } catch (InterruptedException | ExecutionException e) {
+                throw new IllegalStateException(e);
+            }
+            busy += job._millis;
+            if (job._error == null) {
+                report.printf("ok    %10.1f ms  %s -> %s%n", job._millis,
+                              job._infile, job._outfile);
+            } else {
+                failures += 1;
+                report.printf("FAIL  %10.1f ms  %s: %s%n", job._millis,
+                              job._infile, job._error);
+            }
+        }
+        pool.shutdown();
+        report.printf("%d documents, %d failed, %.1f ms formatting, "
+                      + "%.1f ms elapsed on %d threads%n",
+                      _jobs.size(), failures, busy,
+                      (System.nanoTime() - start) / 1e6, threads);
+        return failures;
+    }
+
+    /** One document of a batch, and the result of formatting it. */
+    private class Job {
+
+        /** A job that formats INFILE onto OUTFILE. */
+        Job(String infile, String outfile) {
+            _infile = infile;
+            _outfile = outfile;
+        }
+
+        /** Format my document, recording the time taken and any error. */
+        void run() {
+            long start = System.nanoTime();
+            Diagnostics diagnostics = new Diagnostics(_options.maxErrors());
+            try {
+                Main.format(_infile, _outfile, _options, null, diagnostics);
+            } catch (IOException e) {
+                _error = e.getMessage();
+            } catch (FormatException e) {
+                _error = e.getMessage() == null ? "error" : e.getMessage();
+            } catch (RuntimeException e) {
+                _error = "internal error: " + e;
+            }
+            if (_error == null || diagnostics.errors() > 0) {
+                _error = summary(diagnostics);
+            }
+            _millis = (System.nanoTime() - start) / 1e6;
+        }
+
+        /** Return a description of the first error in DIAGNOSTICS and
+         *  of how many others there were, or null if there were none. */
+        private String summary(Diagnostics diagnostics) {
+            int errors = diagnostics.errors();
+            for (Diagnostics.Diagnostic d : diagnostics.diagnostics()) {
+                if (d.severity() == Diagnostics.ERROR) {
+                    return errors == 1 ? d.toString()
+                        : String.format("%s (and %d more errors)", d,
+                                        errors - 1);
+                }
+            }
+            return null;
+        }
+
+        /** Input file name. */
+        private final String _infile;
+        /** Output file name. */
+        private final String _outfile;
+        /** Error message, or null if formatting succeeded. */
+        private String _error;
+        /** Time taken to format, in milliseconds. */
+        private double _millis;
+    }
+
+    /** Suffix of default output file names. */
+    private static final String OUT_SUFFIX = ".out";
+
+    /** Options for formatting all documents. */
+    private final Options _options;
+    /** Default output directory, or null. */
+    private final String _outDir;
+    /** The documents to format. */
+    private final ArrayList<Job> _jobs;
+
+}
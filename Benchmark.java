@@ -0,0 +1,326 @@
+package tex61;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringReader;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/** Micro- and end-to-end benchmarks of the formatter, run on documents
+ *  from Corpus.  Each benchmark is run for a number of warm-up
+ *  iterations, and then timed over a number of measured iterations, for
+ *  every combination of document size, word-length distribution and
+ *  formatting mode requested.
+ *  Usage: java tex61.Benchmark [--warmup N] [--iterations N]
+ *  [--words N,...] [--dist NAME,...] [--mode NAME,...] [--seed N]
+ *  [--endnotes FRACTION] [BENCHMARK ...]
+ *  FRACTION is the fraction of words followed by an endnote (default 0);
+ *  a value like 0.2 gives an endnote-dense document.
+ *  @author Austin Gandy
+ */
+public class Benchmark {
+
+    /** Names of the available benchmarks. */
+    static final String[] BENCHMARKS = {
+        /* Lexer alone: the tokenizing done by InputParser.process(). */
+        "tokenize",
+        /* InputParser.process() through Controller to a discarding
+         * PagePrinter, with the Lexer and with regular expressions. */
+        "parse", "parse-regex",
+        /* LineAssembler filling, justifying and nofill output of
+         * pre-split words. */
+        "fill",
+        /* PageAssembler paging of pre-formatted lines. */
+        "page",
+        /* Main.format, from file to file. */
+        "format"
+    };
+
+    /** Run the benchmarks described by ARGS, printing results on the
+     *  standard output. */
+    public static void main(String[] args) throws IOException {
+        int warmup = 5, iterations = 10;
+        long seed = 61;
+        double endnotes = 0;
+        List<String> sizes = Arrays.asList("10000", "100000");
+        List<String> dists = Arrays.asList(Corpus.DISTRIBUTIONS);
+        List<String> modes = Arrays.asList(Corpus.MODES);
+        List<String> names = new ArrayList<String>();
+        for (int k = 0; k < args.length; k += 1) {
+            switch (args[k]) {
+            case "--warmup":
+                warmup = Integer.parseInt(args[++k]);
+                break;
+            case "--iterations":
+                iterations = Integer.parseInt(args[++k]);
+                break;
+            case "--words":
+                sizes = Arrays.asList(args[++k].split(","));
+                break;
+            case "--dist":
+                dists = Arrays.asList(args[++k].split(","));
+                break;
+            case "--mode":
+                modes = Arrays.asList(args[++k].split(","));
+                break;
+            case "--seed":
+                seed = Long.parseLong(args[++k]);
+                break;
+            case "--endnotes":
+                endnotes = Double.parseDouble(args[++k]);
+                break;
+            default:
+                if (!Arrays.asList(BENCHMARKS).contains(args[k])) {
+                    System.err.printf("unknown benchmark: %s%n", args[k]);
+                    System.exit(1);
+                }
+                names.add(args[k]);
+            }
+        }
+        if (names.isEmpty()) {
+            names = Arrays.asList(BENCHMARKS);
+        }
+
+        System.out.printf("%-12s %8s %-6s %-8s %10s %10s %9s %12s%n",
+                          "benchmark", "words", "dist", "mode", "mean ms",
+                          "min ms", "Mchar/s", "KB alloc/op");
+        for (String size : sizes) {
+            for (String dist : dists) {
+                for (String mode : modes) {
+                    Corpus corpus = new Corpus(seed, dist, mode);
+                    corpus.setEndnoteFraction(endnotes);
+                    Benchmark bench =
+                        new Benchmark(corpus, Integer.parseInt(size), mode);
+                    for (String name : names) {
+                        bench.measure(name, warmup, iterations,
+                                      String.format("%8s %-6s %-8s", size,
+                                                    dist, mode));
+                    }
+                    bench.cleanup();
+                }
+            }
+        }
+    }
+
+    /** A set of benchmarks on a document of WORDS words generated by
+     *  CORPUS in the formatting mode named MODE. */
+    Benchmark(Corpus corpus, int words, String mode) {
+        _text = corpus.generate(words);
+        _mode = mode;
+    }
+
+    /** Run the benchmark NAME WARMUP times, and then ITERATIONS times
+     *  while measuring it, and print a line of results labeled with
+     *  NAME and PARAMS. */
+    void measure(String name, int warmup, int iterations, String params)
+        throws IOException {
+        for (int i = 0; i < warmup; i += 1) {
+            _sink += run(name);
+        }
+        double total = 0, min = Double.MAX_VALUE;
+        long allocated = 0;
+        for (int i = 0; i < iterations; i += 1) {
+            long bytes = allocatedBytes();
+            long start = System.nanoTime();
+            _sink += run(name);
+            double millis = (System.nanoTime() - start) / 1e6;
+            allocated += allocatedBytes() - bytes;
+            total += millis;
+            min = Math.min(min, millis);
+        }
+        double mean = total / iterations;
+        System.out.printf("%-12s %s %10.3f %10.3f %9.2f %12.1f%n", name,
+                          params, mean, min, _text.length() / mean / 1e3,
+                          allocated / 1024.0 / iterations);
+    }
+
+    /** Run the benchmark NAME once, returning a value that depends on
+     *  the work done. */
+    long run(String name) throws IOException {
+        switch (name) {
+        case "tokenize":
+            return tokenize();
+        case "parse":
+            return parse(false);
+        case "parse-regex":
+            return parse(true);
+        case "fill":
+            return fill();
+        case "page":
+            return page();
+        case "format":
+            return format();
+        default:
+            throw new IllegalArgumentException(name);
+        }
+    }
+
+    /** Delete any temporary files. */
+    void cleanup() {
+        if (_input != null) {
+            _input.delete();
+            _output.delete();
+        }
+    }
+
+    /** Break _text into tokens.  Returns the number of tokens. */
+    private long tokenize() {
+        Lexer lexer = new Lexer(new StringReader(_text));
+        long count = 0;
+        int kind;
+        while ((kind = lexer.next()) != Lexer.EOF_TOKEN) {
+            if (kind == Lexer.COMMAND_ARG_TOKEN) {
+                lexer.readArgument();
+            }
+            count += 1;
+        }
+        return count;
+    }
+
+    /** Format _text in memory, using regular expressions to tokenize iff
+     *  REGEX.  Returns the number of characters of input. */
+    private long parse(boolean regex) {
+        InputParser.setRegexLexer(regex);
+        Controller controller = new Controller(discard());
+        try {
+            new InputParser(new StringReader(_text), controller).process();
+        } finally {
+            InputParser.setRegexLexer(false);
+            controller.release();
+        }
+        return _text.length();
+    }
+
+    /** Fill the words of _text.  Returns the number of words. */
+    private long fill() {
+        if (_words == null) {
+            splitWords();
+        }
+        LineAssembler assembler = new LineAssembler(discard(), false);
+        if (_mode.equals("fill")) {
+            assembler.setJustify(false);
+        } else if (_mode.equals("nofill")) {
+            assembler.setFill(false);
+            assembler.setJustify(false);
+        }
+        for (String word : _words) {
+            if (word == NEWLINE) {
+                assembler.newLine();
+            } else if (word == PARAGRAPH) {
+                assembler.endParagraph();
+            } else {
+                assembler.addText(word);
+                assembler.finishWord();
+            }
+        }
+        assembler.endParagraph();
+        return _words.size();
+    }
+
+    /** Form the lines of formatted _text into pages.  Returns the number
+     *  of lines. */
+    private long page() {
+        if (_lines == null) {
+            _lines = new LineBuffer();
+            Controller controller = new Controller(_lines);
+            try {
+                new InputParser(new StringReader(_text),
+                                controller).process();
+            } finally {
+                controller.release();
+            }
+        }
+        PageAssembler pages = discard();
+        pages.setTextHeight(PAGE_HEIGHT);
+        _lines.replay(pages);
+        pages.flush();
+        return _lines.size();
+    }
+
+    /** Format _text from one temporary file to another with Main.format.
+     *  Returns the length of the output. */
+    private long format() throws IOException {
+        if (_input == null) {
+            _input = File.createTempFile("tex61", ".txt");
+            _output = File.createTempFile("tex61", ".out");
+            Files.write(_input.toPath(),
+                        _text.getBytes(StandardCharsets.UTF_8));
+        }
+        Main.format(_input.getPath(), _output.getPath(),
+                    new Options(new String[0]), null, Diagnostics.failFast());
+        return _output.length();
+    }
+
+    /** Set _words to the words of _text, with NEWLINE and PARAGRAPH
+     *  marking the ends of input lines and paragraphs. */
+    private void splitWords() {
+        _words = new ArrayList<String>();
+        Lexer lexer = new Lexer(_text);
+        int kind;
+        while ((kind = lexer.next()) != Lexer.EOF_TOKEN) {
+            switch (kind) {
+            case Lexer.TEXT_TOKEN:
+                _words.add(lexer.text());
+                break;
+            case Lexer.EOL_TOKEN:
+                _words.add(NEWLINE);
+                break;
+            case Lexer.EOP_TOKEN:
+                _words.add(PARAGRAPH);
+                break;
+            case Lexer.COMMAND_ARG_TOKEN:
+                lexer.readArgument();
+                break;
+            default:
+                break;
+            }
+        }
+    }
+
+    /** Return a PagePrinter that discards its output. */
+    private static PageAssembler discard() {
+        return new PagePrinter(new PrintWriter(Writer.nullWriter()),
+                               PagePrinter.BUFFER_SIZE);
+    }
+
+    /** Return the number of bytes allocated so far by this thread, or 0
+     *  if the JVM cannot tell. */
+    private static long allocatedBytes() {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        if (threads instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean) threads)
+                .getCurrentThreadAllocatedBytes();
+        }
+        return 0;
+    }
+
+    /** Marks the end of an input line in _words. */
+    private static final String NEWLINE = new String("\n");
+    /** Marks the end of a paragraph in _words. */
+    private static final String PARAGRAPH = new String("\n\n");
+    /** Page height used by the "page" benchmark. */
+    private static final int PAGE_HEIGHT = 60;
+
+    /** Accumulates benchmark results, so that no work is optimized
+     *  away. */
+    private static volatile long _sink;
+
+    /** The document. */
+    private final String _text;
+    /** Name of the formatting mode of _text. */
+    private final String _mode;
+    /** Words of _text, or null if not yet computed. */
+    private ArrayList<String> _words;
+    /** Formatted lines of _text, or null if not yet computed. */
+    private LineBuffer _lines;
+    /** Temporary files for the "format" benchmark, or null. */
+    private File _input, _output;
+
+}
@@ -0,0 +1,203 @@
+package tex61;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+
+/** A Reader that decodes bytes from a channel directly into the caller's
+ *  character array.  Regular files are memory-mapped a window at a time,
+ *  and other sources (standard input, pipes) are read through a single
+ *  direct buffer, so that the amount of heap used does not depend on the
+ *  size of the input.
+ *  @author Austin Gandy
+ */
+class ChannelReader extends Reader {
+
+    /** Size of the windows in which regular files are mapped. */
+    static final int MAP_SIZE = 1 << 26;
+    /** Size of the buffer used for channels that cannot be mapped. */
+    static final int BUFFER_SIZE = 1 << 16;
+
+    /** A new ChannelReader that decodes FILE according to CHARSET,
+     *  mapping it into memory. */
+    ChannelReader(FileChannel file, Charset charset) throws IOException {
+        this(file, charset, MAP_SIZE);
+    }
+
+    /** A new ChannelReader that decodes FILE according to CHARSET,
+     *  mapping it into memory in windows of MAPSIZE bytes. */
+    ChannelReader(FileChannel file, Charset charset, int mapSize)
+        throws IOException {
+        _channel = file;
+        _file = file;
+        _size = file.size();
+        _mapSize = mapSize;
+        _decoder = decoder(charset);
+        map(0);
+    }
+
+    /** A new ChannelReader that decodes the bytes read from CHANNEL
+     *  according to CHARSET. */
+    ChannelReader(ReadableByteChannel channel, Charset charset) {
+        _channel = channel;
+        _file = null;
+        _mapSize = 0;
+        _decoder = decoder(charset);
+        _bytes = ByteBuffer.allocateDirect(BUFFER_SIZE);
+        _bytes.flip();
+    }
+
+    /** Return a ChannelReader for the file named NAME, decoded according
+     *  to CHARSET.  A NAME of "-" denotes the standard input.  Regular
+     *  files are mapped; anything else is read sequentially. */
+    static ChannelReader open(String name, Charset charset)
+        throws IOException {
+        if (name.equals("-")) {
+            return new ChannelReader(Channels.newChannel(System.in), charset);
+        }
+        FileChannel channel = new FileInputStream(name).getChannel();
+        try {
+            if (Files.isRegularFile(Paths.get(name))) {
+                return new ChannelReader(channel, charset);
+            }
+            return new ChannelReader((ReadableByteChannel) channel, charset);
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    @Override
+    public int read(char[] cbuf, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        if (_spill.hasRemaining()) {
+            cbuf[off] = _spill.get();
+            return 1;
+        }
+        CharBuffer out = CharBuffer.wrap(cbuf, off, len);
+        while (true) {
+            CoderResult result;
+            if (_flushed) {
+                return -1;
+            } else if (_endOfInput && !_bytes.hasRemaining()) {
+                result = _decoder.decode(_bytes, out, true);
+                if (result.isUnderflow()) {
+                    result = _decoder.flush(out);
+                    _flushed = result.isUnderflow();
+                }
+            } else {
+                result = _decoder.decode(_bytes, out, _endOfInput);
+            }
+            int count = out.position() - off;
+            if (count > 0) {
+                return count;
+            } else if (result.isOverflow()) {
+                return readSpilled(cbuf, off);
+            } else if (!_endOfInput && result.isUnderflow()) {
+                fill();
+            }
+        }
+    }
+
+    /** Continue decoding from byte OFFSET of my file, discarding any
+     *  input already decoded but not yet read.  OFFSET must be the start
+     *  of a character.  Only possible for a ChannelReader of a regular
+     *  file. */
+    void seek(long offset) throws IOException {
+        if (_file == null) {
+            throw new IOException("input is not a regular file");
+        }
+        _decoder.reset();
+        _spill.clear().flip();
+        _flushed = false;
+        map(Math.min(Math.max(offset, 0), _size));
+    }
+
+    @Override
+    public void close() throws IOException {
+        _channel.close();
+    }
+
+    /** Read a single character into CBUF[OFF] when the next character
+     *  to be decoded needs more room than the caller gave us (as for a
+     *  surrogate pair).  Returns 1. */
+    private int readSpilled(char[] cbuf, int off) {
+        _spill.clear();
+        _decoder.decode(_bytes, _spill, _endOfInput);
+        _spill.flip();
+        cbuf[off] = _spill.get();
+        return 1;
+    }
+
+    /** Make more bytes available in _bytes, setting _endOfInput if there
+     *  are no more. */
+    private void fill() throws IOException {
+        if (_file != null) {
+            long next = _offset + _bytes.position();
+            if (next + _bytes.remaining() >= _size) {
+                _endOfInput = true;
+            } else {
+                map(next);
+            }
+        } else {
+            _bytes.compact();
+            int n = _channel.read(_bytes);
+            _bytes.flip();
+            if (n < 0) {
+                _endOfInput = true;
+            }
+        }
+    }
+
+    /** Map the window of _file starting at byte OFFSET into _bytes. */
+    private void map(long offset) throws IOException {
+        _offset = offset;
+        _bytes = _file.map(FileChannel.MapMode.READ_ONLY, offset,
+                           Math.min(_mapSize, _size - offset));
+        _endOfInput = offset + _bytes.remaining() >= _size;
+    }
+
+    /** Return a decoder for CHARSET that, like InputStreamReader,
+     *  substitutes for malformed or unmappable input. */
+    private static CharsetDecoder decoder(Charset charset) {
+        return charset.newDecoder()
+            .onMalformedInput(CodingErrorAction.REPLACE)
+            .onUnmappableCharacter(CodingErrorAction.REPLACE);
+    }
+
+    /** Source of input bytes. */
+    private final ReadableByteChannel _channel;
+    /** _channel, if it is a mappable file, else null. */
+    private final FileChannel _file;
+    /** Size of the windows in which _file is mapped. */
+    private final int _mapSize;
+    /** Size of _file in bytes. */
+    private long _size;
+    /** Position in _file of the start of _bytes. */
+    private long _offset;
+    /** Bytes not yet decoded. */
+    private ByteBuffer _bytes;
+    /** Decoder for the input charset. */
+    private final CharsetDecoder _decoder;
+    /** True iff _bytes holds the last of the input. */
+    private boolean _endOfInput;
+    /** True iff _decoder has been flushed at the end of input. */
+    private boolean _flushed;
+    /** Characters decoded but not yet returned, when a caller asks for
+     *  fewer characters than the next code point needs. */
+    private final CharBuffer _spill = CharBuffer.allocate(2).flip();
+
+}
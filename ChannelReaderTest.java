@@ -0,0 +1,99 @@
+package tex61;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/** Unit tests of ChannelReader.
+ *  @author Austin Gandy
+ */
+public class ChannelReaderTest {
+
+    /** Text containing one-, two-, three- and four-byte UTF-8 sequences. */
+    private static final String TEXT =
+        "plain caf\u00e9 \u20ac5 \ud83d\ude00!\n";
+
+    /** Return the characters read from READER, asking for at most
+     *  CHUNK characters at a time. */
+    private String readAll(Reader reader, int chunk) throws IOException {
+        StringBuilder result = new StringBuilder();
+        char[] buf = new char[chunk];
+        int n;
+        while ((n = reader.read(buf, 0, chunk)) >= 0) {
+            result.append(buf, 0, n);
+        }
+        reader.close();
+        return result.toString();
+    }
+
+    /** Return TEXT repeated N times. */
+    private String repeat(int n) {
+        StringBuilder result = new StringBuilder();
+        for (int i = 0; i < n; i += 1) {
+            result.append(TEXT);
+        }
+        return result.toString();
+    }
+
+    /** Return a temporary file containing S encoded with CHARSET. */
+    private File tempFile(String s, Charset charset) throws IOException {
+        File file = File.createTempFile("tex61", ".txt");
+        file.deleteOnExit();
+        try (FileOutputStream out = new FileOutputStream(file)) {
+            out.write(s.getBytes(charset));
+        }
+        return file;
+    }
+
+    @Test
+    public void testStream() throws IOException {
+        String text = repeat(10000);
+        byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+        for (int chunk : new int[] { 1, 3, 4096 }) {
+            Reader reader = new ChannelReader(
+                Channels.newChannel(new ByteArrayInputStream(bytes)),
+                StandardCharsets.UTF_8);
+            assertEquals(text, readAll(reader, chunk));
+        }
+    }
+
+    /** Checks decoding across the boundaries of small mapped windows, so
+     *  that multi-byte characters are split between windows. */
+    @Test
+    public void testMapped() throws IOException {
+        String text = repeat(100);
+        File file = tempFile(text, StandardCharsets.UTF_8);
+        for (int mapSize : new int[] { 5, 7, 1 << 20 }) {
+            Reader reader =
+                new ChannelReader(FileChannel.open(file.toPath(),
+                                                   StandardOpenOption.READ),
+                                  StandardCharsets.UTF_8, mapSize);
+            assertEquals(text, readAll(reader, 13));
+        }
+        assertEquals(text, readAll(ChannelReader.open(file.getPath(),
+                                                      StandardCharsets.UTF_8),
+                                   100));
+    }
+
+    @Test
+    public void testCharsetAndEmpty() throws IOException {
+        Charset latin1 = StandardCharsets.ISO_8859_1;
+        File file = tempFile("caf\u00e9", latin1);
+        assertEquals("caf\u00e9", readAll(ChannelReader.open(file.getPath(),
+                                                             latin1), 10));
+        file = tempFile("", latin1);
+        assertEquals("", readAll(ChannelReader.open(file.getPath(), latin1),
+                                 10));
+    }
+
+}
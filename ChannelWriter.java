@@ -0,0 +1,125 @@
+package tex61;
+
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+
+/** A Writer that encodes the characters given to it into a single
+ *  reusable direct buffer, and passes them to a channel when the buffer
+ *  fills, and on flush and close.  A client that writes in large batches,
+ *  such as a buffered PagePrinter, thus gets about one system call per
+ *  batch, and one that writes a line at a time still gets buffering at
+ *  least as good as a BufferedWriter's.
+ *  @author Austin Gandy
+ */
+class ChannelWriter extends Writer {
+
+    /** A new ChannelWriter that encodes characters according to CHARSET
+     *  and writes them to CHANNEL in chunks of at most BUFFERSIZE
+     *  bytes (or MIN_SIZE, if larger). */
+    ChannelWriter(WritableByteChannel channel, Charset charset,
+                  int bufferSize) {
+        _channel = channel;
+        _encoder = charset.newEncoder()
+            .onMalformedInput(CodingErrorAction.REPLACE)
+            .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        _bytes = ByteBuffer.allocateDirect(Math.max(bufferSize, MIN_SIZE));
+    }
+
+    /** Return a ChannelWriter for the file named NAME (the standard
+     *  output if NAME is "-"), encoding according to CHARSET and writing
+     *  in chunks of at most BUFFERSIZE bytes. */
+    static ChannelWriter open(String name, Charset charset, int bufferSize)
+        throws IOException {
+        FileOutputStream out;
+        if (name.equals("-")) {
+            out = new FileOutputStream(FileDescriptor.out);
+        } else {
+            out = new FileOutputStream(name);
+        }
+        return new ChannelWriter(out.getChannel(), charset, bufferSize);
+    }
+
+    @Override
+    public void write(char[] cbuf, int off, int len) throws IOException {
+        CharBuffer in = CharBuffer.wrap(cbuf, off, len);
+        if (_carry.position() > 0 && in.hasRemaining()) {
+            _carry.put(in.get());
+            _carry.flip();
+            encode(_carry, false);
+            _carry.compact();
+        }
+        encode(in, false);
+        if (in.hasRemaining()) {
+            _carry.put(in.get());
+        }
+    }
+
+    @Override
+    public void flush() throws IOException {
+        drain();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (_closed) {
+            return;
+        }
+        _closed = true;
+        _carry.flip();
+        encode(_carry, true);
+        while (_encoder.flush(_bytes).isOverflow()) {
+            drain();
+        }
+        drain();
+        _channel.close();
+    }
+
+    /** Encode the characters in IN into _bytes, draining it to _channel
+     *  whenever it fills.  ENDOFINPUT is as for CharsetEncoder.encode.
+     *  Unless ENDOFINPUT, a final unpaired surrogate is left in IN. */
+    private void encode(CharBuffer in, boolean endOfInput)
+        throws IOException {
+        CoderResult result;
+        do {
+            result = _encoder.encode(in, _bytes, endOfInput);
+            if (result.isOverflow()) {
+                drain();
+            }
+        } while (result.isOverflow());
+    }
+
+    /** Write the contents of _bytes to _channel and clear it. */
+    private void drain() throws IOException {
+        _bytes.flip();
+        Metrics.add(Metrics.BYTES_WRITTEN, _bytes.remaining());
+        while (_bytes.hasRemaining()) {
+            _channel.write(_bytes);
+        }
+        _bytes.clear();
+    }
+
+    /** Smallest buffer size we use: that of a BufferedWriter. */
+    private static final int MIN_SIZE = 1 << 13;
+
+    /** Destination of output bytes. */
+    private final WritableByteChannel _channel;
+    /** Encoder for the output charset. */
+    private final CharsetEncoder _encoder;
+    /** Encoded bytes not yet written to _channel. */
+    private final ByteBuffer _bytes;
+    /** A high surrogate left over from the last write, awaiting its low
+     *  surrogate. */
+    private final CharBuffer _carry = CharBuffer.allocate(2);
+    /** True iff I have been closed. */
+    private boolean _closed;
+
+}
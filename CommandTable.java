@@ -0,0 +1,275 @@
+package tex61;
+
+import static tex61.FormatException.reportError;
+
+/** The table of formatting commands (\indent, \endnote, ...) recognized
+ *  by InputParser.  Commands are looked up directly from the characters
+ *  of their names in the input buffer, in a hash table sized so that no
+ *  two names share a slot, so a lookup normally costs one hash and one
+ *  comparison.  New commands may be added, or standard ones replaced,
+ *  with register, and removed with unregister, which should be done
+ *  before any formatting starts.
+ *  @author Austin Gandy
+ */
+class CommandTable {
+
+    /** A command whose argument, if any, is an integer. */
+    interface NumericCommand {
+        /** Perform the command on OUT, with argument VALUE (0 if the
+         *  argument is missing or empty). */
+        void execute(Controller out, int value);
+    }
+
+    /** A command whose argument, if any, is text. */
+    interface TextCommand {
+        /** Perform the command on OUT, with argument BUF[START .. END-1],
+         *  or with no argument if BUF is null.  The contents of BUF are
+         *  valid only during the call. */
+        void execute(Controller out, char[] buf, int start, int end);
+    }
+
+    /** A registered command. */
+    static final class Command {
+
+        /** A command named NAME that is performed by NUMERIC or, if that
+         *  is null, by TEXT. */
+        private Command(String name, NumericCommand numeric,
+                        TextCommand text) {
+            _name = name;
+            _chars = name.toCharArray();
+            _hash = hash(_chars, 0, _chars.length);
+            _numeric = numeric;
+            _text = text;
+        }
+
+        /** Return my name. */
+        String name() {
+            return _name;
+        }
+
+        /** Perform me on OUT, with argument BUF[START .. END-1], or with
+         *  no argument if BUF is null.  Reports an error if I take a
+         *  numeric argument and it is not an integer. */
+        void execute(Controller out, char[] buf, int start, int end) {
+            if (_text != null) {
+                _text.execute(out, buf, start, end);
+                return;
+            }
+            int value = 0;
+            if (buf != null && end > start) {
+                long parsed = parseInt(buf, start, end);
+                if (parsed == NOT_AN_INT) {
+                    reportError("For input string: \"%s\"",
+                                new String(buf, start, end - start));
+                    return;
+                }
+                value = (int) parsed;
+            }
+            _numeric.execute(out, value);
+        }
+
+        /** Return true iff my name is BUF[START .. END-1], whose hash
+         *  is HASH. */
+        private boolean named(char[] buf, int start, int end, int hash) {
+            if (hash != _hash || end - start != _chars.length) {
+                return false;
+            }
+            for (int i = 0; i < _chars.length; i += 1) {
+                if (buf[start + i] != _chars[i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /** My name. */
+        private final String _name;
+        /** The characters of _name. */
+        private final char[] _chars;
+        /** Hash of _chars. */
+        private final int _hash;
+        /** Performs me if my argument is numeric, else null. */
+        private final NumericCommand _numeric;
+        /** Performs me if my argument is text, else null. */
+        private final TextCommand _text;
+    }
+
+    /** Add COMMAND, which takes a numeric argument, as the command NAME,
+     *  replacing any existing command of that name. */
+    static void register(String name, NumericCommand command) {
+        register(new Command(name, command, null));
+    }
+
+    /** Add COMMAND, which takes a text argument, as the command NAME,
+     *  replacing any existing command of that name. */
+    static void register(String name, TextCommand command) {
+        register(new Command(name, null, command));
+    }
+
+    /** Remove the command NAME, if there is one. */
+    static void unregister(String name) {
+        replace(name, null);
+    }
+
+    /** Return the command whose name is BUF[START .. END-1], or null if
+     *  there is none. */
+    static Command lookup(char[] buf, int start, int end) {
+        Command[] table = _table;
+        int mask = table.length - 1;
+        int hash = hash(buf, start, end);
+        for (int i = hash & mask; table[i] != null; i = (i + 1) & mask) {
+            if (table[i].named(buf, start, end, hash)) {
+                return table[i];
+            }
+        }
+        return null;
+    }
+
+    /** Return the command named NAME, or null if there is none. */
+    static Command lookup(String name) {
+        return lookup(name.toCharArray(), 0, name.length());
+    }
+
+    /** Return the integer in decimal notation in BUF[START .. END-1],
+     *  with an optional sign, or NOT_AN_INT if there is none, as for
+     *  Integer.parseInt. */
+    static long parseInt(char[] buf, int start, int end) {
+        boolean negative = false;
+        int k = start;
+        if (k < end && (buf[k] == '-' || buf[k] == '+')) {
+            negative = buf[k] == '-';
+            k += 1;
+        }
+        if (k == end) {
+            return NOT_AN_INT;
+        }
+        long value = 0;
+        for (; k < end; k += 1) {
+            int digit = Character.digit(buf[k], 10);
+            if (digit < 0) {
+                return NOT_AN_INT;
+            }
+            value = 10 * value + digit;
+            if (value > MAX_MAGNITUDE) {
+                return NOT_AN_INT;
+            }
+        }
+        if (negative) {
+            value = -value;
+        } else if (value > Integer.MAX_VALUE) {
+            return NOT_AN_INT;
+        }
+        return value;
+    }
+
+    /** Value of parseInt when the text is not an int. */
+    static final long NOT_AN_INT = Long.MIN_VALUE;
+
+    /** Largest magnitude of an int. */
+    private static final long MAX_MAGNITUDE = -(long) Integer.MIN_VALUE;
+
+    /** Add COMMAND to the table, replacing any command of the same name. */
+    private static void register(Command command) {
+        replace(command._name, command);
+    }
+
+    /** Replace the command NAME in the table, if any, with COMMAND, or
+     *  just remove it if COMMAND is null. */
+    private static synchronized void replace(String name, Command command) {
+        int n = command == null ? 0 : 1;
+        for (Command old : _table) {
+            if (old != null && !old._name.equals(name)) {
+                n += 1;
+            }
+        }
+        Command[] commands = new Command[n];
+        n = 0;
+        if (command != null) {
+            commands[n] = command;
+            n += 1;
+        }
+        for (Command old : _table) {
+            if (old != null && !old._name.equals(name)) {
+                commands[n] = old;
+                n += 1;
+            }
+        }
+        int size = Integer.highestOneBit(4 * Math.max(n, 1) - 1) << 1;
+        while (size < MAX_TABLE_SIZE && !distinctSlots(commands, size)) {
+            size *= 2;
+        }
+        Command[] table = new Command[size];
+        for (Command c : commands) {
+            int i = c._hash & (size - 1);
+            while (table[i] != null) {
+                i = (i + 1) & (size - 1);
+            }
+            table[i] = c;
+        }
+        _table = table;
+    }
+
+    /** Return true iff COMMANDS all hash to different slots in a table of
+     *  SIZE slots. */
+    private static boolean distinctSlots(Command[] commands, int size) {
+        boolean[] used = new boolean[size];
+        for (Command c : commands) {
+            int i = c._hash & (size - 1);
+            if (used[i]) {
+                return false;
+            }
+            used[i] = true;
+        }
+        return true;
+    }
+
+    /** Return a hash of BUF[START .. END-1]. */
+    static int hash(char[] buf, int start, int end) {
+        int h = 0;
+        for (int k = start; k < end; k += 1) {
+            h = 31 * h + buf[k];
+        }
+        return h ^ (h >>> 16);
+    }
+
+    /** Largest table size used to give each name a slot of its own. */
+    private static final int MAX_TABLE_SIZE = 1 << 16;
+
+    /** The hash table of commands, with open addressing.  Replaced as a
+     *  whole when a command is registered. */
+    private static volatile Command[] _table = new Command[1];
+
+    static {
+        register("indent", Controller::setIndentation);
+        register("parindent", Controller::setParIndentation);
+        register("textwidth", Controller::setTextWidth);
+        register("textheight", Controller::setTextHeight);
+        register("parskip", Controller::setParSkip);
+        register("nofill", (out, value) -> {
+            out.setFill(false);
+            out.setJustify(false);
+        });
+        register("fill", (out, value) -> out.setFill(true));
+        register("justify", (out, value) -> out.setJustify(true));
+        register("nojustify", (out, value) -> out.setJustify(false));
+        register("linebreak", (TextCommand) (out, buf, start, end) -> {
+            String arg = buf == null ? null
+                : new String(buf, start, end - start);
+            if ("optimal".equals(arg)) {
+                out.setOptimalBreaking(true);
+            } else if ("greedy".equals(arg)) {
+                out.setOptimalBreaking(false);
+            } else {
+                reportError("unknown line breaking: %s", arg);
+            }
+        });
+        register("endnote", (TextCommand) (out, buf, start, end) -> {
+            if (buf == null) {
+                out.formatEndnote(new char[0], 0, 0);
+            } else {
+                out.formatEndnote(buf, start, end);
+            }
+        });
+    }
+
+}
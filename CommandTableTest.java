@@ -0,0 +1,71 @@
+package tex61;
+
+import java.io.PrintWriter;
+import java.io.StringReader;
+import java.io.StringWriter;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/** Unit tests of CommandTable.
+ *  @author Austin Gandy
+ */
+public class CommandTableTest {
+
+    /** Return the value of CommandTable.parseInt on TEXT. */
+    private long parse(String text) {
+        return CommandTable.parseInt(text.toCharArray(), 0, text.length());
+    }
+
+    @Test
+    public void testParseInt() {
+        assertEquals(42, parse("42"));
+        assertEquals(-7, parse("-7"));
+        assertEquals(7, parse("+7"));
+        assertEquals(Integer.MAX_VALUE, parse("2147483647"));
+        assertEquals(Integer.MIN_VALUE, parse("-2147483648"));
+        assertEquals(CommandTable.NOT_AN_INT, parse("2147483648"));
+        assertEquals(CommandTable.NOT_AN_INT, parse("99999999999999999999"));
+        assertEquals(CommandTable.NOT_AN_INT, parse("-"));
+        assertEquals(CommandTable.NOT_AN_INT, parse("4x"));
+        assertEquals(CommandTable.NOT_AN_INT, parse(" 4"));
+    }
+
+    @Test
+    public void testLookup() {
+        char[] buf = "x\\textwidth{".toCharArray();
+        CommandTable.Command command = CommandTable.lookup(buf, 2, 11);
+        assertNotNull(command);
+        assertEquals("textwidth", command.name());
+        assertNull(CommandTable.lookup(buf, 2, 10));
+        assertNull(CommandTable.lookup("nosuchcommand"));
+        assertSame(command, CommandTable.lookup("textwidth"));
+    }
+
+    /** Checks that a registered command is used by InputParser, and
+     *  that it can be removed again. */
+    @Test
+    public void testRegister() {
+        CommandTable.register("testwords", (out, value) -> {
+            for (int i = 0; i < value; i += 1) {
+                out.addText("word");
+                out.endWord();
+            }
+        });
+        try {
+            StringWriter output = new StringWriter();
+            PrintWriter writer = new PrintWriter(output);
+            Controller controller = new Controller(writer);
+            new InputParser(new StringReader("\\nofill\\testwords{3}\n"),
+                            controller).process();
+            writer.close();
+            assertEquals("   word word word",
+                         output.toString().split("\n")[0]);
+        } finally {
+            CommandTable.unregister("testwords");
+        }
+        assertNull(CommandTable.lookup("testwords"));
+        assertNotNull(CommandTable.lookup("textwidth"));
+    }
+
+}
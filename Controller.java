@@ -3,6 +3,7 @@ package tex61;
 import java.io.PrintWriter;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ExecutorService;
 
 /** Receives (partial) words and commands, performs commands, and
  *  accumulates and formats words into lines of text, which are sent to a
@@ -14,22 +15,68 @@ import java.util.List;
  */
 class Controller {
 
+    /** Number of values stored by saveState. */
+    static final int STATE =
+        1 + 2 * LineAssembler.SETTINGS + PageAssembler.STATE;
+
+    /** Enough characters for "[" + any int + "]". */
+    private static final int REFERENCE_SIZE = 12;
+
     /** A new Controller that sends formatted output to OUT. */
     Controller(PrintWriter out) {
-        _output = out;
-        _mainPage = new PagePrinter(_output);
+        this(new PagePrinter(out));
+    }
+
+    /** A new Controller that sends formatted lines to PAGES. */
+    Controller(PageAssembler pages) {
+        _mainPage = pages;
         _currentAssembler = new LineAssembler(_mainPage, false);
         _endnotePage = new PageCollector(new ArrayList<String>());
         _endnoteSettings = new LineAssembler(_endnotePage, true);
         _refNum = 1;
-        _endNotes = new ArrayList<ArrayList<String>>();
+        _endnotes = new EndnoteStore(EndnoteStore.MEMORY_SIZE);
         _endnoteMode = false;
+        _macros = new MacroTable();
+    }
+
+    /** A new Controller that formats its document once for each of
+     *  PAGES, sending to PAGES[k] lines of the main text filled to a
+     *  width of WIDTHS[k], whatever text width the document sets.
+     *  Endnotes are filled to their own width, as usual.  The input is
+     *  parsed and its words accumulated only once. */
+    Controller(PageAssembler[] pages, int[] widths) {
+        this(pages[0]);
+        _currentAssembler.setOutputs(pages, widths);
+        _outputs = pages.clone();
     }
 
-    /** A new Controller for endnotes that sends lines to ASSEMBLER. */
-    Controller(LineAssembler assembler) {
+    /** A new Controller for endnotes that sends lines to ASSEMBLER and
+     *  uses the macros in MACROS. */
+    Controller(LineAssembler assembler, MacroTable macros) {
         _currentAssembler = assembler;
         _endnoteMode = true;
+        _macros = macros;
+    }
+
+    /** Report errors in my document to DIAGNOSTICS, rather than
+     *  stopping at the first, and report warnings as well.  Must be
+     *  called before any input is processed. */
+    void setDiagnostics(Diagnostics diagnostics) {
+        _diagnostics = diagnostics;
+        _currentAssembler.setDiagnostics(diagnostics);
+        if (_endnoteSettings != null) {
+            _endnoteSettings.setDiagnostics(diagnostics);
+        }
+    }
+
+    /** Return my Diagnostics, or null if errors stop formatting. */
+    Diagnostics diagnostics() {
+        return _diagnostics;
+    }
+
+    /** Return the macros defined in my document. */
+    MacroTable macros() {
+        return _macros;
     }
 
     /** Add TEXT to the end of the word of formatted text currently
@@ -38,6 +85,12 @@ class Controller {
         _currentAssembler.addText(text);
     }
 
+    /** Add the characters BUF[START .. END-1] to the end of the word of
+     *  formatted text currently being accumulated. */
+    void addText(char[] buf, int start, int end) {
+        _currentAssembler.addText(buf, start, end);
+    }
+
     /** Finish any current word of text and, if present, add to the
      *  list of words for the next line.  Has no effect if no unfinished
      *  word is being accumulated. */
@@ -58,32 +111,98 @@ class Controller {
         _currentAssembler.endParagraph();
     }
 
+    /** Store the state of my main document in STATE[K .. K+STATE-1]:
+     *  the number of the next endnote, the settings of the main text and
+     *  of endnotes, and the state of the main PageAssembler.  Meaningful
+     *  only between paragraphs.  Macros are not included. */
+    void saveState(int[] state, int k) {
+        state[k] = _refNum;
+        _currentAssembler.saveSettings(state, k + 1);
+        _endnoteSettings.saveSettings(state,
+                                      k + 1 + LineAssembler.SETTINGS);
+        _mainPage.saveState(state, k + 1 + 2 * LineAssembler.SETTINGS);
+    }
+
+    /** Restore the state stored in STATE[K .. K+STATE-1] by saveState,
+     *  so that the input that followed it is formatted as it was then.
+     *  Endnotes stored before then are not restored. */
+    void restoreState(int[] state, int k) {
+        _refNum = state[k];
+        _currentAssembler.restoreSettings(state, k + 1);
+        _endnoteSettings.restoreSettings(state,
+                                         k + 1 + LineAssembler.SETTINGS);
+        _mainPage.restoreState(state, k + 1 + 2 * LineAssembler.SETTINGS);
+    }
+
+    /** Return the number of the page on which endnotes began to be
+     *  written, or 0 if they have not been or there were none. */
+    int endnotePage() {
+        return _endnotesStart;
+    }
+
     /** Write all accumulated endnotes to _mainText. */
     public void writeEndnotes() {
+        if (_refNum > 1) {
+            _endnotesStart = _mainPage.pageNumber();
+        }
         _currentAssembler.setParIndentation(_endnoteSettings.getParindent());
         _currentAssembler.setIndentation(_endnoteSettings.getIndent());
         _currentAssembler.setParSkip(0);
+        _currentAssembler.useTextWidth();
         _currentAssembler.setTextWidth(_endnoteSettings.getTextWidth());
-        for (int i = 0; i < _endNotes.size(); i += 1) {
-            ArrayList<String> line = _endNotes.get(i);
-            addText("[" + (i + 1) + "] ");
-            for (String word : line) {
-                addText(word);
+        for (int i = 1; _endnotes.nextEndnote(); i += 1) {
+            addReference(i);
+            addText(" ");
+            for (int len = _endnotes.nextWord(); len >= 0;
+                 len = _endnotes.nextWord()) {
+                addText(_endnotes.word(), 0, len);
                 endWord();
             }
             _currentAssembler.endParagraph();
         }
+        _endnotes.close();
     }
 
     /** If valid, process TEXT into an endnote, first appending a reference
      *  to it to the line currently being accumulated. */
     void formatEndnote(String text) {
-        addText("[" + String.valueOf(_refNum) + "]");
-        Controller controller = new Controller(_endnoteSettings);
-        InputParser endParse = new InputParser(text, controller);
-        endParse.process();
-        _endNotes.add(_endnoteSettings.getWordLine());
+        char[] chars = text.toCharArray();
+        formatEndnote(chars, 0, chars.length);
+    }
+
+    /** As for formatEndnote(String), where the text of the endnote is
+     *  BUF[START .. END-1].  The same endnote Controller and InputParser
+     *  are used for every endnote, and parse the text where it lies. */
+    void formatEndnote(char[] buf, int start, int end) {
+        if (_endnoteMode) {
+            throw new FormatException("Endnotes nested too deeply");
+        }
+        addReference(_refNum);
+        if (_endnoteParser == null) {
+            Controller notes = new Controller(_endnoteSettings, _macros);
+            notes._diagnostics = _diagnostics;
+            _endnoteParser = new InputParser(notes);
+        }
+        _endnoteParser.reset(buf, start, end);
+        _endnoteParser.process();
+        _endnoteSettings.storeWords(_endnotes);
         _refNum += 1;
+        Metrics.add(Metrics.ENDNOTES, 1);
+    }
+
+    /** Add the reference "[NUM]" to the current word. */
+    private void addReference(int num) {
+        int len = _reference.length;
+        _reference[len - 1] = ']';
+        int k = len - 1;
+        do {
+            k -= 1;
+            _reference[k] = (char) ('0' + num % 10);
+            num /= 10;
+        } while (num > 0);
+        k -= 1;
+        _reference[k] = '[';
+        addText(_reference, k, len);
     }
 
     /** Set the current text height (number of lines per page) to VAL, if
@@ -129,6 +248,50 @@ class Controller {
         _currentAssembler.setJustify(on);
     }
 
+    /** Iff ON, break filled lines to minimize the raggedness of whole
+     *  paragraphs, rather than filling each line in turn. */
+    void setOptimalBreaking(boolean on) {
+        _currentAssembler.setOptimalBreaking(on);
+    }
+
+    /** Iff ON, fill the paragraphs of the main text a line at a time as
+     *  their words arrive, so that long paragraphs need not be held in
+     *  memory. */
+    void setStreaming(boolean on) {
+        _currentAssembler.setStreaming(on);
+    }
+
+    /** If EXECUTOR is non-null, fill the paragraphs of the main text in
+     *  parallel on EXECUTOR's threads. */
+    void setExecutor(ExecutorService executor) {
+        _currentAssembler.setExecutor(executor);
+    }
+
+    /** Keep at most about BYTES bytes of endnote text in memory, storing
+     *  the rest in a temporary file until the endnotes are written.  Must
+     *  be called before any endnotes are formatted. */
+    void setEndnoteMemory(int bytes) {
+        _endnotes.close();
+        _endnotes = new EndnoteStore(bytes);
+    }
+
+    /** Release the resources held for my document, such as the temporary
+     *  file of its endnotes, whether or not it was finished.  Whoever
+     *  creates a Controller for a document must call this when done with
+     *  it, even if formatting fails.  May be called more than once. */
+    void release() {
+        if (_endnotes != null) {
+            _endnotes.close();
+        }
+    }
+
+    /** If CACHE is non-null, take the filled lines of unchanged
+     *  paragraphs of the main text from CACHE rather than filling them
+     *  again. */
+    void setCache(ParagraphCache cache) {
+        _currentAssembler.setCache(cache);
+    }
+
     /** Finish the current formatted document or endnote (depending on mode).
      *  Formats and outputs all pending text. */
     void close() {
@@ -137,6 +300,14 @@ class Controller {
         endParagraph();
         if (!_endnoteMode) {
             writeEndnotes();
+            _currentAssembler.flush();
+            if (_outputs == null) {
+                _mainPage.flush();
+            } else {
+                for (PageAssembler pages : _outputs) {
+                    pages.flush();
+                }
+            }
         }
     }
 
@@ -157,21 +328,28 @@ class Controller {
 
     /** Number of next endnote. */
     private int _refNum;
-    /** Instance variable for the input out. */
-    private PrintWriter _output;
+    /** Page on which endnotes began to be written, or 0. */
+    private int _endnotesStart;
     /** LineAssembler that lines from the main document go to. */
     private LineAssembler _mainText;
     /** Line assembler that the endnote lines go to. */
     private LineAssembler _endnoteText;
     /** PageAssembler used by _mainText. */
-    private PagePrinter _mainPage;
+    private PageAssembler _mainPage;
+    /** All the PageAssemblers my document is formatted for, or null if
+     *  there is only _mainPage. */
+    private PageAssembler[] _outputs;
     /** PageAssembler used by _endnoteText. */
     private PageCollector _endnotePage;
     /** LineAssembler that the controller should be feeding
      * lines to currently. */
     private LineAssembler _currentAssembler;
-    /** List of endnote lines. */
-    private List<ArrayList<String>> _endNotes;
+    /** Parses the text of endnotes, or null if none has been needed. */
+    private InputParser _endnoteParser;
+    /** Holds the text of endnote references, right-justified. */
+    private final char[] _reference = new char[REFERENCE_SIZE];
+    /** Words of the endnotes, in order. */
+    private EndnoteStore _endnotes;
     /** LineAssembler that stores the settings that endnotes should have. Used
      * to retrieve instance variables of previous LineAssembler used to process
      * an endnote and set the new LineAssembler to start with those same
@@ -179,6 +357,10 @@ class Controller {
     private LineAssembler _endnoteSettings;
     /** True iff an InputParser is parsing an endnote. */
     private boolean _endnoteMode;
+    /** Where errors are reported, or null if they stop formatting. */
+    private Diagnostics _diagnostics;
+    /** Macros defined by \def, shared with the endnote Controller. */
+    private final MacroTable _macros;
     /** List of words in an endnote. */
     private List<String> _endWords;
 }
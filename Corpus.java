@@ -0,0 +1,143 @@
+package tex61;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+/** Generates synthetic formatter input for benchmarks, so that results
+ *  are reproducible without any external corpus.  The same seed and
+ *  parameters always produce the same document.
+ *  @author Austin Gandy
+ */
+class Corpus {
+
+    /** Names of the available word-length distributions: "short" (1-5
+     *  characters), "mixed" (mostly 2-10 characters, like English prose),
+     *  and "long" (mixed, plus occasional words longer than a line). */
+    static final String[] DISTRIBUTIONS = { "short", "mixed", "long" };
+
+    /** Names of the available formatting modes: "justify" (filled and
+     *  justified), "fill" (filled, ragged right), and "nofill". */
+    static final String[] MODES = { "justify", "fill", "nofill" };
+
+    /** A generator of documents using the word-length distribution named
+     *  DISTRIBUTION and formatting mode named MODE, with random choices
+     *  determined by SEED. */
+    Corpus(long seed, String distribution, String mode) {
+        _seed = seed;
+        _distribution = check(distribution, DISTRIBUTIONS);
+        _mode = check(mode, MODES);
+    }
+
+    /** Set the fraction of words followed by an endnote to FRACTION. */
+    void setEndnoteFraction(double fraction) {
+        _endnotes = fraction;
+    }
+
+    /** Return a document of about WORDS words, in paragraphs of 20 to 200
+     *  words and input lines of about 12 words. */
+    String generate(int words) {
+        Random random = new Random(_seed);
+        StringBuilder result = new StringBuilder(words * 7);
+        result.append("\\textheight{60}");
+        if (_mode.equals("fill")) {
+            result.append("\\nojustify");
+        } else if (_mode.equals("nofill")) {
+            result.append("\\nofill");
+        }
+        result.append('\n');
+        while (words > 0) {
+            int n = Math.min(words, 20 + random.nextInt(181));
+            words -= n;
+            for (int i = 0; i < n; i += 1) {
+                appendWord(result, random);
+                if (random.nextDouble() < _endnotes) {
+                    result.append("\\endnote{");
+                    for (int k = 3 + random.nextInt(20); k > 0; k -= 1) {
+                        appendWord(result, random);
+                        result.append(k > 1 ? " " : "");
+                    }
+                    result.append('}');
+                }
+                result.append(i == n - 1 ? "\n\n"
+                              : random.nextInt(12) == 0 ? "\n" : " ");
+            }
+        }
+        return result.toString();
+    }
+
+    /** Append a random word to OUT, using RANDOM. */
+    private void appendWord(StringBuilder out, Random random) {
+        int len;
+        switch (_distribution) {
+        case "short":
+            len = 1 + random.nextInt(5);
+            break;
+        case "long":
+            if (random.nextInt(200) == 0) {
+                len = 60 + random.nextInt(60);
+                break;
+            }
+            len = mixedLength(random);
+            break;
+        default:
+            len = mixedLength(random);
+            break;
+        }
+        for (int i = 0; i < len; i += 1) {
+            out.append((char) ('a' + random.nextInt(26)));
+        }
+        int punctuation = random.nextInt(20);
+        if (punctuation == 0) {
+            out.append('.');
+        } else if (punctuation == 1) {
+            out.append(',');
+        }
+    }
+
+    /** Return a word length from a distribution like that of English
+     *  prose, using RANDOM. */
+    private static int mixedLength(Random random) {
+        return Math.min(1 + (int) Math.round(Math.abs(random.nextGaussian()
+                                                       * 3.5)) + 1, 18);
+    }
+
+    /** Return NAME, after checking that it is one of NAMES. */
+    private static String check(String name, String[] names) {
+        for (String n : names) {
+            if (n.equals(name)) {
+                return name;
+            }
+        }
+        throw new IllegalArgumentException("unknown corpus parameter: "
+                                           + name);
+    }
+
+    /** Write a generated document to a file.  ARGS are WORDS DISTRIBUTION
+     *  MODE SEED OUTFILE. */
+    public static void main(String[] args) throws IOException {
+        if (args.length != 5) {
+            System.err.println("Usage: java tex61.Corpus WORDS DISTRIBUTION "
+                               + "MODE SEED OUTFILE");
+            System.exit(1);
+        }
+        Corpus corpus = new Corpus(Long.parseLong(args[3]), args[1], args[2]);
+        try (Writer out = new OutputStreamWriter(new FileOutputStream(args[4]),
+                                                 StandardCharsets.UTF_8)) {
+            out.write(corpus.generate(Integer.parseInt(args[0])));
+        }
+    }
+
+    /** Seed for random choices. */
+    private final long _seed;
+    /** Name of the word-length distribution. */
+    private final String _distribution;
+    /** Name of the formatting mode. */
+    private final String _mode;
+    /** Fraction of words followed by an endnote. */
+    private double _endnotes;
+
+}
@@ -0,0 +1,180 @@
+package tex61;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/** Collects the errors and warnings found while formatting a document,
+ *  each with the position in the input at which it was found.  Errors
+ *  do not end formatting until a limit is reached: the first error
+ *  (fail-fast), the MAXERRORS-th error, or never (collect-and-continue).
+ *  At that point, report throws a FormatException with the message of
+ *  the last error.  Otherwise, InputParser skips the offending token or
+ *  command and carries on.
+ *  @author Austin Gandy
+ */
+class Diagnostics {
+
+    /** Severities of diagnostics. */
+    static final int
+        /** Something that was probably not intended, but was formatted
+         *  anyway. */
+        WARNING = 0,
+        /** Input that could not be formatted, and was skipped. */
+        ERROR = 1;
+
+    /** Value of maxErrors that places no limit on the number of
+     *  errors. */
+    static final int UNLIMITED = 0;
+
+    /** A Diagnostics that stops formatting at the MAXERRORS-th error, or
+     *  never if MAXERRORS is UNLIMITED. */
+    Diagnostics(int maxErrors) {
+        _maxErrors = maxErrors;
+        _diagnostics = new ArrayList<Diagnostic>();
+    }
+
+    /** Return a Diagnostics that stops formatting at the first error. */
+    static Diagnostics failFast() {
+        return new Diagnostics(1);
+    }
+
+    /** Return a Diagnostics that records all errors without stopping. */
+    static Diagnostics collect() {
+        return new Diagnostics(UNLIMITED);
+    }
+
+    /** Take the positions of diagnostics from SOURCE, the InputParser
+     *  reading the document, until it is replaced by another. */
+    void setSource(InputParser source) {
+        _source = source;
+    }
+
+    /** Report an error whose message is formed from FORMAT and ARGS as
+     *  for String.format. */
+    void error(String format, Object... args) {
+        report(ERROR, String.format(format, args));
+    }
+
+    /** Report a warning whose message is formed from FORMAT and ARGS as
+     *  for String.format. */
+    void warning(String format, Object... args) {
+        report(WARNING, String.format(format, args));
+    }
+
+    /** Record a diagnostic with severity SEVERITY and message MESSAGE,
+     *  at the current position of my source.  Throws a FormatException
+     *  if it is an error and the limit on errors has been reached. */
+    synchronized void report(int severity, String message) {
+        record(severity, message);
+        if (severity == ERROR && _errors == _maxErrors) {
+            _stopped = true;
+            throw new FormatException(message);
+        }
+    }
+
+    /** Return true iff report has thrown an exception to stop
+     *  formatting. */
+    synchronized boolean stopped() {
+        return _stopped;
+    }
+
+    /** Record a diagnostic as for report, but without ever throwing an
+     *  exception.  Used for errors that end formatting regardless. */
+    synchronized void record(int severity, String message) {
+        int line = 0, column = 0;
+        if (_source != null) {
+            line = _source.line();
+            column = _source.column();
+        }
+        _diagnostics.add(new Diagnostic(line, column, severity, message));
+        if (severity == ERROR) {
+            _errors += 1;
+        }
+    }
+
+    /** Return the number of errors reported. */
+    synchronized int errors() {
+        return _errors;
+    }
+
+    /** Return all the diagnostics reported, in order. */
+    synchronized List<Diagnostic> diagnostics() {
+        return new ArrayList<Diagnostic>(_diagnostics);
+    }
+
+    /** Print my diagnostics on OUT, one per line, each preceded by NAME,
+     *  the name of the document. */
+    synchronized void print(PrintStream out, String name) {
+        for (Diagnostic diagnostic : _diagnostics) {
+            out.println(name + (diagnostic.line() == 0 ? ": " : ":")
+                        + diagnostic);
+        }
+    }
+
+    /** One error or warning. */
+    static final class Diagnostic {
+
+        /** A diagnostic of severity SEVERITY with message MESSAGE, found
+         *  at column COLUMN of line LINE (both 0 if not known). */
+        Diagnostic(int line, int column, int severity, String message) {
+            _line = line;
+            _column = column;
+            _severity = severity;
+            _message = message;
+        }
+
+        /** Return the line number (from 1) at which I was found, or 0 if
+         *  that is not known. */
+        int line() {
+            return _line;
+        }
+
+        /** Return the column number (from 1) at which I was found, or 0
+         *  if that is not known. */
+        int column() {
+            return _column;
+        }
+
+        /** Return my severity, ERROR or WARNING. */
+        int severity() {
+            return _severity;
+        }
+
+        /** Return my message. */
+        String message() {
+            return _message;
+        }
+
+        /** Returns "LINE:COLUMN: SEVERITY: MESSAGE", leaving out the
+         *  position if it is not known. */
+        @Override
+        public String toString() {
+            String kind = _severity == ERROR ? "error" : "warning";
+            if (_line == 0) {
+                return String.format("%s: %s", kind, _message);
+            }
+            return String.format("%d:%d: %s: %s", _line, _column, kind,
+                                 _message);
+        }
+
+        /** Position at which I was found. */
+        private final int _line, _column;
+        /** ERROR or WARNING. */
+        private final int _severity;
+        /** Description of the problem. */
+        private final String _message;
+    }
+
+    /** Number of errors at which to stop, or UNLIMITED. */
+    private final int _maxErrors;
+    /** The diagnostics reported so far. */
+    private final ArrayList<Diagnostic> _diagnostics;
+    /** Number of errors in _diagnostics. */
+    private int _errors;
+    /** True iff the limit on errors has been reached. */
+    private boolean _stopped;
+    /** Source of positions, or null. */
+    private InputParser _source;
+
+}
@@ -0,0 +1,101 @@
+package tex61;
+
+import java.io.PrintWriter;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.List;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/** Unit tests of Diagnostics and of error recovery in InputParser.
+ *  @author Austin Gandy
+ */
+public class DiagnosticsTest {
+
+    /** Input with an error or warning on each of several lines. */
+    private static final String INPUT =
+        "one \\bogus two\n\n"
+        + "\\indent{-2}three {x}\n"
+        + "four\\endnote{in \\nope note}\n"
+        + "\\def{a}{b}\\def{a}{c}\\textwidth{x}\n";
+
+    /** The diagnostics expected for INPUT. */
+    private static final String[] EXPECTED = {
+        "1:5: error: unknown command: bogus",
+        "3:1: error: Error: attempted to set negativeindentation",
+        "3:18: error: unexpected character: {",
+        "3:20: error: unexpected character: }",
+        "4:5: error: unknown command: nope",
+        "5:11: warning: macro \\a redefined",
+        "5:21: error: For input string: \"x\"",
+    };
+
+    /** Format INPUT, reporting errors to DIAGNOSTICS, using regular
+     *  expressions iff REGEX, and return the output. */
+    private String format(String input, Diagnostics diagnostics,
+                          boolean regex) {
+        StringWriter output = new StringWriter();
+        PrintWriter writer = new PrintWriter(output);
+        InputParser.setRegexLexer(regex);
+        try {
+            Controller controller = new Controller(writer);
+            controller.setDiagnostics(diagnostics);
+            new InputParser(new StringReader(input), controller).process();
+        } finally {
+            InputParser.setRegexLexer(false);
+        }
+        writer.close();
+        return output.toString();
+    }
+
+    /** Check that DIAGNOSTICS holds exactly the first N of EXPECTED. */
+    private void check(Diagnostics diagnostics, int n) {
+        List<Diagnostics.Diagnostic> all = diagnostics.diagnostics();
+        assertEquals(n, all.size());
+        for (int i = 0; i < n; i += 1) {
+            assertEquals(EXPECTED[i], all.get(i).toString());
+        }
+    }
+
+    /** Checks that all errors are collected, with their positions, and
+     *  that the rest of the document is formatted. */
+    @Test
+    public void testCollect() {
+        for (boolean regex : new boolean[] { false, true }) {
+            Diagnostics diagnostics = Diagnostics.collect();
+            String output = format(INPUT, diagnostics, regex);
+            check(diagnostics, EXPECTED.length);
+            assertEquals(6, diagnostics.errors());
+            assertEquals(format("one two\n\nthree x\nfour\\endnote{in note}\n",
+                                Diagnostics.collect(), false),
+                         output);
+        }
+    }
+
+    @Test
+    public void testFailFast() {
+        Diagnostics diagnostics = Diagnostics.failFast();
+        try {
+            format(INPUT, diagnostics, false);
+            fail("no exception");
+        } catch (FormatException e) {
+            assertEquals("unknown command: bogus", e.getMessage());
+        }
+        check(diagnostics, 1);
+    }
+
+    @Test
+    public void testMaxErrors() {
+        Diagnostics diagnostics = new Diagnostics(4);
+        try {
+            format(INPUT, diagnostics, false);
+            fail("no exception");
+        } catch (FormatException e) {
+            assertEquals("unexpected character: }", e.getMessage());
+        }
+        check(diagnostics, 4);
+        assertTrue(diagnostics.stopped());
+    }
+
+}
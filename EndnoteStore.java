@@ -0,0 +1,229 @@
+package tex61;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/** A sequence of endnotes, each a sequence of words, written once as the
+ *  endnotes are formatted and then read back once, in order, when they
+ *  are output.  The words are held in a compact binary form: for each
+ *  endnote its number of words, and for each word its length followed
+ *  by its characters, all as variable-length integers (one byte for each
+ *  ASCII character).  This is kept in memory up to a threshold, beyond
+ *  which all of it is moved to a temporary file, which is deleted when
+ *  the store is closed.  Its owner must close it even if the endnotes
+ *  are never read.
+ *  @author Austin Gandy
+ */
+class EndnoteStore implements Closeable {
+
+    /** Default amount of endnote data kept in memory, in bytes. */
+    static final int MEMORY_SIZE = 1 << 20;
+
+    /** Size of the buffers used for the temporary file. */
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    /** A new, empty store that moves its data to a temporary file once it
+     *  exceeds MEMORYSIZE bytes. */
+    EndnoteStore(int memorySize) {
+        _memorySize = memorySize;
+        _memory = new Memory();
+        _out = _memory;
+        _word = new char[16];
+    }
+
+    /** Add an endnote whose N words are CHARS[STARTS[i] ..
+     *  STARTS[i]+LENGTHS[i]-1], for 0 <= i < N. */
+    void add(char[] chars, int[] starts, int[] lengths, int n) {
+        try {
+            writeInt(n);
+            for (int i = 0; i < n; i += 1) {
+                writeInt(lengths[i]);
+                for (int k = starts[i], end = k + lengths[i]; k < end;
+                     k += 1) {
+                    writeInt(chars[k]);
+                }
+            }
+            _size += 1;
+            if (_memory != null && _memory.size() > _memorySize) {
+                spill();
+            }
+        } catch (IOException e) {
+            throw error(e);
+        }
+    }
+
+    /** Return the number of endnotes added. */
+    int size() {
+        return _size;
+    }
+
+    /** Return true iff my data has been moved to a temporary file. */
+    boolean spilled() {
+        return _file != null;
+    }
+
+    /** Start reading the next endnote, skipping any unread words of the
+     *  current one, and returning false if there are no more.  The first
+     *  call finishes adding endnotes and starts reading them from the
+     *  beginning. */
+    boolean nextEndnote() {
+        while (nextWord() >= 0) {
+            continue;
+        }
+        try {
+            if (_in == null) {
+                startReading();
+            }
+            if (_read == _size) {
+                return false;
+            }
+            _read += 1;
+            _wordsLeft = readInt();
+            return true;
+        } catch (IOException e) {
+            throw error(e);
+        }
+    }
+
+    /** Read the next word of the current endnote into word(), returning
+     *  its length, or -1 if the endnote has no more words. */
+    int nextWord() {
+        if (_wordsLeft == 0) {
+            return -1;
+        }
+        _wordsLeft -= 1;
+        try {
+            int len = readInt();
+            if (len > _word.length) {
+                _word = new char[Math.max(len, 2 * _word.length)];
+            }
+            for (int k = 0; k < len; k += 1) {
+                _word[k] = (char) readInt();
+            }
+            return len;
+        } catch (IOException e) {
+            throw error(e);
+        }
+    }
+
+    /** Return the buffer holding the characters of the word last read by
+     *  nextWord(), starting at position 0.  The contents are valid only
+     *  until the next call to nextWord(). */
+    char[] word() {
+        return _word;
+    }
+
+    /** Release my resources, deleting any temporary file.  Has no
+     *  further effect if called again. */
+    @Override
+    public void close() {
+        try {
+            if (_in != null) {
+                _in.close();
+            }
+            if (_out != null) {
+                _out.close();
+            }
+        } catch (IOException e) {
+            /* Ignore: the file is being discarded. */
+        }
+        if (_file != null) {
+            _file.delete();
+        }
+        _in = null;
+        _out = null;
+        _memory = null;
+    }
+
+    /** Move all data so far to a temporary file, to which further data
+     *  will be written. */
+    private void spill() throws IOException {
+        _file = File.createTempFile("tex61", ".endnotes");
+        _out = new BufferedOutputStream(new FileOutputStream(_file),
+                                        BUFFER_SIZE);
+        _memory.writeTo(_out);
+        _memory = null;
+    }
+
+    /** Finish writing and start reading from the beginning. */
+    private void startReading() throws IOException {
+        if (_file != null) {
+            _out.close();
+            _in = new BufferedInputStream(new FileInputStream(_file),
+                                          BUFFER_SIZE);
+        } else {
+            _in = _memory.input();
+            _memory = null;
+        }
+        _out = null;
+    }
+
+    /** Write VAL >= 0 as a variable-length integer: seven bits per byte,
+     *  least significant first, with the high bit set on all bytes but
+     *  the last. */
+    private void writeInt(int val) throws IOException {
+        while (val >= 0x80) {
+            _out.write((val & 0x7f) | 0x80);
+            val >>>= 7;
+        }
+        _out.write(val);
+    }
+
+    /** Read an integer written by writeInt. */
+    private int readInt() throws IOException {
+        int result = 0;
+        for (int shift = 0;; shift += 7) {
+            int b = _in.read();
+            if (b < 0) {
+                throw new IOException("endnote data truncated");
+            }
+            result |= (b & 0x7f) << shift;
+            if (b < 0x80) {
+                return result;
+            }
+        }
+    }
+
+    /** An in-memory byte stream whose contents can be read back without
+     *  copying them. */
+    private static class Memory extends ByteArrayOutputStream {
+        /** Return a stream reading my contents. */
+        InputStream input() {
+            return new ByteArrayInputStream(buf, 0, count);
+        }
+    }
+
+    /** Return a FormatException reporting E. */
+    private static FormatException error(IOException e) {
+        return FormatException.fatal("error storing endnotes: %s",
+                                     e.getMessage());
+    }
+
+    /** Amount of data kept in memory before spilling to _file. */
+    private final int _memorySize;
+    /** Data held in memory, or null if spilled or being read. */
+    private Memory _memory;
+    /** Destination of data being added, or null once reading. */
+    private OutputStream _out;
+    /** Source of data being read, or null before reading. */
+    private InputStream _in;
+    /** Temporary file holding the data, or null if not spilled. */
+    private File _file;
+    /** Number of endnotes added. */
+    private int _size;
+    /** Number of endnotes started by nextEndnote. */
+    private int _read;
+    /** Number of words of the current endnote not yet read. */
+    private int _wordsLeft;
+    /** Characters of the last word read. */
+    private char[] _word;
+}
@@ -0,0 +1,126 @@
+package tex61;
+
+import java.io.File;
+import java.io.PrintWriter;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/** Unit tests of EndnoteStore.
+ *  @author Austin Gandy
+ */
+public class EndnoteStoreTest {
+
+    /** Sample endnotes, including an empty one and non-ASCII text. */
+    private static final String[][] ENDNOTES = {
+        { "A", "short", "endnote." },
+        { },
+        { "Caf\u00e9", "\u4e2d\u6587", "x\ud83d\ude00y", "" },
+    };
+
+    /** Add ENDNOTES to STORE COUNT times over. */
+    private void addAll(EndnoteStore store, int count) {
+        for (int n = 0; n < count; n += 1) {
+            for (String[] words : ENDNOTES) {
+                StringBuilder chars = new StringBuilder();
+                int[] starts = new int[words.length];
+                int[] lengths = new int[words.length];
+                for (int i = 0; i < words.length; i += 1) {
+                    starts[i] = chars.length();
+                    lengths[i] = words[i].length();
+                    chars.append(words[i]);
+                }
+                store.add(chars.toString().toCharArray(), starts, lengths,
+                          words.length);
+            }
+        }
+    }
+
+    /** Return the words of the next endnote of STORE, or null if there
+     *  are no more. */
+    private List<String> next(EndnoteStore store) {
+        if (!store.nextEndnote()) {
+            return null;
+        }
+        List<String> words = new ArrayList<String>();
+        for (int len = store.nextWord(); len >= 0; len = store.nextWord()) {
+            words.add(new String(store.word(), 0, len));
+        }
+        return words;
+    }
+
+    /** Check that STORE returns ENDNOTES COUNT times over. */
+    private void checkAll(EndnoteStore store, int count) {
+        for (int n = 0; n < count; n += 1) {
+            for (String[] words : ENDNOTES) {
+                assertEquals(Arrays.asList(words), next(store));
+            }
+        }
+        assertNull(next(store));
+    }
+
+    @Test
+    public void testInMemory() {
+        EndnoteStore store = new EndnoteStore(EndnoteStore.MEMORY_SIZE);
+        addAll(store, 10);
+        assertEquals(30, store.size());
+        assertFalse(store.spilled());
+        checkAll(store, 10);
+        store.close();
+    }
+
+    @Test
+    public void testSpilled() {
+        EndnoteStore store = new EndnoteStore(100);
+        addAll(store, 1000);
+        assertTrue(store.spilled());
+        checkAll(store, 1000);
+        store.close();
+    }
+
+    /** Return the number of temporary files of spilled endnotes. */
+    private int spillFiles() {
+        File[] files = new File(System.getProperty("java.io.tmpdir"))
+            .listFiles((dir, name) -> name.startsWith("tex61")
+                       && name.endsWith(".endnotes"));
+        return files == null ? 0 : files.length;
+    }
+
+    /** Checks that a document that stops before its endnotes are written
+     *  leaves no temporary file behind. */
+    @Test
+    public void testAbandoned() {
+        int before = spillFiles();
+        String input = "Text\\endnote{a note}\\endnote{another}\n\n"
+            + "\\nosuchcommand\n";
+        PrintWriter output = new PrintWriter(new StringWriter());
+        try {
+            Main.format(new StringReader(input), output,
+                        new Options(new String[] {
+                                "--endnote-memory", "0" }),
+                        null, Diagnostics.failFast());
+            fail("missing error");
+        } catch (FormatException e) {
+            assertEquals("unknown command: nosuchcommand", e.getMessage());
+        }
+        assertEquals(before, spillFiles());
+    }
+
+    @Test
+    public void testSkipWords() {
+        EndnoteStore store = new EndnoteStore(0);
+        addAll(store, 1);
+        assertTrue(store.nextEndnote());
+        assertEquals(1, store.nextWord());
+        assertEquals(Arrays.asList(), next(store));
+        assertEquals(4, next(store).size());
+        assertNull(next(store));
+        store.close();
+    }
+
+}
@@ -23,21 +23,44 @@ class FormatException extends RuntimeException {
         return new FormatException(String.format(format, args));
     }
 
-    /** Print error message formed from arguments FORMAT and ARGS, whose
-     *  meaning is as for printf. */
-    static void reportError(String format, Object... args) {
+    /** Returns an exception as for error(FORMAT, ARGS) that reports a
+     *  failure, such as of input or output, after which formatting the
+     *  document cannot continue, even when other errors are being
+     *  collected. */
+    static FormatException fatal(String format, Object... args) {
         FormatException e = error(format, args);
-        System.err.printf(format, args);
-        System.err.println();
-        _totalErrors += 1;
-        System.exit(1);
+        e._fatal = true;
+        return e;
+    }
+
+    /** Returns true iff I was created by fatal. */
+    boolean isFatal() {
+        return _fatal;
+    }
+
+    /** Throw a FormatException with the error message formed from
+     *  arguments FORMAT and ARGS, whose meaning is as for printf.  The
+     *  error is handled by whoever formats the document (a Diagnostics,
+     *  or Main.main, which prints it and exits), so that an error in one
+     *  document does not affect others formatted at the same time. */
+    static void reportError(String format, Object... args) {
+        countError();
+        throw error(format, args);
     }
 
     /** Returns the total number of calls to reportError. */
-    static int getTotalErrors() {
+    static synchronized int getTotalErrors() {
         return _totalErrors;
     }
 
+    /** Count one call to reportError. */
+    private static synchronized void countError() {
+        _totalErrors += 1;
+    }
+
+    /** True iff formatting cannot continue after me. */
+    private boolean _fatal;
+
     /** Cumulative errors encountered.  Assumes that 'error' is called to
      *  report each error. */
     private static int _totalErrors;
@@ -1,5 +1,6 @@
 package tex61;
 
+import java.util.Arrays;
 import java.util.Scanner;
 import java.util.regex.Pattern;
 import java.util.regex.MatchResult;
@@ -65,120 +66,379 @@ class InputParser {
         /** A character that should not be here. */
         ERROR_TOKEN = 8;
 
+    /** Matches the '{' that opens the second argument of \def. */
+    private static final Pattern OPEN_BRACE = Pattern.compile("\\{");
+
     /** A new InputParser taking input from READER and sending tokens to
      *  OUT. */
     InputParser(Reader reader, Controller out) {
-        _input = new Scanner(reader);
+        if (_regexLexer) {
+            _input = new Scanner(reader);
+            _lexer = null;
+        } else {
+            _input = null;
+            _lexer = new Lexer(reader);
+        }
+        _out = out;
+    }
+
+    /** A new InputParser taking tokens from LEXER and sending them to
+     *  OUT. */
+    InputParser(Lexer lexer, Controller out) {
+        _input = null;
+        _lexer = lexer;
         _out = out;
-        _endnoteParser = false;
     }
 
     /** A new InputParser whose input is TEXT and that sends tokens to
      *  OUT. */
     InputParser(String text, Controller out) {
-        _input = new Scanner(text);
+        if (_regexLexer) {
+            _input = new Scanner(text);
+            _lexer = null;
+        } else {
+            _input = null;
+            _lexer = new Lexer(text);
+        }
+        _out = out;
+    }
+
+    /** A new InputParser for endnotes that sends tokens to OUT, and whose
+     *  input is given by reset before each call to process. */
+    InputParser(Controller out) {
+        _input = null;
+        _lexer = _regexLexer ? null : new Lexer(new char[0], 0, 0);
         _out = out;
-        _endnoteParser = true;
+        _endnote = true;
+    }
+
+    /** Make BUF[START .. END-1] my input, without copying it unless I
+     *  tokenize with regular expressions.  I must have been created for
+     *  endnotes. */
+    void reset(char[] buf, int start, int end) {
+        if (_lexer == null) {
+            _input = new Scanner(new String(buf, start, end - start));
+            _nextLine = _nextColumn = 1;
+        } else {
+            _lexer.reset(buf, start, end);
+        }
+    }
+
+    /** Iff ON, make InputParsers created from now on break their input
+     *  into tokens with INPUT_PATTERN and BALANCED_TEXT rather than with
+     *  a Lexer.  The two produce identical results; the regular
+     *  expressions are kept for comparison. */
+    static void setRegexLexer(boolean on) {
+        _regexLexer = on;
+    }
+
+    /** Tell INDEX, if it is non-null, of the start of each paragraph of
+     *  my input, so that it can record where pages begin.  Only the
+     *  paragraph breaks of the input itself (not those in macros or
+     *  endnotes) are reported, and only when scanning with a Lexer. */
+    void setIndex(PageIndex index) {
+        _index = index;
     }
 
     /** Break all input source text into tokens, and send them to our
-     *  output controller.  Finishes by calling .close on the controller. */
+     *  output controller.  Finishes by calling .close on the controller.
+     *  If the controller has Diagnostics, errors are reported to them,
+     *  and the offending token or command is skipped, until they say to
+     *  stop. */
     void process() {
-        String command;
-        while (_input.findWithinHorizon(INPUT_PATTERN, 0) != null) {
-            MatchResult match = _input.match();
-            if (match.group(BLANK_TOKEN) != null) {
-                _out.endWord();
-                continue;
-            } else if (match.group(EOP_TOKEN) != null) {
-                _out.endParagraph();
-            } else if (match.group(EOL_TOKEN) != null) {
-                _out.addNewLine();
-                continue;
-            } else if (match.group(ESCAPED_CHAR_TOKEN) != null) {
-                _out.addText(match.group(ESCAPED_CHAR_TOKEN));
-            } else if (match.group(COMMAND_TOKEN) != null) {
-                command = match.group(COMMAND_TOKEN);
-                String arg = match.group(COMMAND_ARG_TOKEN);
-                if (arg != null && !arg.equals("")) {
-                    _input.findWithinHorizon(BALANCED_TEXT, 0);
-                    match = _input.match();
-                    arg = match.group(1);
-                    if (arg == null) {
-                        System.exit(1);
-                    } else {
-                        processCommand(command, arg);
+        long start = Metrics.start();
+        Diagnostics diagnostics = _out.diagnostics();
+        if (diagnostics != null && !_endnote) {
+            diagnostics.setSource(this);
+        }
+        boolean done = false;
+        while (!done) {
+            try {
+                done = _lexer == null ? processMatches() : processTokens();
+            } catch (FormatException e) {
+                report(e, diagnostics);
+            }
+        }
+        try {
+            _out.close();
+        } catch (FormatException e) {
+            report(e, diagnostics);
+        } finally {
+            if (diagnostics != null && !_endnote) {
+                diagnostics.setSource(null);
+            }
+        }
+        Metrics.stop(Metrics.PARSE_NANOS, start);
+    }
+
+    /** Return the line number (from 1) of the start of the last token
+     *  read. */
+    int line() {
+        return _lexer == null ? _tokenLine : _lexer.line();
+    }
+
+    /** Return the column number (from 1) of the start of the last token
+     *  read. */
+    int column() {
+        return _lexer == null ? _tokenColumn : _lexer.column();
+    }
+
+    /** Report the error E to DIAGNOSTICS, rethrowing it if DIAGNOSTICS
+     *  is null or have already stopped formatting, or if E is fatal. */
+    private void report(FormatException e, Diagnostics diagnostics) {
+        if (diagnostics == null || diagnostics.stopped()) {
+            throw e;
+        }
+        String message = e.getMessage() == null ? "error" : e.getMessage();
+        if (e.isFatal()) {
+            diagnostics.record(Diagnostics.ERROR, message);
+            throw e;
+        }
+        diagnostics.report(Diagnostics.ERROR, message);
+    }
+
+    /** Perform process() with _lexer, up to the end of input or the
+     *  first error.  Returns true iff the end of input was reached. */
+    private boolean processTokens() {
+        int tokens = 0;
+        try {
+            while (true) {
+                switch (_lexer.next()) {
+                case BLANK_TOKEN:
+                    _out.endWord();
+                    break;
+                case EOL_TOKEN:
+                    _out.addNewLine();
+                    break;
+                case EOP_TOKEN:
+                    _out.endParagraph();
+                    if (_index != null) {
+                        _index.paragraph();
+                    }
+                    break;
+                case ESCAPED_CHAR_TOKEN:
+                case TEXT_TOKEN:
+                    _out.addText(_lexer.buffer(), _lexer.start(),
+                                 _lexer.end());
+                    break;
+                case COMMAND_TOKEN:
+                    if (!expandMacro()) {
+                        processPlainCommand();
                     }
-                    continue;
+                    break;
+                case COMMAND_ARG_TOKEN:
+                    processArgumentCommand();
+                    break;
+                case Lexer.EOF_TOKEN:
+                    return true;
+                default:
+                    reportError("unexpected character: %s", _lexer.text());
+                }
+                tokens += 1;
+            }
+        } finally {
+            Metrics.add(Metrics.TOKENS, tokens);
+        }
+    }
+
+    /** Perform processTokens() by matching INPUT_PATTERN against
+     *  _input. */
+    private boolean processMatches() {
+        int tokens = 0;
+        try {
+            while (matchToken()) {
+                tokens += 1;
+                processMatch();
+            }
+        } finally {
+            Metrics.add(Metrics.TOKENS, tokens);
+        }
+        return true;
+    }
+
+    /** Match the next token in _input, recording its position.  Returns
+     *  false at the end of input. */
+    private boolean matchToken() {
+        if (_input.findWithinHorizon(INPUT_PATTERN, 0) == null) {
+            return false;
+        }
+        _tokenLine = _nextLine;
+        _tokenColumn = _nextColumn;
+        advance(_input.match().group());
+        return true;
+    }
+
+    /** Move the position of the next token past TEXT. */
+    private void advance(String text) {
+        for (int k = 0; k < text.length(); k += 1) {
+            if (text.charAt(k) == '\n') {
+                _nextLine += 1;
+                _nextColumn = 1;
+            } else {
+                _nextColumn += 1;
+            }
+        }
+    }
+
+    /** Process the token just matched by matchToken. */
+    private void processMatch() {
+        MatchResult match = _input.match();
+        if (match.group(BLANK_TOKEN) != null) {
+            _out.endWord();
+        } else if (match.group(EOP_TOKEN) != null) {
+            _out.endParagraph();
+        } else if (match.group(EOL_TOKEN) != null) {
+            _out.addNewLine();
+        } else if (match.group(ESCAPED_CHAR_TOKEN) != null) {
+            _out.addText(match.group(ESCAPED_CHAR_TOKEN));
+        } else if (match.group(COMMAND_TOKEN) != null) {
+            String command = match.group(COMMAND_TOKEN);
+            String arg = match.group(COMMAND_ARG_TOKEN);
+            if (arg != null && !arg.equals("")) {
+                _input.findWithinHorizon(BALANCED_TEXT, 0);
+                match = _input.match();
+                advance(match.group());
+                arg = match.group(1);
+                if (arg == null) {
+                    reportError("bad argument to \\%s", command);
+                } else if (command.equals("def")) {
+                    processDefinition(arg);
                 } else {
-                    processCommand(match.group(COMMAND_TOKEN), null);
-                    continue;
+                    processCommand(command, arg);
                 }
-            } else if (match.group(TEXT_TOKEN) != null) {
-                _out.addText(match.group(TEXT_TOKEN));
-                continue;
             } else {
-                System.exit(1);
+                processCommand(command, null);
             }
+        } else if (match.group(TEXT_TOKEN) != null) {
+            _out.addText(match.group(TEXT_TOKEN));
+        } else {
+            reportError("unexpected character: %s",
+                        match.group(ERROR_TOKEN));
+        }
+    }
+
+    /** Process the body of \def{NAME}{BODY} that follows NAME in
+     *  _input. */
+    private void processDefinition(String name) {
+        String body = null;
+        if (_input.findWithinHorizon(OPEN_BRACE, 1) != null) {
+            advance("{");
+            _input.findWithinHorizon(BALANCED_TEXT, 0);
+            advance(_input.match().group());
+            body = _input.match().group(1);
+        }
+        if (body == null) {
+            reportError("bad argument to \\def");
         }
-        _out.close();
+        define(name.toCharArray(), 0, name.length(),
+               body.toCharArray(), 0, body.length());
     }
 
+    /** Define the macro named NAME[NAMESTART .. NAMEEND-1] with body
+     *  BODY[BODYSTART .. BODYEND-1], warning if it replaces an existing
+     *  macro. */
+    private void define(char[] name, int nameStart, int nameEnd,
+                        char[] body, int bodyStart, int bodyEnd) {
+        MacroTable macros = _out.macros();
+        if (_out.diagnostics() != null
+            && macros.lookup(name, nameStart, nameEnd) != null) {
+            _out.diagnostics().warning("macro \\%s redefined",
+                                       new String(name, nameStart,
+                                                  nameEnd - nameStart));
+        }
+        macros.define(name, nameStart, nameEnd, body, bodyStart, bodyEnd);
+    }
+
+    /** If the COMMAND_TOKEN just scanned by _lexer names a macro, expand
+     *  it and return true.  Otherwise, return false. */
+    private boolean expandMacro() {
+        MacroTable macros = _out.macros();
+        if (macros.isEmpty()) {
+            return false;
+        }
+        MacroTable.Macro macro =
+            macros.lookup(_lexer.buffer(), _lexer.start(), _lexer.end());
+        if (macro == null) {
+            return false;
+        }
+        macros.expand(macro, _out);
+        return true;
+    }
+
+    /** Perform the command named by the COMMAND_TOKEN just scanned by
+     *  _lexer, without an argument, reporting an error if there is
+     *  none. */
+    private void processPlainCommand() {
+        CommandTable.Command command =
+            CommandTable.lookup(_lexer.buffer(), _lexer.start(),
+                                _lexer.end());
+        if (command == null) {
+            reportError("unknown command: %s", _lexer.text());
+        } else {
+            command.execute(_out, null, 0, 0);
+        }
+    }
+
+    /** Process the COMMAND_ARG_TOKEN just scanned by _lexer and its
+     *  argument, which is passed to the command where it lies in the
+     *  Lexer's buffer. */
+    private void processArgumentCommand() {
+        char[] buf = _lexer.buffer();
+        int start = _lexer.start(), end = _lexer.end();
+        if (Arrays.equals(buf, start, end,
+                          MacroTable.DEF, 0, MacroTable.DEF.length)) {
+            if (!_lexer.readArgument()) {
+                reportError("bad argument to \\def");
+                return;
+            }
+            int nameStart = _lexer.start(), nameEnd = _lexer.end();
+            if (!_lexer.readNextArgument()) {
+                reportError("bad argument to \\def");
+                return;
+            }
+            define(_lexer.buffer(), nameStart, nameEnd,
+                   _lexer.buffer(), _lexer.start(), _lexer.end());
+            return;
+        }
+        CommandTable.Command command =
+            CommandTable.lookup(buf, start, end);
+        boolean macro = !_out.macros().isEmpty()
+            && _out.macros().lookup(buf, start, end) != null;
+        String unknown = command == null || macro ? _lexer.text() : null;
+        boolean ok = _lexer.readArgument();
+        if (macro) {
+            reportError("macro \\%s takes no argument", unknown);
+        } else if (!ok) {
+            reportError("bad argument to \\%s",
+                        command == null ? unknown : command.name());
+        } else if (command == null) {
+            reportError("unknown command: %s", unknown);
+        } else {
+            command.execute(_out, _lexer.buffer(), _lexer.start(),
+                            _lexer.end());
+        }
+    }
 
     /** Process \COMMAND{ARG} or (if ARG is null) \COMMAND.  Call the
      *  appropriate methods in our Controller (_out). */
     private void processCommand(String command, String arg) {
-        try {
-            int num;
-            if (!command.equals("endnote") && arg != null && !arg.equals("")) {
-                num = Integer.parseInt(arg);
-            } else {
-                num = 0;
+        char[] name = command.toCharArray();
+        MacroTable.Macro macro =
+            _out.macros().lookup(name, 0, name.length);
+        if (macro != null) {
+            if (arg != null) {
+                reportError("macro \\%s takes no argument", command);
             }
-            switch (command) {
-            case "indent":
-                _out.setIndentation(num);
-                break;
-            case "parindent":
-                _out.setParIndentation(num);
-                break;
-            case "textwidth":
-                _out.setTextWidth(num);
-                break;
-            case "textheight":
-                _out.setTextHeight(num);
-                break;
-            case "parskip":
-                _out.setParSkip(num);
-                break;
-            case "nofill":
-                _out.setFill(false);
-                _out.setJustify(false);
-                break;
-            case "fill":
-                _out.setFill(true);
-                break;
-            case "justify":
-                _out.setJustify(true);
-                break;
-            case "nojustify":
-                _out.setJustify(false);
-                break;
-            case "endnote":
-                if (!_endnoteParser) {
-                    _out.formatEndnote(arg);
-                } else {
-                    throw new FormatException("Endnotes nested too deeply");
-                }
-                break;
-            default:
-                reportError("unknown command: %s", command);
-                throw new IndexOutOfBoundsException();
-            }
-        } catch (IndexOutOfBoundsException e) {
-            System.exit(1);
-        } catch (NumberFormatException e) {
-            reportError(e.getMessage());
+            _out.macros().expand(macro, _out);
+            return;
+        }
+        CommandTable.Command cmd = CommandTable.lookup(command);
+        if (cmd == null) {
+            reportError("unknown command: %s", command);
+        } else if (arg == null) {
+            cmd.execute(_out, null, 0, 0);
+        } else {
+            cmd.execute(_out, arg.toCharArray(), 0, arg.length());
         }
     }
 
@@ -189,11 +449,23 @@ class InputParser {
         processCommand(command, arg);
     }
 
-    /** My input source. */
-    private final Scanner _input;
+    /** True iff new InputParsers should use regular expressions rather
+     *  than a Lexer. */
+    private static boolean _regexLexer;
+
+    /** My input source, when tokenizing with regular expressions. */
+    private Scanner _input;
+    /** My input source, when tokenizing with a Lexer. */
+    private final Lexer _lexer;
+    /** Told of the start of each paragraph, or null. */
+    private PageIndex _index;
+    /** True iff I parse endnotes for another InputParser. */
+    private boolean _endnote;
+    /** Line and column of the last token matched in _input. */
+    private int _tokenLine, _tokenColumn;
+    /** Line and column of the next token to be matched in _input. */
+    private int _nextLine = 1, _nextColumn = 1;
     /** The Controller to which I send input tokens. */
     private Controller _out;
-    /** True if this InputParser is parsing endnotes. */
-    private boolean _endnoteParser;
 
 }
@@ -0,0 +1,429 @@
+package tex61;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/** A single-pass tokenizer for formatter input.  It recognizes exactly
+ *  the tokens described by InputParser.INPUT_PATTERN and the arguments
+ *  described by InputParser.BALANCED_TEXT, but works directly on a
+ *  buffer of characters, so that blanks and newlines are recognized
+ *  without creating any objects at all and text is only copied out
+ *  when a client asks for it.
+ *  @author Austin Gandy
+ */
+class Lexer {
+
+    /** Token kinds returned by next().  Except for EOF_TOKEN, these have
+     *  the same values as the corresponding group numbers in
+     *  InputParser.INPUT_PATTERN. */
+    static final int
+        /** End of input. */
+        EOF_TOKEN = 0,
+        /** Blanks or tabs. */
+        BLANK_TOKEN = 1,
+        /** A single end of line. */
+        EOL_TOKEN = 2,
+        /** End of paragraph (>1 consecutive newlines). */
+        EOP_TOKEN = 3,
+        /** \{, \}, \\, or \ .  text() is the character after the
+         *  backslash. */
+        ESCAPED_CHAR_TOKEN = 4,
+        /** Command not followed by '{'.  text() is the command name. */
+        COMMAND_TOKEN = 5,
+        /** Command followed immediately by '{'.  text() is the command
+         *  name, and the argument may be read with readArgument(). */
+        COMMAND_ARG_TOKEN = 6,
+        /** Segment of other text.  text() is the segment. */
+        TEXT_TOKEN = 7,
+        /** A character that should not be here. */
+        ERROR_TOKEN = 8;
+
+    /** Initial size of the buffer used for Reader input. */
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    /** A new Lexer that reads characters from READER. */
+    Lexer(Reader reader) {
+        _reader = reader;
+        _buf = new char[BUFFER_SIZE];
+        _lineNumber = 1;
+    }
+
+    /** A new Lexer whose input is TEXT. */
+    Lexer(String text) {
+        this(text.toCharArray(), 0, text.length());
+    }
+
+    /** A new Lexer whose input is BUF[START .. END-1]. */
+    Lexer(char[] buf, int start, int end) {
+        _reader = null;
+        reset(buf, start, end);
+    }
+
+    /** A new Lexer with no input of its own, for subclasses that supply
+     *  tokens some other way. */
+    Lexer() {
+        _reader = null;
+        _buf = new char[0];
+        _eof = true;
+        _lineNumber = 1;
+    }
+
+    /** Make BUF[START .. END-1] my input, abandoning any previous input.
+     *  Only possible for a Lexer not created from a Reader.  BUF is not
+     *  copied or modified, and must not change while I am scanning it. */
+    void reset(char[] buf, int start, int end) {
+        if (_reader != null) {
+            throw new IllegalStateException("lexer reads from a Reader");
+        }
+        _buf = buf;
+        _pos = start;
+        _limit = end;
+        _eof = true;
+        _base = 0;
+        _lineNumber = 1;
+        _lineStart = start;
+    }
+
+    /** Scan the next token and return its kind (one of the *_TOKEN
+     *  constants). */
+    int next() {
+        compact();
+        int p = _pos;
+        if (!has(p)) {
+            return EOF_TOKEN;
+        }
+        char c = _buf[p];
+        _start = p;
+        _tokenLine = _lineNumber;
+        _tokenColumn = (int) (_base + p - _lineStart + 1);
+        switch (c) {
+        case ' ': case '\t':
+            p += 1;
+            while (has(p) && isBlank(_buf[p])) {
+                p += 1;
+            }
+            return token(BLANK_TOKEN, p, p);
+        case '\r': case '\n':
+            p = endOfLine(p);
+            if (p < 0) {
+                return token(ERROR_TOKEN, _start + 1, _start + 1);
+            }
+            int kind = EOL_TOKEN;
+            newLine(p);
+            for (int q = endOfLine(p); q >= 0; q = endOfLine(p)) {
+                kind = EOP_TOKEN;
+                p = q;
+                newLine(p);
+            }
+            return token(kind, p, p);
+        case '\\':
+            if (!has(p + 1)) {
+                return token(ERROR_TOKEN, p + 1, p + 1);
+            }
+            c = _buf[p + 1];
+            if (isBlank(c) || c == '{' || c == '}' || c == '\\') {
+                _start = p + 1;
+                return token(ESCAPED_CHAR_TOKEN, p + 2, p + 2);
+            } else if (isAlpha(c)) {
+                _start = p + 1;
+                p += 2;
+                while (has(p) && isAlpha(_buf[p])) {
+                    p += 1;
+                }
+                if (has(p) && _buf[p] == '{') {
+                    return token(COMMAND_ARG_TOKEN, p, p + 1);
+                }
+                return token(COMMAND_TOKEN, p, p);
+            }
+            return token(ERROR_TOKEN, p + 1, p + 1);
+        case '{': case '}':
+            return token(ERROR_TOKEN, p + 1, p + 1);
+        default:
+            p += 1;
+            while (has(p) && isText(_buf[p])) {
+                p += 1;
+            }
+            return token(TEXT_TOKEN, p, p);
+        }
+    }
+
+    /** Read the argument of the COMMAND_ARG_TOKEN just returned by next(),
+     *  up to and including its closing '}'.  Returns true iff the argument
+     *  was well formed, in which case text() is the argument, not including
+     *  the closing brace.  As for BALANCED_TEXT, braces may be nested one
+     *  level deep and any character may be escaped with a backslash. */
+    boolean readArgument() {
+        int depth = 0;
+        for (int p = _pos; has(p); p += 1) {
+            char c = _buf[p];
+            if (c == '\\') {
+                if (!has(p + 1)) {
+                    break;
+                }
+                p += 1;
+            } else if (c == '{') {
+                if (depth > 0) {
+                    break;
+                }
+                depth += 1;
+            } else if (c == '}') {
+                if (depth == 0) {
+                    _start = _pos;
+                    _end = p;
+                    skip(p + 1);
+                    return true;
+                }
+                depth -= 1;
+            }
+        }
+        if (has(_pos)) {
+            skip(_pos + 1);
+        }
+        return false;
+    }
+
+    /** Return the line number (from 1) of the start of the last token
+     *  returned by next(). */
+    int line() {
+        return _tokenLine;
+    }
+
+    /** Return the column number (from 1) of the start of the last token
+     *  returned by next(). */
+    int column() {
+        return _tokenColumn;
+    }
+
+    /** Return the number of the line containing the next character to
+     *  be scanned. */
+    int nextLine() {
+        return _lineNumber;
+    }
+
+    /** Start my line numbers at LINENUMBER rather than 1, as when my
+     *  input starts partway through a file.  Must be called before any
+     *  input is scanned. */
+    void setLineNumber(int lineNumber) {
+        _lineNumber = lineNumber;
+    }
+
+    /** Keep count, from now on, of the bytes that the characters I scan
+     *  occupy when encoded in CHARSET, taking the next character to be
+     *  scanned to start at byte OFFSET, so that offset() can report the
+     *  position of any later token.  CHARSET must be UTF-8 or encode each
+     *  character in one byte; a FormatException is thrown otherwise. */
+    void countBytes(Charset charset, long offset) {
+        _utf8 = charset.equals(StandardCharsets.UTF_8);
+        if (!_utf8 && charset.newEncoder().maxBytesPerChar() > 1) {
+            throw FormatException.error("cannot count bytes of %s input",
+                                        charset.name());
+        }
+        _counting = true;
+        _counted = _pos;
+        _bytes = offset;
+    }
+
+    /** Return the position in bytes of the next character to be scanned,
+     *  as counted since countBytes was called. */
+    long offset() {
+        count(_pos);
+        return _bytes;
+    }
+
+    /** If the next input character is '{', skip it and read the argument
+     *  that follows as for readArgument, returning true iff it was well
+     *  formed.  Otherwise, return false without reading anything.  Used
+     *  for commands with a second argument, which must follow the first
+     *  immediately. */
+    boolean readNextArgument() {
+        if (!has(_pos) || _buf[_pos] != '{') {
+            return false;
+        }
+        _pos += 1;
+        return readArgument();
+    }
+
+    /** Return the text of the last token or argument scanned. */
+    String text() {
+        return new String(_buf, _start, _end - _start);
+    }
+
+    /** Return the buffer holding the text of the last token or argument
+     *  scanned, which occupies positions start() through end()-1.  The
+     *  contents are valid only until the next call to next(). */
+    char[] buffer() {
+        return _buf;
+    }
+
+    /** Return the position in buffer() of the text of the last token. */
+    int start() {
+        return _start;
+    }
+
+    /** Return the position in buffer() just past the text of the last
+     *  token. */
+    int end() {
+        return _end;
+    }
+
+    /** Record a token whose text ends at END and after which scanning
+     *  resumes at NEXT.  Returns KIND. */
+    private int token(int kind, int end, int next) {
+        _end = end;
+        _pos = next;
+        return kind;
+    }
+
+    /** Move the scanning position to P, counting any newlines passed. */
+    private void skip(int p) {
+        for (int q = _pos; q < p; q += 1) {
+            if (_buf[q] == '\n') {
+                newLine(q + 1);
+            }
+        }
+        _pos = p;
+    }
+
+    /** Record that a new line starts at buffer position P. */
+    private void newLine(int p) {
+        _lineNumber += 1;
+        _lineStart = _base + p;
+    }
+
+    /** Return the position just past a newline (\n or \r\n) at
+     *  position P, or -1 if there is none. */
+    private int endOfLine(int p) {
+        if (!has(p)) {
+            return -1;
+        } else if (_buf[p] == '\n') {
+            return p + 1;
+        } else if (_buf[p] == '\r' && has(p + 1) && _buf[p + 1] == '\n') {
+            return p + 2;
+        }
+        return -1;
+    }
+
+    /** Return true iff the character at buffer position P is available,
+     *  reading more input if needed.  Reading never moves characters that
+     *  are already buffered. */
+    private boolean has(int p) {
+        while (p >= _limit) {
+            if (_eof) {
+                return false;
+            }
+            fill();
+        }
+        return true;
+    }
+
+    /** Read more characters into the buffer, enlarging it if full. */
+    private void fill() {
+        if (_limit == _buf.length) {
+            _buf = Arrays.copyOf(_buf, 2 * _buf.length);
+        }
+        try {
+            int n = _reader.read(_buf, _limit, _buf.length - _limit);
+            if (n < 0) {
+                _eof = true;
+            } else {
+                _limit += n;
+            }
+        } catch (IOException e) {
+            throw FormatException.fatal("error reading input: %s",
+                                        e.getMessage());
+        }
+    }
+
+    /** Discard already-scanned characters from the buffer, if doing so
+     *  would leave much more room for reading. */
+    private void compact() {
+        if (_reader != null && _pos > 0
+            && (_pos == _limit || _pos > _buf.length / 2)) {
+            if (_counting) {
+                count(_pos);
+                _counted = 0;
+            }
+            System.arraycopy(_buf, _pos, _buf, 0, _limit - _pos);
+            _limit -= _pos;
+            _base += _pos;
+            _pos = 0;
+        }
+    }
+
+    /** Add to _bytes the number of bytes occupied by the buffered
+     *  characters from _counted to P. */
+    private void count(int p) {
+        if (!_counting) {
+            return;
+        }
+        if (!_utf8) {
+            _bytes += p - _counted;
+        } else {
+            for (int q = _counted; q < p; q += 1) {
+                char c = _buf[q];
+                if (c < 0x80) {
+                    _bytes += 1;
+                } else if (c < 0x800 || Character.isSurrogate(c)) {
+                    _bytes += 2;
+                } else {
+                    _bytes += 3;
+                }
+            }
+        }
+        _counted = p;
+    }
+
+    /** Return true iff C is a blank (\p{Blank}). */
+    private static boolean isBlank(char c) {
+        return c == ' ' || c == '\t';
+    }
+
+    /** Return true iff C is an ASCII letter (\p{Alpha}). */
+    private static boolean isAlpha(char c) {
+        return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z');
+    }
+
+    /** Return true iff C may appear in a TEXT_TOKEN. */
+    private static boolean isText(char c) {
+        switch (c) {
+        case ' ': case '\t': case '\r': case '\n':
+        case '\\': case '{': case '}':
+            return false;
+        default:
+            return true;
+        }
+    }
+
+    /** Source of input characters, or null if all input is buffered. */
+    private final Reader _reader;
+    /** Buffered input. */
+    private char[] _buf;
+    /** Position in _buf of the next character to be scanned. */
+    private int _pos;
+    /** Number of valid characters in _buf. */
+    private int _limit;
+    /** True iff _reader is exhausted. */
+    private boolean _eof;
+    /** Bounds in _buf of the text of the last token or argument. */
+    private int _start, _end;
+    /** Position in the input of the start of _buf. */
+    private long _base;
+    /** Number of the line containing _pos. */
+    private int _lineNumber;
+    /** Position in the input of the start of that line. */
+    private long _lineStart;
+    /** Line and column of the start of the last token. */
+    private int _tokenLine, _tokenColumn;
+    /** True iff counting the bytes of the characters scanned. */
+    private boolean _counting;
+    /** True iff those bytes are in UTF-8, rather than one per character. */
+    private boolean _utf8;
+    /** Position in _buf up to which bytes have been counted. */
+    private int _counted;
+    /** Position in bytes of the character at _counted. */
+    private long _bytes;
+
+}
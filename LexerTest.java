@@ -0,0 +1,124 @@
+package tex61;
+
+import java.io.PrintWriter;
+import java.io.StringReader;
+import java.io.StringWriter;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/** Unit tests of Lexer.
+ *  @author Austin Gandy
+ */
+public class LexerTest {
+
+    /** Sample input exercising every kind of token. */
+    private static final String INPUT =
+        "Some  text\twith \\{escapes\\} \\\\ and\\ blanks.\n"
+        + "\\textwidth{40}\\nofill\r\nA line\r\n\r\n\n"
+        + "\\fill\\justify An\\endnote{A note with \\} in it.} end.\n\n"
+        + "\\parskip{2}Last paragraph of the input text, which should be "
+        + "long enough to need filling across several lines of output.";
+
+    /** Return the kinds of the tokens of INPUT, read through a Reader
+     *  iff READER, as a string of digits. */
+    private String kinds(String input, boolean reader) {
+        Lexer lexer =
+            reader ? new Lexer(new StringReader(input)) : new Lexer(input);
+        StringBuilder result = new StringBuilder();
+        int kind;
+        while ((kind = lexer.next()) != Lexer.EOF_TOKEN) {
+            result.append(kind);
+            if (kind == Lexer.COMMAND_ARG_TOKEN) {
+                assertTrue(lexer.readArgument());
+            }
+        }
+        return result.toString();
+    }
+
+    /** Return the output of formatting INPUT, using regular expressions
+     *  iff REGEX. */
+    private String format(String input, boolean regex) {
+        StringWriter output = new StringWriter();
+        PrintWriter writer = new PrintWriter(output);
+        InputParser.setRegexLexer(regex);
+        try {
+            Controller controller = new Controller(writer);
+            new InputParser(new StringReader(input), controller).process();
+        } finally {
+            InputParser.setRegexLexer(false);
+        }
+        writer.close();
+        return output.toString();
+    }
+
+    @Test
+    public void testTokenKinds() {
+        assertEquals("71472", kinds("ab \\\\x\n", false));
+        assertEquals("174747", kinds(" a\\ b\\}c", false));
+        assertEquals("3727", kinds("\n\r\na\r\nb", false));
+        assertEquals("551715", kinds("\\fill\\nofill x \\justify", false));
+        assertEquals("6", kinds("\\indent{3}", false));
+        assertEquals("888", kinds("{}\\", false));
+        assertEquals("78", kinds("a\r", false));
+    }
+
+    @Test
+    public void testTokenText() {
+        Lexer lexer = new Lexer("word\\endnote{a {b} \\} c}\\{");
+        assertEquals(Lexer.TEXT_TOKEN, lexer.next());
+        assertEquals("word", lexer.text());
+        assertEquals(Lexer.COMMAND_ARG_TOKEN, lexer.next());
+        assertEquals("endnote", lexer.text());
+        assertTrue(lexer.readArgument());
+        assertEquals("a {b} \\} c", lexer.text());
+        assertEquals(Lexer.ESCAPED_CHAR_TOKEN, lexer.next());
+        assertEquals("{", lexer.text());
+        assertEquals(Lexer.EOF_TOKEN, lexer.next());
+    }
+
+    @Test
+    public void testBadArguments() {
+        Lexer lexer = new Lexer("\\indent{3");
+        assertEquals(Lexer.COMMAND_ARG_TOKEN, lexer.next());
+        assertFalse(lexer.readArgument());
+        lexer = new Lexer("\\endnote{a {b {c}} d}");
+        assertEquals(Lexer.COMMAND_ARG_TOKEN, lexer.next());
+        assertFalse(lexer.readArgument());
+    }
+
+    @Test
+    public void testReset() {
+        char[] buf = "xx{one two}yy".toCharArray();
+        Lexer lexer = new Lexer(buf, 3, 10);
+        assertEquals(Lexer.TEXT_TOKEN, lexer.next());
+        assertEquals("one", lexer.text());
+        assertEquals(Lexer.BLANK_TOKEN, lexer.next());
+        assertEquals(Lexer.TEXT_TOKEN, lexer.next());
+        assertEquals("two", lexer.text());
+        assertEquals(Lexer.EOF_TOKEN, lexer.next());
+        lexer.reset(buf, 0, 2);
+        assertEquals(Lexer.TEXT_TOKEN, lexer.next());
+        assertEquals("xx", lexer.text());
+        assertEquals(Lexer.EOF_TOKEN, lexer.next());
+    }
+
+    /** Checks that reading through a Reader does not change the tokens,
+     *  even when tokens cross the boundaries of the Lexer's buffer. */
+    @Test
+    public void testReader() {
+        StringBuilder input = new StringBuilder();
+        for (int i = 0; i < 20000; i += 1) {
+            input.append(INPUT);
+        }
+        String text = input.toString();
+        assertEquals(kinds(text, false), kinds(text, true));
+    }
+
+    /** Checks that Lexer and regular expressions give the same output. */
+    @Test
+    public void testSameAsRegex() {
+        assertEquals(format(INPUT, true), format(INPUT, false));
+    }
+
+}
@@ -1,6 +1,11 @@
 package tex61;
 
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 
 import static tex61.Defaults.*;
 
@@ -10,15 +15,34 @@ import static tex61.Defaults.*;
  */
 class LineAssembler {
 
+    /** Initial sizes of the word text and output line buffers. */
+    private static final int INITIAL_CHARS = 256;
+    /** Initial number of words that may be accumulated without
+     *  resizing. */
+    private static final int INITIAL_WORDS = 32;
+    /** Number of words in a batch of paragraphs filled by one task, when
+     *  filling in parallel. */
+    private static final int BATCH_WORDS = 4096;
+    /** Maximum number of batches awaiting filling or output. */
+    private static final int MAX_PENDING = 64;
+    /** Maximum number of words over which optimal line breaks are chosen
+     *  at once.  Longer paragraphs are broken a window at a time. */
+    private static final int OPTIMAL_WINDOW = 4096;
+
+    /** Number of values stored by saveSettings. */
+    static final int SETTINGS = 11;
+
     /** A new, empty line assembler with default settings of all
      *  parameters, sending finished lines to PAGES.
      *  Default values set according to ENDNOTES. */
     LineAssembler(PageAssembler pages, boolean endnotes) {
         _pages = pages;
         _firstPar = true;
-        _currentWord = "";
         _endnote = endnotes;
-        _wordLine = new ArrayList<String>();
+        _chars = new char[INITIAL_CHARS];
+        _starts = new int[INITIAL_WORDS];
+        _lengths = new int[INITIAL_WORDS];
+        _line = new char[INITIAL_CHARS];
         _justify = true;
         _fill = true;
         _firstLine = true;
@@ -35,32 +59,326 @@ class LineAssembler {
         }
     }
 
+    /** A new line assembler holding a copy of the finished words of FROM
+     *  and of its settings, sending lines to PAGES.  Used to fill a
+     *  paragraph independently of FROM. */
+    private LineAssembler(LineAssembler from, PageAssembler pages) {
+        _pages = pages;
+        _numWords = from._numWords;
+        _numChars = _wordStart = from._wordStart;
+        _chars = Arrays.copyOf(from._chars, Math.max(_numChars, 1));
+        _starts = Arrays.copyOf(from._starts, Math.max(_numWords, 1));
+        _lengths = Arrays.copyOf(from._lengths, Math.max(_numWords, 1));
+        _line = new char[INITIAL_CHARS];
+        _justify = from._justify;
+        _fill = from._fill;
+        _optimal = from._optimal;
+        _textWidth = from._textWidth;
+        _indent = from._indent;
+        _parindent = from._parindent;
+        _parSkip = from._parSkip;
+        _firstLine = from._firstLine;
+        _firstPar = from._firstPar;
+    }
+
+    /** If EXECUTOR is non-null, fill and justify the paragraphs I receive
+     *  in fill mode using EXECUTOR's threads, while still sending their
+     *  lines to my PageAssembler in order.  Otherwise, fill each paragraph
+     *  as it ends. */
+    void setExecutor(ExecutorService executor) {
+        flush();
+        _executor = executor;
+        _pending = new ArrayDeque<Future<LineBuffer>>();
+    }
+
+    /** If CACHE is non-null, look up the lines of each paragraph I fill
+     *  in CACHE, filling and adding to it only those not found there.
+     *  Paragraphs are then filled on the calling thread, even if I have
+     *  an executor. */
+    void setCache(ParagraphCache cache) {
+        flush();
+        _cache = cache;
+    }
+
+    /** Iff ON, fill paragraphs as their words arrive, sending each line
+     *  to my PageAssembler as soon as the next word fails to fit on it
+     *  and keeping only the words of the current line, so that the
+     *  memory used and the delay before the first line of a paragraph is
+     *  output do not depend on the paragraph's length.  Settings changed
+     *  within a paragraph then apply to the lines that follow, rather
+     *  than to the whole paragraph.  Has no effect on endnotes, with
+     *  optimal line breaking, or with an executor or cache. */
+    void setStreaming(boolean on) {
+        _streaming = on;
+    }
+
+    /** Send the lines I form to each of PAGES in turn, instead of to my
+     *  PageAssembler, filling and justifying those sent to PAGES[k] to a
+     *  width of WIDTHS[k], whatever text width is set (until
+     *  useTextWidth is called).  My words are
+     *  accumulated only once, and only filling, justification and
+     *  pagination are repeated for each of PAGES.  Paragraphs are then
+     *  filled on the calling thread, and not streamed. */
+    void setOutputs(PageAssembler[] pages, int[] widths) {
+        flush();
+        _outputs = pages.clone();
+        _widths = widths.clone();
+        selectOutput(0);
+    }
+
+    /** Return the number of PageAssemblers I send lines to. */
+    private int outputs() {
+        return _outputs == null ? 1 : _outputs.length;
+    }
+
+    /** From now on, fill the lines sent to each of the PageAssemblers
+     *  set by setOutputs to the text width set, as for a single output,
+     *  rather than to its own width.  Endnotes are written so, since they
+     *  have a width of their own. */
+    void useTextWidth() {
+        flush();
+        _widths = null;
+    }
+
+    /** Send lines to output K of those set by setOutputs, if any, filling
+     *  them to its width unless useTextWidth has been called. */
+    private void selectOutput(int k) {
+        if (_outputs != null) {
+            _pages = _outputs[k];
+            if (_widths != null) {
+                _textWidth = _widths[k];
+            }
+        }
+    }
+
+    /** Send the lines of all ended paragraphs to my PageAssembler. */
+    void flush() {
+        if (_executor != null) {
+            if (_batch != null) {
+                _pending.add(_executor.submit(_batch));
+                _batch = null;
+            }
+            while (!_pending.isEmpty()) {
+                replayPending();
+            }
+        }
+        publishCounts();
+    }
+
+    /** Return my PageAssembler, after first sending it the lines of any
+     *  ended paragraphs, so that lines stay in order. */
+    private PageAssembler pages() {
+        if (_executor != null) {
+            flush();
+        }
+        return _pages;
+    }
+
+    /** Add a copy of the current paragraph and settings to the batch of
+     *  paragraphs to be filled by _executor, to be preceded by SKIP blank
+     *  lines.  Submits the batch once it is large enough, and sends the
+     *  lines of any batches that are finished to my PageAssembler. */
+    private void submitParagraph(int skip) {
+        if (_batch == null) {
+            _batch = new ParagraphBatch();
+        }
+        _batch.add(new LineAssembler(this, _batch.lines()), skip);
+        if (_batch.numWords() >= BATCH_WORDS) {
+            _pending.add(_executor.submit(_batch));
+            _batch = null;
+            while (!_pending.isEmpty()
+                   && (_pending.size() > MAX_PENDING
+                       || _pending.peek().isDone())) {
+                replayPending();
+            }
+        }
+    }
+
+    /** Wait for the oldest pending batch to be filled, and send its lines
+     *  to my PageAssembler. */
+    private void replayPending() {
+        try {
+            _pending.remove().get().replay(_pages);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new IllegalStateException(e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw FormatException.fatal("interrupted while filling");
+        }
+    }
+
+    /** Having just added a word to a paragraph being filled a line at a
+     *  time, output the lines before it that it completes, as processPhil
+     *  would, and discard their words.  Blank words are dropped, as by
+     *  removeBlankWords. */
+    private void streamWord() {
+        if (!_fill || _endnote || _optimal || _executor != null
+            || _cache != null || _outputs != null) {
+            return;
+        }
+        int k = _numWords - 1;
+        int len = _lengths[k];
+        if (isBlankChar(_starts[k], _starts[k] + len)) {
+            _numWords = k;
+            return;
+        }
+        int indent = _firstLine ? _indent + _parindent : _indent;
+        if (len > _textWidth) {
+            if (k > 0) {
+                streamLine(k, indent, _streamChars);
+                indent = _indent;
+            }
+            streamLine(1, indent, len);
+            _streamChars = 0;
+        } else if (_streamChars + len + k + indent > _textWidth) {
+            streamLine(k, indent, _streamChars);
+            _streamChars = len;
+        } else {
+            _streamChars += len;
+        }
+    }
+
+    /** Output the first N words as a line of a streamed paragraph, after
+     *  INDENT characters of indentation, where the words contain CHARS
+     *  characters, and discard them. */
+    private void streamLine(int n, int indent, int chars) {
+        if (!_streamed) {
+            if (!_firstPar) {
+                writeBlankLines();
+            }
+            _firstPar = false;
+            _streamed = true;
+        }
+        emitLine(0, n, indent, chars);
+        _firstLine = false;
+        _wordCount += n;
+        int from = n < _numWords ? _starts[n] : _wordStart;
+        System.arraycopy(_chars, from, _chars, 0, _numChars - from);
+        _numChars -= from;
+        _wordStart -= from;
+        _numWords -= n;
+        for (int i = 0; i < _numWords; i += 1) {
+            _starts[i] = _starts[i + n] - from;
+            _lengths[i] = _lengths[i + n];
+        }
+    }
+
+    /** Fill and justify my words as a paragraph. */
+    void fillParagraph() {
+        long start = Metrics.start();
+        if (_optimal) {
+            breakOptimally();
+        } else {
+            processPhil();
+        }
+        Metrics.stop(Metrics.FILL_NANOS, start);
+        publishCounts();
+    }
+
+    /** Fill my words as a paragraph, as for fillParagraph, but taking
+     *  the lines from _cache if they are there, and otherwise adding them
+     *  to it. */
+    private void fillCached() {
+        ParagraphCache.Key key = new ParagraphCache.Key(
+            new int[] {
+                _justify ? 1 : 0, _optimal ? 1 : 0, _textWidth, _indent,
+                _firstLine ? _indent + _parindent : _indent
+            },
+            Arrays.copyOf(_chars, _wordStart),
+            Arrays.copyOf(_lengths, _numWords));
+        LineBuffer lines = _cache.get(key);
+        if (lines == null) {
+            lines = new LineBuffer();
+            new LineAssembler(this, lines).fillParagraph();
+            lines.trim();
+            _cache.put(key, lines);
+        }
+        lines.replay(pages());
+    }
+
+    /** Return the number of finished words being accumulated. */
+    int numWords() {
+        return _numWords;
+    }
+
     /** Add TEXT to the word currently being built. */
     void addText(String text) {
-        _currentWord = _currentWord + text;
+        int len = text.length();
+        reserveChars(len);
+        text.getChars(0, len, _chars, _numChars);
+        _numChars += len;
+    }
+
+    /** Add the characters BUF[START .. END-1] to the word currently being
+     *  built. */
+    void addText(char[] buf, int start, int end) {
+        int len = end - start;
+        reserveChars(len);
+        System.arraycopy(buf, start, _chars, _numChars, len);
+        _numChars += len;
     }
 
     /** Finish the current word, if any, and add to words being accumulated. */
     void finishWord() {
-        if (!_currentWord.equals("") || _currentWord == null) {
-            addWord(_currentWord);
-            _currentWord = "";
+        if (_numChars > _wordStart) {
+            addSpan(_wordStart, _numChars - _wordStart);
+            _wordStart = _numChars;
+            if (_streaming) {
+                streamWord();
+            }
         }
     }
 
     /** Add WORD to the formatted text. */
     void addWord(String word) {
-        _wordLine.add(word);
+        int pending = _numChars - _wordStart;
+        int len = word.length();
+        reserveChars(len);
+        if (pending > 0) {
+            System.arraycopy(_chars, _wordStart, _chars, _wordStart + len,
+                             pending);
+        }
+        word.getChars(0, len, _chars, _wordStart);
+        addSpan(_wordStart, len);
+        _wordStart += len;
+        _numChars += len;
+        if (_streaming) {
+            streamWord();
+        }
     }
 
     /** Sends contents of current line to _pages then starts a new line. */
     void finishLine() {
-        if (!_currentWord.matches("\\s") && !_currentWord.equals("")) {
-            addWord(_currentWord);
+        if (!isBlankChar(_wordStart, _numChars)) {
+            finishWord();
+        }
+        for (int k = 0; k < outputs(); k += 1) {
+            selectOutput(k);
+            _lineLength = 0;
+            appendWords(0, _numWords);
+            outputLine();
         }
-        _pages.addLine(lineToString(_wordLine));
+        selectOutput(0);
         _firstLine = false;
-        _wordLine.clear();
+        clearWords();
+    }
+
+    /** Report errors in my settings to DIAGNOSTICS, if it is non-null,
+     *  ignoring the setting and carrying on. */
+    void setDiagnostics(Diagnostics diagnostics) {
+        _diagnostics = diagnostics;
+    }
+
+    /** Report the error MESSAGE about a setting. */
+    private void error(String message) {
+        if (_diagnostics == null) {
+            FormatException.reportError("%s", message);
+        } else {
+            _diagnostics.report(Diagnostics.ERROR, message);
+        }
     }
 
     /** Set the current indentation to VAL. VAL >= 0. */
@@ -73,7 +391,7 @@ class LineAssembler {
                         + "indentation");
             }
         } catch (FormatException e) {
-            FormatException.reportError(e.getMessage());
+            error(e.getMessage());
         }
     }
 
@@ -92,7 +410,7 @@ class LineAssembler {
                 _textWidth = val;
             }
         } catch (FormatException e) {
-            FormatException.reportError(e.getMessage());
+            error(e.getMessage());
         }
     }
 
@@ -107,10 +425,17 @@ class LineAssembler {
         _justify = on;
     }
 
+    /** Iff ON, choose the line breaks of filled paragraphs to minimize
+     *  the total squared slack of their lines, rather than filling each
+     *  line as full as possible in turn. */
+    void setOptimalBreaking(boolean on) {
+        _optimal = on;
+    }
+
     /** Set paragraph skip to VAL.  VAL >= 0. */
     void setParSkip(int val) {
         try {
-            if (_wordLine.size() == 0) {
+            if (_numWords == 0) {
                 if (val >= 0) {
                     _parSkip = val;
                 } else {
@@ -122,7 +447,7 @@ class LineAssembler {
                 _nextSkip = val;
             }
         } catch (FormatException e) {
-            FormatException.reportError(e.getMessage());
+            error(e.getMessage());
         }
     }
 
@@ -130,28 +455,52 @@ class LineAssembler {
     void setTextHeight(int val) {
         try {
             if (val > 0) {
-                _pages.setTextHeight(val);
+                for (int k = 0; k < outputs(); k += 1) {
+                    selectOutput(k);
+                    pages().setTextHeight(val);
+                }
+                selectOutput(0);
             } else {
                 throw new FormatException("Error: attempted to make testheight"
                         + "negative");
             }
         } catch (FormatException e) {
-            FormatException.reportError(e.getMessage());
+            error(e.getMessage());
         }
     }
 
-    /** This method iterates through LIST and constructs a string of the words
-     * with spaces inserted in between each word.
-     *  @return words with spaces. */
-    private String lineToString(ArrayList<String> list) {
-        String output = "";
-        for (int i = 0; i < list.size(); i += 1) {
-            output += list.get(i);
-            if (i < list.size() - 1) {
-                output += " ";
-            }
-        }
-        return output;
+    /** Store my settings in STATE[K .. K+SETTINGS-1]: everything that
+     *  affects how the words that follow are formatted, including any
+     *  paragraph skip held for the next paragraph.  Meaningful only
+     *  between paragraphs, when no words are pending. */
+    void saveSettings(int[] state, int k) {
+        state[k] = _textWidth;
+        state[k + 1] = _indent;
+        state[k + 2] = _parindent;
+        state[k + 3] = _parSkip;
+        state[k + 4] = _nextSkip;
+        state[k + 5] = _holding ? 1 : 0;
+        state[k + 6] = _fill ? 1 : 0;
+        state[k + 7] = _justify ? 1 : 0;
+        state[k + 8] = _optimal ? 1 : 0;
+        state[k + 9] = _firstPar ? 1 : 0;
+        state[k + 10] = _firstLine ? 1 : 0;
+    }
+
+    /** Restore the settings stored in STATE[K .. K+SETTINGS-1] by
+     *  saveSettings. */
+    void restoreSettings(int[] state, int k) {
+        _textWidth = state[k];
+        _indent = state[k + 1];
+        _parindent = state[k + 2];
+        _parSkip = state[k + 3];
+        _nextSkip = state[k + 4];
+        _holding = state[k + 5] != 0;
+        _fill = state[k + 6] != 0;
+        _justify = state[k + 7] != 0;
+        _optimal = state[k + 8] != 0;
+        _firstPar = state[k + 9] != 0;
+        _firstLine = state[k + 10] != 0;
     }
 
     /** Process the end of the current input line.  No effect if
@@ -159,17 +508,21 @@ class LineAssembler {
      *  adds a new complete line to the finished line queue and clears
      *  the line accumulator. */
     void newLine() {
-        if (!_fill && _wordLine.size() > 0) {
-            String indent = addSpaces(_firstLine ? _indent + _parindent
-                    : _indent);
-            for (String word : _wordLine) {
-                if (word.equals("")) {
+        if (!_fill && _numWords > 0) {
+            for (int i = 0; i < _numWords; i += 1) {
+                if (_lengths[i] == 0) {
                     return;
                 }
             }
-            String output = lineToString(_wordLine);
-            _pages.addLine(indent + output);
-            _wordLine.clear();
+            for (int k = 0; k < outputs(); k += 1) {
+                selectOutput(k);
+                _lineLength = 0;
+                appendSpaces(_firstLine ? _indent + _parindent : _indent);
+                appendWords(0, _numWords);
+                outputLine();
+            }
+            selectOutput(0);
+            clearWords();
             _firstLine = false;
         }
     }
@@ -179,123 +532,273 @@ class LineAssembler {
     void endParagraph() {
         finishWord();
         if (!_endnote) {
-            if (!_firstPar && _fill) {
-                writeBlankLines();
-            }
-            _firstPar = false;
-            if (_fill) {
-                processPhil();
+            if (_fill && _executor != null && _cache == null
+                && _outputs == null) {
+                submitParagraph(_firstPar ? 0 : _parSkip);
+                _firstPar = false;
+            } else if (_fill) {
+                boolean skip = !_firstPar && !_streamed;
+                _firstPar = false;
+                for (int k = 0; k < outputs(); k += 1) {
+                    selectOutput(k);
+                    if (skip) {
+                        writeBlankLines();
+                    }
+                    if (_cache != null) {
+                        fillCached();
+                    } else {
+                        fillParagraph();
+                    }
+                }
+                selectOutput(0);
             } else {
-                emitLine(_wordLine, _firstLine
-                        ? _indent + _parindent : _indent);
-                if (!_firstPar) {
+                _firstPar = false;
+                for (int k = 0; k < outputs(); k += 1) {
+                    selectOutput(k);
+                    emitLine(0, _numWords, _firstLine
+                             ? _indent + _parindent : _indent);
                     writeBlankLines();
                 }
+                selectOutput(0);
             }
-            _wordLine.clear();
+            clearWords();
             _firstLine = true;
+            _streamed = false;
+            _streamChars = 0;
             if (_holding) {
                 _parSkip = _nextSkip;
             }
+            publishCounts();
         }
     }
 
-    /** Transfer contents of LINE to _pages, adding INDENT characters of
-     *  indentation, and a total of SPACES spaces between words, evenly
-     *  distributed.  Assumes _words is not empty.
-     *  Clears _words and _chars. */
-    private void emitLine(ArrayList<String> line, int indent) {
-        String indentation = addSpaces(indent);
+    /** Transfer words FIRST through LAST-1 to _pages as one line, adding
+     *  INDENT characters of indentation, and justifying the line if
+     *  _justify. */
+    private void emitLine(int first, int last, int indent) {
+        emitLine(first, last, indent, charsIn(first, last));
+    }
+
+    /** As for emitLine(FIRST, LAST, INDENT), where the words contain
+     *  CHARS characters in all. */
+    private void emitLine(int first, int last, int indent, int chars) {
+        int indentation = Math.max(0, indent);
+        _lineLength = 0;
+        appendSpaces(indentation);
         if (_justify) {
-            _pages.addLine(indentation + justifyLine(line,
-                    indentation.length()));
+            justifyLine(first, last, indentation, chars);
         } else {
-            _pages.addLine(indentation + lineToString(line));
+            appendWords(first, last);
         }
+        outputLine();
     }
 
-    /** Writes _parSkip spaces to _pages. */
+    /** Send the line in _line to _pages. */
+    private void outputLine() {
+        _lineCount += 1;
+        pages().addLine(_line, 0, _lineLength);
+    }
+
+    /** Writes _parSkip blank lines to _pages, except at the top of a
+     *  page. */
     private void writeBlankLines() {
-        int i = _parSkip;
-        while (i > 0) {
-            if (!_pages.getFirstLine()) {
-                _pages.addLine("\n");
-                i -= 1;
-            }
+        for (int i = 0; i < _parSkip; i += 1) {
+            pages().addBlankLine();
         }
     }
+
     /** This method will separate words into lines and place the optimal
-     *  amount of words into each line outputting the lines as we go. */
+     *  amount of words into each line outputting the lines as we go.
+     *  The characters in the words of the current line are kept as a
+     *  running total, so that the time taken is linear in the length of
+     *  the paragraph. */
     private void processPhil() {
-        ArrayList<String> line = new ArrayList<String>();
+        removeBlankWords();
         int indent = _firstLine ? _indent + _parindent : _indent;
-        for (String word : _wordLine) {
-            if (word == null || word.matches("\\s")
-                    || word.matches("\\n")) {
-                continue;
-            }
-            int nonBlankChars = charsIn(line);
-            if (word.length() > _textWidth) {
-                if (line.size() > 0) {
-                    emitLine(line, indent);
+        int first = 0;
+        int chars = 0;
+        for (int i = 0; i < _numWords; i += 1) {
+            int len = _lengths[i];
+            if (len > _textWidth) {
+                if (i > first) {
+                    emitLine(first, i, indent, chars);
                     indent = _indent;
-                    line.clear();
                 }
-                line.add(word);
-                emitLine(line, indent);
+                emitLine(i, i + 1, indent, len);
                 indent = _indent;
-                line.clear();
+                first = i + 1;
+                chars = 0;
                 continue;
             }
-            if (nonBlankChars + word.length() + line.size() + indent
-                    > _textWidth) {
-                emitLine(line, indent);
-                line.clear();
+            if (chars + len + (i - first) + indent > _textWidth) {
+                emitLine(first, i, indent, chars);
+                first = i;
+                chars = 0;
                 indent = _indent;
             }
-            line.add(word);
+            chars += len;
         }
         boolean temp = _justify;
         _justify = false;
-        emitLine(line, indent);
+        emitLine(first, _numWords, indent, chars);
         _justify = temp;
     }
 
-    /** Justifies LINE and adds INDENT according to the specifications in the
-     * project description.
-     * @return a justified line. */
-    private String justifyLine(ArrayList<String> line, int indent) {
-        if (line.size() == 1) {
-            return line.get(0);
+    /** Separate words into lines as for processPhil, but choosing the
+     *  breaks that minimize the sum of the squares of the unused space at
+     *  the ends of all lines but the last (minimum raggedness).  A word
+     *  too long for a line goes on a line by itself.  Paragraphs of more
+     *  than OPTIMAL_WINDOW words are broken a window at a time, keeping
+     *  the lines in the first half of each window, so that the space
+     *  used does not grow with the length of the paragraph. */
+    private void breakOptimally() {
+        removeBlankWords();
+        int indent = _firstLine ? _indent + _parindent : _indent;
+        int first = 0;
+        while (_numWords - first > OPTIMAL_WINDOW) {
+            int last = first + OPTIMAL_WINDOW;
+            findBreaks(first, last, indent);
+            int mid = first + OPTIMAL_WINDOW / 2;
+            int end = _breakEnds[0];
+            for (int k = 1; k < _numBreaks && _breakEnds[k] <= mid; k += 1) {
+                end = _breakEnds[k];
+            }
+            for (int k = 0; first < end; k += 1) {
+                emitLine(first, _breakEnds[k], indent);
+                first = _breakEnds[k];
+                indent = _indent;
+            }
         }
-        String result = "";
-        int l = charsIn(line);
-        if (line.size() - 1 + l == _textWidth || !_justify) {
-            return lineToString(line);
+        findBreaks(first, _numWords, indent);
+        for (int k = 0; k < _numBreaks - 1; k += 1) {
+            emitLine(first, _breakEnds[k], indent);
+            first = _breakEnds[k];
+            indent = _indent;
         }
-        double b = _textWidth - indent - l;
-        if (b >= 3 * (line.size())) {
-            for (int i = 0; i < line.size(); i += 1) {
-                if (i != 0) {
-                    result = result + "   " + line.get(i);
-                } else {
-                    result = result + line.get(i);
+        boolean temp = _justify;
+        _justify = false;
+        emitLine(first, _numWords, indent);
+        _justify = temp;
+    }
+
+    /** Set _breakEnds[0 .. _numBreaks-1] to the ends of the lines that
+     *  minimize raggedness when words FIRST through LAST-1 are broken
+     *  into lines, the first of which has INDENT characters of
+     *  indentation and the last of which costs nothing if it fits.  Only
+     *  those lines that could fit are considered, so the time taken is
+     *  proportional to the number of words times the number of words
+     *  that fit on a line.  (Longer lines are skipped, except that the
+     *  first line may still fit with its different indentation.) */
+    private void findBreaks(int first, int last, int indent) {
+        int n = last - first;
+        if (_prefix == null || _prefix.length <= n) {
+            int size = Math.min(Math.max(2 * n, INITIAL_WORDS),
+                                OPTIMAL_WINDOW) + 1;
+            _prefix = new int[size];
+            _from = new int[size];
+            _costs = new long[size];
+            _breakEnds = new int[size];
+        }
+        int[] prefix = _prefix;
+        prefix[0] = 0;
+        for (int j = 0; j < n; j += 1) {
+            prefix[j + 1] = prefix[j] + _lengths[first + j];
+        }
+        long[] costs = _costs;
+        costs[0] = 0;
+        for (int j = 1; j <= n; j += 1) {
+            long best = Long.MAX_VALUE;
+            int from = j - 1;
+            int i = j - 1;
+            while (i >= 0) {
+                int slack = _textWidth - (i == 0 ? indent : _indent)
+                    - (prefix[j] - prefix[i]) - (j - i - 1);
+                if (slack < 0 && i < j - 1) {
+                    i = i > 0 ? 0 : -1;
+                    continue;
+                }
+                long cost = costs[i];
+                if (j < n && slack > 0) {
+                    cost += (long) slack * slack;
                 }
+                if (cost < best) {
+                    best = cost;
+                    from = i;
+                }
+                i -= 1;
+            }
+            costs[j] = best;
+            _from[j] = from;
+        }
+        _numBreaks = 0;
+        for (int j = n; j > 0; j = _from[j]) {
+            _numBreaks += 1;
+        }
+        for (int j = n, k = _numBreaks - 1; j > 0; j = _from[j], k -= 1) {
+            _breakEnds[k] = first + j;
+        }
+    }
+
+    /** Remove all words consisting of a single whitespace character, which
+     *  are not filled. */
+    private void removeBlankWords() {
+        int n = 0;
+        for (int i = 0; i < _numWords; i += 1) {
+            int start = _starts[i];
+            if (!isBlankChar(start, start + _lengths[i])) {
+                _starts[n] = start;
+                _lengths[n] = _lengths[i];
+                n += 1;
+            }
+        }
+        _numWords = n;
+    }
+
+    /** Justifies words FIRST through LAST-1 after INDENT characters of
+     *  indentation according to the specifications in the project
+     *  description, appending the result to the line buffer. */
+    private void justifyLine(int first, int last, int indent) {
+        justifyLine(first, last, indent, charsIn(first, last));
+    }
+
+    /** As for justifyLine(FIRST, LAST, INDENT), where the words contain
+     *  L characters in all.  The B blanks left over are spread over the
+     *  SIZE-1 gaps so that the first K gaps hold (int) (0.5 +
+     *  B*K/(SIZE-1)) of them in all, computed exactly in integers as
+     *  (2*B*K + SIZE-1) / (2*(SIZE-1)). */
+    private void justifyLine(int first, int last, int indent, int l) {
+        int size = last - first;
+        if (size == 1) {
+            appendWord(first);
+            return;
+        }
+        if (size - 1 + l == _textWidth || !_justify) {
+            appendWords(first, last);
+            return;
+        }
+        _justifiedCount += 1;
+        int b = _textWidth - indent - l;
+        if (b >= 3 * size) {
+            for (int i = first; i < last; i += 1) {
+                if (i != first) {
+                    appendSpaces(3);
+                }
+                appendWord(i);
             }
         } else {
+            long gaps = size - 1;
+            long twiceBlanks = 2L * b;
+            long numerator = gaps;
             int currNumSpaces = 0;
-            int prevNumSpaces;
-            int insertBlanks;
-            for (double i = 0; i < line.size(); i += 1) {
-                prevNumSpaces = currNumSpaces;
-                currNumSpaces = (int) (0.5 + b * i
-                        / (double) (line.size() - 1));
-                insertBlanks = currNumSpaces - prevNumSpaces;
-                result = result + addSpaces(Math.min(3, insertBlanks))
-                        + line.get((int) i);
+            appendWord(first);
+            for (int i = first + 1; i < last; i += 1) {
+                numerator += twiceBlanks;
+                int prevNumSpaces = currNumSpaces;
+                currNumSpaces = (int) (numerator / (2 * gaps));
+                appendSpaces(Math.min(3, currNumSpaces - prevNumSpaces));
+                appendWord(i);
             }
         }
-        return result;
     }
 
     /** A method that takes in a LINE and INDENT, and returns the output
@@ -304,31 +807,30 @@ class LineAssembler {
      * @param indent
      * @return justified line. */
     public String pubJustifyLine(ArrayList<String> line, int indent) {
-        return justifyLine(line, indent);
-    }
-
-    /** Returns NUM spaces.
-     * @return NUM characters of blank space. */
-    private String addSpaces(int num) {
-        String spaces = "";
-        for (int i = 0; i < num; i += 1) {
-            spaces += " ";
+        int numWords = _numWords;
+        for (String word : line) {
+            addWord(word);
         }
-        return spaces;
+        _lineLength = 0;
+        justifyLine(numWords, _numWords, indent);
+        _numWords = numWords;
+        return lineString();
     }
 
     /** Public version of addSpaces for unit testing. Take in NUM and
      * @return NUM spaces */
     public String pubAddSpaces(int num) {
-        return addSpaces(num);
+        _lineLength = 0;
+        appendSpaces(num);
+        return lineString();
     }
 
-    /** Determines the number of characters in WORDS.
-     *  @return number of characters in WORDS. */
-    private int charsIn(ArrayList<String> words) {
+    /** Determines the number of characters in words FIRST through LAST-1.
+     *  @return number of characters in those words. */
+    private int charsIn(int first, int last) {
         int count = 0;
-        for (String word : words) {
-            count += word.length();
+        for (int i = first; i < last; i += 1) {
+            count += _lengths[i];
         }
         return count;
     }
@@ -336,7 +838,114 @@ class LineAssembler {
     /** Public call to charsIn used for unit testing. Take in WORDS and
      * @return the number of characters in WORDS. */
     public int pubCharsIn(ArrayList<String> words) {
-        return charsIn(words);
+        int count = 0;
+        for (String word : words) {
+            count += word.length();
+        }
+        return count;
+    }
+
+    /** Append NUM blanks to the line buffer.  No effect if NUM <= 0. */
+    private void appendSpaces(int num) {
+        if (num > 0) {
+            reserveLine(num);
+            Arrays.fill(_line, _lineLength, _lineLength + num, ' ');
+            _lineLength += num;
+        }
+    }
+
+    /** Append word I to the line buffer. */
+    private void appendWord(int i) {
+        int len = _lengths[i];
+        reserveLine(len);
+        System.arraycopy(_chars, _starts[i], _line, _lineLength, len);
+        _lineLength += len;
+    }
+
+    /** Append words FIRST through LAST-1 to the line buffer, separated by
+     *  single blanks. */
+    private void appendWords(int first, int last) {
+        for (int i = first; i < last; i += 1) {
+            if (i != first) {
+                appendSpaces(1);
+            }
+            appendWord(i);
+        }
+    }
+
+    /** Return the contents of the line buffer. */
+    private String lineString() {
+        return new String(_line, 0, _lineLength);
+    }
+
+    /** Make room for NUM more characters in the line buffer. */
+    private void reserveLine(int num) {
+        if (_lineLength + num > _line.length) {
+            _line = Arrays.copyOf(_line, Math.max(2 * _line.length,
+                                                  _lineLength + num));
+        }
+    }
+
+    /** Make room for NUM more characters of word text. */
+    private void reserveChars(int num) {
+        if (_numChars + num > _chars.length) {
+            _chars = Arrays.copyOf(_chars, Math.max(2 * _chars.length,
+                                                    _numChars + num));
+        }
+    }
+
+    /** Add the word at _chars[START .. START+LEN-1] to the words being
+     *  accumulated. */
+    private void addSpan(int start, int len) {
+        if (_numWords == _starts.length) {
+            _starts = Arrays.copyOf(_starts, 2 * _numWords);
+            _lengths = Arrays.copyOf(_lengths, 2 * _numWords);
+        }
+        _starts[_numWords] = start;
+        _lengths[_numWords] = len;
+        _numWords += 1;
+    }
+
+    /** Add the words and lines counted since the last call to Metrics.
+     *  Counting them in fields, and publishing them once per paragraph,
+     *  keeps Metrics out of the loops over words and lines. */
+    private void publishCounts() {
+        if (_wordCount + _lineCount > 0) {
+            Metrics.add(Metrics.WORDS, _wordCount);
+            Metrics.add(Metrics.LINES, _lineCount);
+            Metrics.add(Metrics.JUSTIFIED_LINES, _justifiedCount);
+            _wordCount = _lineCount = _justifiedCount = 0;
+        }
+    }
+
+    /** Discard all accumulated words, keeping any unfinished current
+     *  word. */
+    private void clearWords() {
+        if (!_endnote) {
+            _wordCount += _numWords;
+        }
+        int pending = _numChars - _wordStart;
+        if (pending > 0) {
+            System.arraycopy(_chars, _wordStart, _chars, 0, pending);
+        }
+        _wordStart = 0;
+        _numChars = pending;
+        _numWords = 0;
+    }
+
+    /** Return true iff _chars[START .. END-1] is a single whitespace
+     *  character. */
+    private boolean isBlankChar(int start, int end) {
+        if (end - start != 1) {
+            return false;
+        }
+        switch (_chars[start]) {
+        case ' ': case '\t': case '\n': case '\u000B':
+        case '\f': case '\r':
+            return true;
+        default:
+            return false;
+        }
     }
 
     /** @return PageAssembler associated with the page. */
@@ -354,15 +963,24 @@ class LineAssembler {
         return _parindent;
     }
 
-    /** @return ArrayList of words _wordLine. Clears _wordLine to avoid double
-     *  printing endnotes. */
-    @SuppressWarnings("unchecked")
+    /** @return ArrayList of the accumulated words. Clears them to avoid
+     *  double printing endnotes. */
     public ArrayList<String> getWordLine() {
-        ArrayList<String> line = (ArrayList<String>) _wordLine.clone();
-        _wordLine.clear();
+        ArrayList<String> line = new ArrayList<String>(_numWords);
+        for (int i = 0; i < _numWords; i += 1) {
+            line.add(new String(_chars, _starts[i], _lengths[i]));
+        }
+        clearWords();
         return line;
     }
 
+    /** Add the accumulated words to STORE as one endnote, and clear
+     *  them. */
+    void storeWords(EndnoteStore store) {
+        store.add(_chars, _starts, _lengths, _numWords);
+        clearWords();
+    }
+
     /** Sets _endnote to ON. */
     public void setEndnote(boolean on) {
         _endnote = on;
@@ -373,9 +991,9 @@ class LineAssembler {
         return _endnote;
     }
 
-    /** @return String _currentWord. */
+    /** @return the current unfinished word. */
     public String getCurrentWord() {
-        return _currentWord;
+        return new String(_chars, _wordStart, _numChars - _wordStart);
     }
 
     /** @return boolean _justify. */
@@ -399,12 +1017,34 @@ class LineAssembler {
     }
 
     /** Destination given in constructor for formatted lines. */
-    private final PageAssembler _pages;
-    /** Array of words in a line. Size starts at 2 and must be
-     *  re-sized as the array grows. */
-    private ArrayList<String> _wordLine;
-    /** The current word we're working on. */
-    private String _currentWord;
+    private PageAssembler _pages;
+    /** Fills paragraphs in parallel, or null to fill them in turn. */
+    private ExecutorService _executor;
+    /** Batches submitted to _executor whose lines have not been sent to
+     *  _pages, oldest first. */
+    private ArrayDeque<Future<LineBuffer>> _pending;
+    /** Cache of the lines of filled paragraphs, or null. */
+    private ParagraphCache _cache;
+    /** Paragraphs not yet submitted to _executor, or null. */
+    private ParagraphBatch _batch;
+    /** Text of the words being accumulated, followed by the current word
+     *  we're working on.  Grows as needed. */
+    private char[] _chars;
+    /** Number of characters in use in _chars. */
+    private int _numChars;
+    /** Position in _chars of the start of the current word, which extends
+     *  to _numChars. */
+    private int _wordStart;
+    /** Start positions in _chars of the accumulated words. */
+    private int[] _starts;
+    /** Lengths of the accumulated words. */
+    private int[] _lengths;
+    /** Number of accumulated words. */
+    private int _numWords;
+    /** Buffer in which output lines are assembled. */
+    private char[] _line;
+    /** Number of characters in use in _line. */
+    private int _lineLength;
     /** True if we should be justifying lines. */
     private boolean _justify;
     /** Number of characters and/or spaces allowed on the current line. */
@@ -417,6 +1057,34 @@ class LineAssembler {
     private int _parSkip;
     /** True if we should be filling lines. */
     private boolean _fill;
+    /** True if filled lines are broken by breakOptimally rather than
+     *  processPhil. */
+    private boolean _optimal;
+    /** PageAssemblers to send lines to in turn, or null if lines go only
+     *  to _pages. */
+    private PageAssembler[] _outputs;
+    /** Widths to which lines sent to each of _outputs are filled, or
+     *  null if they are filled to _textWidth. */
+    private int[] _widths;
+    /** True iff filling paragraphs as their words arrive. */
+    private boolean _streaming;
+    /** True iff lines of the current paragraph have been streamed. */
+    private boolean _streamed;
+    /** Characters in the words of the line being streamed. */
+    private int _streamChars;
+    /** Sums of the lengths of the first K words of the window being
+     *  broken by findBreaks, for each K. */
+    private int[] _prefix;
+    /** Least cost of breaking the first K words of the window into lines,
+     *  for each K. */
+    private long[] _costs;
+    /** Start, relative to the window, of the last line in the least-cost
+     *  breaking of the first K words of the window, for each K. */
+    private int[] _from;
+    /** Ends of the lines chosen by findBreaks. */
+    private int[] _breakEnds;
+    /** Number of lines chosen by findBreaks. */
+    private int _numBreaks;
     /** True if we are assembling lines of an endnote. */
     private boolean _endnote;
     /** Indicates whether or not we are processing the first line in a
@@ -425,9 +1093,17 @@ class LineAssembler {
     /** Indicates whether or not we are processing the first paragraph of
      * a file. */
     private boolean _firstPar;
+    /** Words of the main text and lines formed since the counts were
+     *  last added to Metrics.  Words of endnotes are counted when they
+     *  are written in the main text. */
+    private int _wordCount, _lineCount;
+    /** Lines justified since the counts were last added to Metrics. */
+    private int _justifiedCount;
     /** True if we are holding a current value for _nextSkip. */
     private boolean _holding;
     /** Number of lines to be inserted after the next paragraph. */
     private int _nextSkip;
+    /** Where errors in settings are reported, or null. */
+    private Diagnostics _diagnostics;
 }
 
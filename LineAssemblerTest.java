@@ -1,8 +1,12 @@
 package tex61;
 
 import java.io.PrintWriter;
+import java.io.StringReader;
 import java.io.StringWriter;
 import java.util.ArrayList;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import org.junit.Test;
 import static org.junit.Assert.*;
@@ -129,6 +133,300 @@ public class LineAssemblerTest {
         }
     }
 
+    /** Return WORDS justified as by the original, floating-point version
+     *  of LineAssembler.justifyLine, to a width of WIDTH after INDENT
+     *  characters of indentation (which are not included). */
+    private static String justifyInDoubles(ArrayList<String> words,
+                                           int width, int indent) {
+        int size = words.size();
+        int l = 0;
+        for (String word : words) {
+            l += word.length();
+        }
+        if (size == 1 || size - 1 + l == width) {
+            return String.join(" ", words);
+        }
+        StringBuilder result = new StringBuilder();
+        double b = width - indent - l;
+        if (b >= 3 * size) {
+            return String.join("   ", words);
+        }
+        int currNumSpaces = 0;
+        for (double i = 0; i < size; i += 1) {
+            int prevNumSpaces = currNumSpaces;
+            currNumSpaces = (int) (0.5 + b * i / (double) (size - 1));
+            for (int k = Math.min(3, currNumSpaces - prevNumSpaces); k > 0;
+                 k -= 1) {
+                result.append(' ');
+            }
+            result.append(words.get((int) i));
+        }
+        return result.toString();
+    }
+
+    /** Checks that justification in integers gives the same lines as the
+     *  original floating-point algorithm, for random lines, widths and
+     *  indentations, including lines too long for their width. */
+    @Test
+    public void testJustifyMatchesDoubles() {
+        setupAssembler();
+        Random random = new Random(61);
+        for (int trial = 0; trial < 100000; trial += 1) {
+            ArrayList<String> words = new ArrayList<String>();
+            int size = 1 + random.nextInt(random.nextBoolean() ? 4 : 40);
+            int l = 0;
+            for (int i = 0; i < size; i += 1) {
+                int len = 1 + random.nextInt(12);
+                words.add("abcdefghijkl".substring(0, len));
+                l += len;
+            }
+            int indent = random.nextInt(8);
+            int width = Math.max(1, l + size - 1 + indent
+                                 + random.nextInt(5 * size + 10) - 5);
+            normalLine.setTextWidth(width);
+            assertEquals(words + " " + width + " " + indent,
+                         justifyInDoubles(words, width, indent),
+                         normalLine.pubJustifyLine(words, indent));
+        }
+    }
+
+    /** Checks that words built from many pieces of text are assembled
+     *  correctly, including ones longer than the initial buffers. */
+    @Test
+    public void testLongWords() {
+        setupAssembler();
+        StringBuilder expected = new StringBuilder();
+        for (int i = 0; i < 500; i += 1) {
+            normalLine.addText("ab");
+            normalLine.addText(new char[] { 'x', 'c', 'y' }, 1, 2);
+            expected.append("abc");
+        }
+        assertEquals(expected.toString(), normalLine.getCurrentWord());
+        normalLine.addWord("first");
+        normalLine.finishWord();
+        normalLine.addText("last");
+        normalLine.finishWord();
+        ArrayList<String> words = normalLine.getWordLine();
+        assertEquals(3, words.size());
+        assertEquals("first", words.get(0));
+        assertEquals(expected.toString(), words.get(1));
+        assertEquals("last", words.get(2));
+        assertEquals("", normalLine.getCurrentWord());
+    }
+
+    /** Checks the lines produced by filling and justifying a paragraph. */
+    @Test
+    public void testFill() {
+        setupAssembler();
+        normalLine.setTextWidth(20);
+        for (String word : "Now is the time for all good men to come to"
+                 .split(" ")) {
+            normalLine.addText(word);
+            normalLine.finishWord();
+        }
+        normalLine.endParagraph();
+        writer.flush();
+        assertEquals("   Now  is the  time\n"
+                     + "for all  good men to\n"
+                     + "come to\n", output.toString());
+    }
+
+    /** Checks that optimal line breaking evens out the lengths of lines
+     *  that greedy filling leaves ragged. */
+    @Test
+    public void testOptimalFill() {
+        setupAssembler();
+        normalLine.setTextWidth(6);
+        normalLine.setParIndentation(0);
+        normalLine.setJustify(false);
+        normalLine.setOptimalBreaking(true);
+        for (String word : "aaa bb cc ddddd".split(" ")) {
+            normalLine.addText(word);
+            normalLine.finishWord();
+        }
+        normalLine.endParagraph();
+        writer.flush();
+        assertEquals("aaa\nbb cc\nddddd\n", output.toString());
+    }
+
+    /** Checks that a paragraph with very many words to a line is filled
+     *  in time linear in its length. */
+    @Test(timeout = 10000)
+    public void testWideFill() {
+        setupAssembler();
+        normalLine.setTextWidth(1 << 24);
+        normalLine.setParIndentation(0);
+        StringBuilder words = new StringBuilder();
+        Random random = new Random(61);
+        for (int i = 0; i < 200000; i += 1) {
+            String word = Integer.toString(random.nextInt(), 36);
+            words.append(i == 0 ? "" : " ").append(word);
+            normalLine.addText(word);
+            normalLine.finishWord();
+        }
+        normalLine.endParagraph();
+        writer.flush();
+        assertEquals(words + "\n", output.toString());
+    }
+
+    /** Return the result of formatting INPUT, filling paragraphs as
+     *  their words arrive iff STREAMING. */
+    private String format(String input, boolean streaming) {
+        StringWriter result = new StringWriter();
+        PrintWriter out = new PrintWriter(result);
+        Controller controller = new Controller(new PagePrinter(out));
+        controller.setStreaming(streaming);
+        new InputParser(new StringReader(input), controller).process();
+        out.close();
+        return result.toString();
+    }
+
+    /** Checks that filling paragraphs as their words arrive gives the
+     *  same output as filling whole paragraphs, and outputs each line
+     *  without waiting for the end of its paragraph. */
+    @Test
+    public void testStreamingFill() {
+        for (String distribution : Corpus.DISTRIBUTIONS) {
+            for (String mode : Corpus.MODES) {
+                String input =
+                    new Corpus(61, distribution, mode).generate(5000);
+                assertEquals(distribution + " " + mode,
+                             format(input, false), format(input, true));
+            }
+        }
+        ArrayList<String> lines = new ArrayList<String>();
+        normalLine = new LineAssembler(new PageCollector(lines), false);
+        normalLine.setStreaming(true);
+        normalLine.setTextWidth(10);
+        normalLine.setParIndentation(0);
+        for (int i = 0; i < 100; i += 1) {
+            normalLine.addWord("word");
+        }
+        assertEquals(49, lines.size());
+        assertEquals(2, normalLine.getWordLine().size());
+        normalLine.endParagraph();
+        assertEquals(50, lines.size());
+    }
+
+    /** Return the lines of INPUT formatted at each of WIDTHS, in a single
+     *  pass. */
+    private ArrayList<ArrayList<String>> formatWidths(String input,
+                                                      int... widths) {
+        ArrayList<ArrayList<String>> result =
+            new ArrayList<ArrayList<String>>();
+        PageAssembler[] pages = new PageAssembler[widths.length];
+        for (int k = 0; k < widths.length; k += 1) {
+            result.add(new ArrayList<String>());
+            pages[k] = new PageCollector(result.get(k));
+        }
+        Controller controller = new Controller(pages, widths);
+        new InputParser(new StringReader(input), controller).process();
+        return result;
+    }
+
+    /** Return the lines of INPUT formatted by an ordinary Controller at
+     *  the text width WIDTH, which replaces every text width INPUT sets.
+     *  INPUT must set none within endnotes. */
+    private ArrayList<String> formatWidth(String input, int width) {
+        ArrayList<String> result = new ArrayList<String>();
+        String text = "\\textwidth{" + width + "}"
+            + input.replaceAll("\\\\textwidth\\{\\d+\\}",
+                               "\\\\textwidth{" + width + "}");
+        new InputParser(new StringReader(text),
+                        new Controller(new PageCollector(result))).process();
+        return result;
+    }
+
+    /** Checks that formatting at several widths at once gives the same
+     *  lines as formatting at each width alone, with endnotes at their
+     *  own width. */
+    @Test
+    public void testWidths() {
+        for (String mode : Corpus.MODES) {
+            String input = new Corpus(61, "long", mode).generate(5000)
+                + "\\textwidth{20}\\textheight{30}"
+                + "\\endnote{a note that is long enough to be filled to "
+                + "the width of endnotes, rather than to that of the text} "
+                + "the end";
+            int[] widths = { 30, 50, 72, 100 };
+            ArrayList<ArrayList<String>> all = formatWidths(input, widths);
+            for (int k = 0; k < widths.length; k += 1) {
+                assertEquals(mode + " " + widths[k],
+                             formatWidth(input, widths[k]), all.get(k));
+            }
+            if (!mode.equals("nofill")) {
+                assertNotEquals(all.get(0), all.get(3));
+            }
+        }
+        ArrayList<String> lines =
+            formatWidths("Some words that are long enough to fill a line.",
+                         15).get(0);
+        assertEquals(4, lines.size());
+        assertEquals("   Some   words\n", lines.get(0));
+        assertEquals("a line.\n", lines.get(3));
+    }
+
+    /** Checks that a paragraph longer than the optimal breaking window
+     *  keeps all its words, in order, in lines that fit. */
+    @Test
+    public void testLongOptimalFill() {
+        setupAssembler();
+        normalLine.setOptimalBreaking(true);
+        StringBuilder words = new StringBuilder();
+        Random random = new Random(61);
+        for (int i = 0; i < 20000; i += 1) {
+            String word = Integer.toString(random.nextInt(), 36);
+            words.append(" ").append(word);
+            normalLine.addText(word);
+            normalLine.finishWord();
+        }
+        normalLine.endParagraph();
+        writer.flush();
+        for (String line : output.toString().split("\n")) {
+            assertTrue(line.length() <= 72);
+        }
+        assertEquals(words.toString().trim().replaceAll(" +", " "),
+                     output.toString().trim().replaceAll("\\s+", " "));
+    }
+
+    /** Return the output of formatting many paragraphs of generated text,
+     *  filling them on THREADS threads if THREADS > 1. */
+    private String formatParagraphs(int threads) {
+        StringWriter out = new StringWriter();
+        PrintWriter printer = new PrintWriter(out);
+        Controller controller = new Controller(printer);
+        ExecutorService pool =
+            threads > 1 ? Executors.newFixedThreadPool(threads) : null;
+        controller.setExecutor(pool);
+        StringBuilder input = new StringBuilder("\\textheight{7}");
+        Random random = new Random(61);
+        for (int p = 0; p < 400; p += 1) {
+            for (int w = random.nextInt(200); w >= 0; w -= 1) {
+                input.append(Integer.toString(random.nextInt(), 36));
+                input.append(w % 13 == 0 ? "\n" : " ");
+            }
+            if (p % 50 == 0) {
+                input.append("\n\\nofill\nA nofill line\n\\fill");
+            }
+            input.append(p % 7 == 0 ? "\\textwidth{50}" : "\\textwidth{72}");
+            input.append("\n\n");
+        }
+        new InputParser(new StringReader(input.toString()), controller)
+            .process();
+        if (pool != null) {
+            pool.shutdown();
+        }
+        printer.close();
+        return out.toString();
+    }
+
+    /** Checks that filling paragraphs in parallel does not change the
+     *  output. */
+    @Test
+    public void testParallelFill() {
+        assertEquals(formatParagraphs(1), formatParagraphs(4));
+    }
+
     /** Collects output to a PrintWriter. */
     private StringWriter output;
     /** Collects output from a PageAssembler. */
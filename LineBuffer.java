@@ -0,0 +1,179 @@
+package tex61;
+
+import java.util.Arrays;
+
+/** A PageAssembler that records the lines and blank lines sent to it,
+ *  without paging them, so that they may later be replayed in order to
+ *  another PageAssembler.  Lines are stored compactly in one character
+ *  array, each with the text height (if any) set before it.
+ *  @author Austin Gandy
+ */
+class LineBuffer extends PageAssembler {
+
+    /** Initial sizes of the character and line arrays. */
+    private static final int INITIAL_CHARS = 1024, INITIAL_LINES = 32;
+
+    /** A new, empty LineBuffer. */
+    LineBuffer() {
+        _chars = new char[INITIAL_CHARS];
+        _ends = new int[INITIAL_LINES];
+        _heights = new int[INITIAL_LINES];
+    }
+
+    /** Record the line BUF[START .. END-1]. */
+    @Override
+    void addLine(char[] buf, int start, int end) {
+        int len = end - start;
+        if (_numChars + len > _chars.length) {
+            _chars = Arrays.copyOf(_chars, Math.max(2 * _chars.length,
+                                                    _numChars + len));
+        }
+        System.arraycopy(buf, start, _chars, _numChars, len);
+        _numChars += len;
+        addEnd(_numChars);
+    }
+
+    /** Record a blank line. */
+    @Override
+    void addBlankLine() {
+        addEnd(~_numChars);
+    }
+
+    /** Record VAL as the text height for the following lines.  A
+     *  LineBuffer does not itself form pages. */
+    @Override
+    void setTextHeight(int val) {
+        _height = val;
+    }
+
+    /** Record LINE. */
+    @Override
+    void write(String line) {
+        addLine(line);
+    }
+
+    /** Record a blank line. */
+    @Override
+    void write() {
+        addBlankLine();
+    }
+
+    /** Send all recorded lines and blank lines, in order, to PAGES. */
+    void replay(PageAssembler pages) {
+        replay(pages, 0, _numLines);
+    }
+
+    /** Send recorded lines and blank lines FROM through TO-1, in order,
+     *  to PAGES, preceding them by any text heights recorded for them. */
+    void replay(PageAssembler pages, int from, int to) {
+        int start = start(from);
+        int height = 0;
+        for (int i = from; i < to; i += 1) {
+            if (_heights[i] != height) {
+                height = _heights[i];
+                pages.setTextHeight(height);
+            }
+            int end = _ends[i];
+            if (end < 0) {
+                pages.addBlankLine();
+            } else {
+                pages.addLine(_chars, start, end);
+                start = end;
+            }
+        }
+    }
+
+    /** Return the index of the first line or blank line in which I differ
+     *  from OTHER, or the number of lines in the shorter of us if one is
+     *  a prefix of the other. */
+    int firstDifference(LineBuffer other) {
+        int n = Math.min(_numLines, other._numLines);
+        int i = 0;
+        while (i < n && sameLine(i, other, i)) {
+            i += 1;
+        }
+        return i;
+    }
+
+    /** Return the number of lines and blank lines, up to LIMIT, that are
+     *  the same at the ends of me and OTHER. */
+    int commonSuffix(LineBuffer other, int limit) {
+        int i = _numLines - 1, j = other._numLines - 1;
+        int n = 0;
+        while (n < limit && sameLine(i - n, other, j - n)) {
+            n += 1;
+        }
+        return n;
+    }
+
+    /** Return the number of lines and blank lines recorded. */
+    int size() {
+        return _numLines;
+    }
+
+    /** Release any unused space in my arrays. */
+    void trim() {
+        _chars = Arrays.copyOf(_chars, _numChars);
+        _ends = Arrays.copyOf(_ends, Math.max(_numLines, 1));
+        _heights = Arrays.copyOf(_heights, _ends.length);
+    }
+
+    /** Return the estimated memory used by my arrays, in bytes. */
+    int bytes() {
+        return 2 * _chars.length + 8 * _ends.length;
+    }
+
+    /** Discard all recorded lines. */
+    void clear() {
+        _numChars = _numLines = _height = 0;
+    }
+
+    /** Record the end of a line at character position END, or a blank
+     *  line if END is the complement of a position. */
+    private void addEnd(int end) {
+        if (_numLines == _ends.length) {
+            _ends = Arrays.copyOf(_ends, 2 * _numLines);
+            _heights = Arrays.copyOf(_heights, 2 * _numLines);
+        }
+        _ends[_numLines] = end;
+        _heights[_numLines] = _height;
+        _numLines += 1;
+    }
+
+    /** Return the position in _chars of the start of line I. */
+    private int start(int i) {
+        if (i == 0) {
+            return 0;
+        }
+        int end = _ends[i - 1];
+        return end < 0 ? ~end : end;
+    }
+
+    /** Return true iff my line I and line J of OTHER are both blank or
+     *  both have the same text, and have the same text height. */
+    private boolean sameLine(int i, LineBuffer other, int j) {
+        int end0 = _ends[i], end1 = other._ends[j];
+        if (_heights[i] != other._heights[j] || (end0 < 0) != (end1 < 0)) {
+            return false;
+        } else if (end0 < 0) {
+            return true;
+        }
+        return Arrays.equals(_chars, start(i), end0,
+                             other._chars, other.start(j), end1);
+    }
+
+    /** Characters of the recorded lines. */
+    private char[] _chars;
+    /** Number of characters in _chars. */
+    private int _numChars;
+    /** For each recorded line, the position in _chars just past its end,
+     *  or for a blank line, the complement (~) of the current position. */
+    private int[] _ends;
+    /** For each recorded line, the text height set before it, or 0 if
+     *  none was set. */
+    private int[] _heights;
+    /** The text height last set, or 0 if none. */
+    private int _height;
+    /** Number of recorded lines. */
+    private int _numLines;
+}
@@ -0,0 +1,381 @@
+package tex61;
+
+import java.util.Arrays;
+import java.util.List;
+
+import static tex61.FormatException.reportError;
+
+/** The macros defined in a document by \def{NAME}{BODY}.  Each body is
+ *  broken into tokens once, when it is defined, and stored as an array
+ *  of token records referring to a private copy of its characters.  The
+ *  first time a macro is used (after any macro is defined), its body is
+ *  expanded into a stream of primitive operations, with any commands in
+ *  it looked up and any macros it uses expanded in turn; that stream is
+ *  cached and replayed directly into a Controller on each use.
+ *  @author Austin Gandy
+ */
+class MacroTable {
+
+    /** Deepest nesting of macros within macros allowed in an expansion. */
+    static final int MAX_DEPTH = 32;
+    /** Largest number of operations allowed in an expansion. */
+    static final int MAX_EXPANSION = 1 << 20;
+
+    /** Kinds of operation in a body or expansion.  A body holds blanks,
+     *  ends of lines and paragraphs, text, and commands with or without
+     *  arguments.  In an expansion, commands are resolved to a
+     *  CommandTable.Command, and macros have been expanded. */
+    private static final int
+        BLANK = Lexer.BLANK_TOKEN,
+        EOL = Lexer.EOL_TOKEN,
+        EOP = Lexer.EOP_TOKEN,
+        TEXT = Lexer.TEXT_TOKEN,
+        COMMAND = Lexer.COMMAND_TOKEN;
+
+    /** Number of ints in each operation record: kind, start and end of
+     *  text or of a command's argument (start -1 if none), and start and
+     *  end of a command's name (in a body) or index of its Command (in an
+     *  expansion). */
+    private static final int RECORD = 5;
+
+    /** A new, empty table. */
+    MacroTable() {
+        _macros = new Macro[INITIAL_SIZE];
+        _lexer = new Lexer(new char[0], 0, 0);
+    }
+
+    /** Return true iff no macros are defined. */
+    boolean isEmpty() {
+        return _count == 0;
+    }
+
+    /** Append to LOG, from now on, the name and then the body of each
+     *  macro successfully defined, or stop doing so if LOG is null.
+     *  Defining them again in the same order recreates the table. */
+    void setLog(List<char[]> log) {
+        _log = log;
+    }
+
+    /** Define the macro whose name is NAME[NAMESTART .. NAMEEND-1] to
+     *  have the body BODY[BODYSTART .. BODYEND-1], replacing any previous
+     *  definition.  Reports an error if the body is malformed. */
+    void define(char[] name, int nameStart, int nameEnd,
+                char[] body, int bodyStart, int bodyEnd) {
+        if (nameEnd == nameStart) {
+            reportError("missing macro name");
+        }
+        boolean alpha = !Arrays.equals(name, nameStart, nameEnd,
+                                       DEF, 0, DEF.length);
+        for (int k = nameStart; k < nameEnd; k += 1) {
+            char c = name[k];
+            alpha &= (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z');
+        }
+        if (!alpha) {
+            reportError("bad macro name: %s",
+                        new String(name, nameStart, nameEnd - nameStart));
+        }
+        Macro macro =
+            new Macro(Arrays.copyOfRange(name, nameStart, nameEnd),
+                      Arrays.copyOfRange(body, bodyStart, bodyEnd));
+        compile(macro);
+        put(macro);
+        _version += 1;
+        if (_log != null) {
+            _log.add(macro._name);
+            _log.add(macro._body);
+        }
+    }
+
+    /** Return the macro named BUF[START .. END-1], or null if there is
+     *  none. */
+    Macro lookup(char[] buf, int start, int end) {
+        int hash = CommandTable.hash(buf, start, end);
+        int mask = _macros.length - 1;
+        for (int i = hash & mask; _macros[i] != null; i = (i + 1) & mask) {
+            if (_macros[i].named(buf, start, end, hash)) {
+                return _macros[i];
+            }
+        }
+        return null;
+    }
+
+    /** Perform the body of MACRO on OUT. */
+    void expand(Macro macro, Controller out) {
+        Expansion expansion = macro._expansion;
+        if (expansion == null || macro._version != _version) {
+            expansion = new Expansion();
+            expansion.append(this, macro, 0);
+            macro._expansion = expansion;
+            macro._version = _version;
+        }
+        expansion.replay(out);
+    }
+
+    /** A defined macro. */
+    static final class Macro {
+
+        /** A macro named NAME with body BODY. */
+        private Macro(char[] name, char[] body) {
+            _name = name;
+            _hash = CommandTable.hash(name, 0, name.length);
+            _body = body;
+        }
+
+        /** Return my name. */
+        String name() {
+            return new String(_name);
+        }
+
+        /** Return true iff my name is BUF[START .. END-1], whose hash is
+         *  HASH. */
+        private boolean named(char[] buf, int start, int end, int hash) {
+            return hash == _hash
+                && Arrays.equals(_name, 0, _name.length, buf, start, end);
+        }
+
+        /** My name. */
+        private final char[] _name;
+        /** Hash of _name. */
+        private final int _hash;
+        /** Characters of my body. */
+        private final char[] _body;
+        /** Operation records of my body, referring to _body. */
+        private int[] _ops;
+        /** Number of records in _ops. */
+        private int _numOps;
+        /** My cached expansion, or null. */
+        private Expansion _expansion;
+        /** Value of MacroTable._version when _expansion was made. */
+        private int _version;
+    }
+
+    /** The operations performed by a macro, with all commands resolved
+     *  and all macros expanded. */
+    private static final class Expansion {
+
+        /** A new, empty expansion. */
+        Expansion() {
+            _ops = new int[RECORD * 8];
+            _chars = new char[64];
+            _commands = new CommandTable.Command[4];
+        }
+
+        /** Append the expansion of MACRO, which is nested DEPTH macros
+         *  deep, using the macros in TABLE. */
+        void append(MacroTable table, Macro macro, int depth) {
+            if (depth >= MAX_DEPTH) {
+                reportError("macros nested too deeply: \\%s", macro.name());
+            }
+            int[] ops = macro._ops;
+            char[] body = macro._body;
+            for (int r = 0; r < macro._numOps * RECORD; r += RECORD) {
+                int kind = ops[r];
+                if (kind != COMMAND) {
+                    add(kind, body, ops[r + 1], ops[r + 2], -1);
+                    continue;
+                }
+                int nameStart = ops[r + 3], nameEnd = ops[r + 4];
+                Macro inner = table.lookup(body, nameStart, nameEnd);
+                if (inner != null) {
+                    if (ops[r + 1] >= 0) {
+                        reportError("macro \\%s takes no argument",
+                                    inner.name());
+                    }
+                    append(table, inner, depth + 1);
+                    continue;
+                }
+                CommandTable.Command command =
+                    CommandTable.lookup(body, nameStart, nameEnd);
+                if (command == null) {
+                    reportError("unknown command: %s",
+                                new String(body, nameStart,
+                                           nameEnd - nameStart));
+                }
+                if (_numCommands == _commands.length) {
+                    _commands = Arrays.copyOf(_commands, 2 * _numCommands);
+                }
+                _commands[_numCommands] = command;
+                add(COMMAND, body, ops[r + 1], ops[r + 2], _numCommands);
+                _numCommands += 1;
+            }
+        }
+
+        /** Perform my operations on OUT. */
+        void replay(Controller out) {
+            for (int r = 0; r < _numOps * RECORD; r += RECORD) {
+                switch (_ops[r]) {
+                case BLANK:
+                    out.endWord();
+                    break;
+                case EOL:
+                    out.addNewLine();
+                    break;
+                case EOP:
+                    out.endParagraph();
+                    break;
+                case TEXT:
+                    out.addText(_chars, _ops[r + 1], _ops[r + 2]);
+                    break;
+                default:
+                    if (_ops[r + 1] < 0) {
+                        _commands[_ops[r + 3]].execute(out, null, 0, 0);
+                    } else {
+                        _commands[_ops[r + 3]].execute(out, _chars,
+                                                       _ops[r + 1],
+                                                       _ops[r + 2]);
+                    }
+                }
+            }
+        }
+
+        /** Add an operation of kind KIND, with text or argument
+         *  BUF[START .. END-1] (none if START < 0), and command index
+         *  COMMAND. */
+        private void add(int kind, char[] buf, int start, int end,
+                         int command) {
+            if (_numOps == MAX_EXPANSION) {
+                reportError("macro expansion too long");
+            }
+            if (RECORD * (_numOps + 1) > _ops.length) {
+                _ops = Arrays.copyOf(_ops, 2 * _ops.length);
+            }
+            int r = RECORD * _numOps;
+            _ops[r] = kind;
+            _ops[r + 1] = -1;
+            _ops[r + 3] = command;
+            if (start >= 0) {
+                int len = end - start;
+                if (_numChars + len > _chars.length) {
+                    _chars = Arrays.copyOf(_chars, Math.max(2 * _chars.length,
+                                                            _numChars + len));
+                }
+                System.arraycopy(buf, start, _chars, _numChars, len);
+                _ops[r + 1] = _numChars;
+                _numChars += len;
+                _ops[r + 2] = _numChars;
+            }
+            _numOps += 1;
+        }
+
+        /** Operation records. */
+        private int[] _ops;
+        /** Number of records in _ops. */
+        private int _numOps;
+        /** Text and arguments of the operations. */
+        private char[] _chars;
+        /** Number of characters in _chars. */
+        private int _numChars;
+        /** Commands of the operations. */
+        private CommandTable.Command[] _commands;
+        /** Number of commands in _commands. */
+        private int _numCommands;
+    }
+
+    /** Break the body of MACRO into operation records. */
+    private void compile(Macro macro) {
+        char[] body = macro._body;
+        int[] ops = new int[RECORD * 8];
+        int n = 0;
+        _lexer.reset(body, 0, body.length);
+        while (true) {
+            int kind = _lexer.next();
+            int start = _lexer.start(), end = _lexer.end();
+            int argStart = -1, argEnd = -1;
+            switch (kind) {
+            case Lexer.EOF_TOKEN:
+                macro._ops = ops;
+                macro._numOps = n;
+                return;
+            case Lexer.BLANK_TOKEN:
+            case Lexer.EOL_TOKEN:
+            case Lexer.EOP_TOKEN:
+                start = end = -1;
+                break;
+            case Lexer.ESCAPED_CHAR_TOKEN:
+            case Lexer.TEXT_TOKEN:
+                kind = TEXT;
+                break;
+            case Lexer.COMMAND_ARG_TOKEN:
+                if (!_lexer.readArgument()) {
+                    reportError("bad argument to \\%s",
+                                new String(body, start, end - start));
+                }
+                argStart = _lexer.start();
+                argEnd = _lexer.end();
+                kind = COMMAND;
+                break;
+            case Lexer.COMMAND_TOKEN:
+                kind = COMMAND;
+                break;
+            default:
+                reportError("unexpected character: %s", _lexer.text());
+            }
+            if (kind == COMMAND
+                && Arrays.equals(body, start, end, DEF, 0, DEF.length)) {
+                reportError("\\def may not be used in a macro body");
+            }
+            if (RECORD * (n + 1) > ops.length) {
+                ops = Arrays.copyOf(ops, 2 * ops.length);
+            }
+            int r = RECORD * n;
+            ops[r] = kind;
+            if (kind == COMMAND) {
+                ops[r + 1] = argStart;
+                ops[r + 2] = argEnd;
+                ops[r + 3] = start;
+                ops[r + 4] = end;
+            } else {
+                ops[r + 1] = start;
+                ops[r + 2] = end;
+            }
+            n += 1;
+        }
+    }
+
+    /** Add MACRO to the hash table, replacing any macro of the same
+     *  name, and growing the table as needed. */
+    private void put(Macro macro) {
+        int mask = _macros.length - 1;
+        int i;
+        for (i = macro._hash & mask; _macros[i] != null; i = (i + 1) & mask) {
+            if (Arrays.equals(_macros[i]._name, macro._name)) {
+                _macros[i] = macro;
+                return;
+            }
+        }
+        _macros[i] = macro;
+        _count += 1;
+        if (4 * _count > _macros.length) {
+            Macro[] old = _macros;
+            _macros = new Macro[2 * old.length];
+            mask = _macros.length - 1;
+            for (Macro m : old) {
+                if (m != null) {
+                    for (i = m._hash & mask; _macros[i] != null;
+                         i = (i + 1) & mask) {
+                        continue;
+                    }
+                    _macros[i] = m;
+                }
+            }
+        }
+    }
+
+    /** Name of the command that defines macros. */
+    static final char[] DEF = "def".toCharArray();
+
+    /** Initial size of _macros. */
+    private static final int INITIAL_SIZE = 16;
+
+    /** Hash table of macros, with open addressing. */
+    private Macro[] _macros;
+    /** Number of macros in _macros. */
+    private int _count;
+    /** Incremented whenever a macro is defined, invalidating all cached
+     *  expansions. */
+    private int _version;
+    /** Breaks macro bodies into tokens. */
+    private final Lexer _lexer;
+    /** Receives the name and body of each macro defined, or null. */
+    private List<char[]> _log;
+}
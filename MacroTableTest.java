@@ -0,0 +1,94 @@
+package tex61;
+
+import java.io.PrintWriter;
+import java.io.StringReader;
+import java.io.StringWriter;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/** Unit tests of MacroTable and \def.
+ *  @author Austin Gandy
+ */
+public class MacroTableTest {
+
+    /** Text of a paragraph used in the tests. */
+    private static final String PARAGRAPH =
+        "A paragraph of ordinary text that is long enough to be filled "
+        + "across a few lines of output.\n\n";
+
+    /** Return the output of formatting INPUT, using regular expressions
+     *  iff REGEX. */
+    private String format(String input, boolean regex) {
+        StringWriter output = new StringWriter();
+        PrintWriter writer = new PrintWriter(output);
+        InputParser.setRegexLexer(regex);
+        try {
+            Controller controller = new Controller(writer);
+            new InputParser(new StringReader(input), controller).process();
+        } finally {
+            InputParser.setRegexLexer(false);
+        }
+        writer.close();
+        return output.toString();
+    }
+
+    /** Return the message of the error reported while formatting
+     *  INPUT, or null if there is none. */
+    private String error(String input) {
+        try {
+            format(input, false);
+            return null;
+        } catch (FormatException e) {
+            return e.getMessage();
+        }
+    }
+
+    /** Checks that using a macro is the same as writing out its body,
+     *  with either way of tokenizing. */
+    @Test
+    public void testExpansion() {
+        String settings = "\\textwidth{30}\\indent{4}\\parindent{0}";
+        String expected = format(settings + PARAGRAPH + "\\nofill"
+                                 + settings + PARAGRAPH, false);
+        String input = "\\def{setup}{" + settings + "}"
+            + "\\def{fixed}{\\nofill\\setup}"
+            + "\\setup " + PARAGRAPH + "\\fixed " + PARAGRAPH;
+        assertEquals(expected, format(input, false));
+        assertEquals(expected, format(input, true));
+    }
+
+    /** Checks that redefining a macro changes the expansion of macros
+     *  that use it. */
+    @Test
+    public void testRedefinition() {
+        String input = "\\nofill\\parindent{0}\\def{a}{one}"
+            + "\\def{b}{\\a\\ \\a}\\b\n\\def{a}{two}\\b\n";
+        assertEquals(format("\\nofill\\parindent{0}one one\ntwo two\n",
+                            false),
+                     format(input, false));
+    }
+
+    /** Checks that macros may be used in endnotes. */
+    @Test
+    public void testEndnotes() {
+        String input = "\\def{x}{note}word\\endnote{\\x}\n";
+        assertEquals(format("word\\endnote{note}\n", false),
+                     format(input, false));
+    }
+
+    @Test
+    public void testErrors() {
+        assertEquals("macros nested too deeply: \\a",
+                     error("\\def{a}{\\b}\\def{b}{\\a}\\a"));
+        assertEquals("\\def may not be used in a macro body",
+                     error("\\def{a}{\\def{b}{c}}"));
+        assertEquals("bad argument to \\def", error("\\def{a} {b}"));
+        assertEquals("bad macro name: a1", error("\\def{a1}{b}"));
+        assertEquals("macro \\a takes no argument",
+                     error("\\def{a}{b}\\a{c}"));
+        assertEquals("unknown command: nosuch",
+                     error("\\def{a}{\\nosuch}\\a"));
+    }
+
+}
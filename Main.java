@@ -1,24 +1,77 @@
 package tex61;
 
-import java.io.File;
-import java.io.FileReader;
+import java.io.Closeable;
 import java.io.Reader;
 import java.io.IOException;
 import java.io.PrintWriter;
+import java.nio.file.Path;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
 
 import static tex61.FormatException.reportError;
-import static tex61.FormatException.getTotalErrors;
 
 /** Simple Text Formatter. Main entry point.
  * @author Paul N. Hilfinger
  */
 public class Main {
 
-    /** Format the file ARGS[0], producing output on the standard
-     *  output if ARGS.length is 1, and otherwise on ARGS[1].  ARGS must
-     *  have length 1 or 2.  Print a usage message otherwise or if the
-     *  files are unreadable or unwritable, respectively. */
+    /** Format the file ARGS[0] (the standard input if it is "-"),
+     *  producing output on the standard output if ARGS.length is 1, and
+     *  otherwise on ARGS[1].  ARGS must have length 1 or 2, after any
+     *  leading options.  Print a usage message otherwise or if the files
+     *  are unreadable or unwritable, respectively.  With --batch, format
+     *  a whole batch of files instead.  An error that stops the program
+     *  is printed on the standard error, and the program exits with
+     *  status 1. */
     public static void main(String[] args) {
+        try {
+            run(args);
+        } catch (FormatException e) {
+            System.err.println(e.getMessage());
+            System.exit(1);
+        }
+    }
+
+    /** Do the work of main(ARGS), throwing a FormatException for any
+     *  error that stops the program. */
+    private static void run(String[] args) {
+        if (args.length == 0) {
+            usage();
+            return;
+        }
+
+        Options options = new Options(args);
+        args = options.operands();
+        if (options.stats()) {
+            startStats();
+        }
+
+        if (options.batch() != null) {
+            if (args.length > 1) {
+                reportError("too many command-line arguments");
+            }
+            Batch batch = new Batch(options, args.length == 1 ? args[0]
+                                    : null);
+            try {
+                batch.add(options.batch());
+            } catch (IOException e) {
+                reportError(e.getMessage());
+            }
+            System.exit(batch.run(System.out) == 0 ? 0 : 1);
+        }
+
+        if (options.server() != null) {
+            if (args.length > 0) {
+                reportError("too many command-line arguments");
+            }
+            try (Server server = new Server(options, options.server())) {
+                server.serve();
+            } catch (IOException e) {
+                reportError(e.getMessage());
+            }
+            System.exit(0);
+        }
+
         if (args.length == 0) {
             usage();
             return;
@@ -30,39 +83,389 @@ public class Main {
             System.exit(1);
         }
 
+        if (options.widths() != null && args.length < 2) {
+            reportError("--widths requires an output file");
+        }
+
+        if (options.widths() != null
+            && (options.pages() != null || options.pageIndex())) {
+            reportError("--widths cannot be used with --pages or "
+                        + "--page-index");
+        }
+
+        if (options.pageIndex() && args[0].equals("-")) {
+            reportError("--page-index requires an input file");
+        }
+
+        Diagnostics diagnostics = new Diagnostics(options.maxErrors());
         try {
-            Reader input;
-            input = new FileReader(new File(args[0]));
+            ExecutorService fillPool = null;
+            if (options.threads() > 1) {
+                fillPool = new ForkJoinPool(options.threads());
+            }
+            format(args[0], args.length == 2 ? args[1] : "-", options,
+                   fillPool, diagnostics);
+        } catch (IOException e) {
+            reportError(e.getMessage());
+        } catch (FormatException e) {
+            /* Already reported to diagnostics. */
+        }
 
-            PrintWriter output;
+        diagnostics.print(System.err, args[0]);
+        System.exit(diagnostics.errors() == 0 ? 0 : 1);
+    }
 
-            if (args.length == 2) {
-                output = new PrintWriter(new File(args[1]));
-            } else {
-                output = new PrintWriter(System.out);
+    /** Format the file named INFILE onto the file named OUTFILE (either
+     *  of which may be "-" for the standard input or output), as directed
+     *  by OPTIONS, reporting errors to DIAGNOSTICS.  If FILLPOOL is
+     *  non-null, use it to fill paragraphs in parallel.  With
+     *  --token-cache, INFILE's tokens are replayed from its TokenCache if
+     *  possible, and otherwise recorded there.  With --pages or
+     *  --page-index, formats as for formatPages instead.  Throws a
+     *  FormatException if DIAGNOSTICS say to stop. */
+    static void format(String infile, String outfile, Options options,
+                       ExecutorService fillPool, Diagnostics diagnostics)
+        throws IOException {
+        if ((options.pages() != null || options.pageIndex())
+            && options.widths() == null) {
+            formatPages(infile, outfile, options, diagnostics);
+            return;
+        }
+
+        Reader input = null;
+        TokenCache cache = null;
+        Lexer lexer = null;
+        if (options.tokenCache() != null && !infile.equals("-")) {
+            cache = new TokenCache(Path.of(options.tokenCache()),
+                                   Path.of(infile), options.charset());
+            try {
+                lexer = cache.lexer();
+            } catch (IOException e) {
+                cache.close();
+                throw e;
+            }
+        } else {
+            input = ChannelReader.open(infile, options.charset());
+        }
+        Closeable source = cache != null ? cache : input;
+
+        if (options.widths() != null) {
+            try {
+                formatWidths(lexer, input, outfile, options, fillPool,
+                             diagnostics);
+            } finally {
+                source.close();
             }
+            return;
+        }
 
-            Controller cntrl = new Controller(output);
-            InputParser src = new InputParser(input, cntrl);
-            src.process();
+        PrintWriter output;
+        try {
+            output = new PrintWriter(ChannelWriter.open(outfile,
+                                                        options.charset(),
+                                                        options.bufferSize()));
+        } catch (IOException e) {
+            source.close();
+            throw e;
+        }
+
+        try {
+            if (lexer != null) {
+                format(lexer, output, options, fillPool, diagnostics);
+            } else {
+                format(input, output, options, fillPool, diagnostics);
+            }
+        } finally {
+            source.close();
             output.close();
+        }
+        if (output.checkError()) {
+            diagnostics.error("error writing %s", outfile);
+        }
+    }
+
+    /** Format the pages of the file named INFILE given by --pages (all of
+     *  them, if it was not given) onto the file named OUTFILE, as
+     *  directed by OPTIONS, reporting errors to DIAGNOSTICS.  Unless
+     *  INFILE is "-", formatting starts at the checkpoint of INFILE's
+     *  PageIndex nearest before the first page, if the index is valid;
+     *  otherwise, or with --page-index, all of INFILE is formatted so as
+     *  to record the index.  Paragraphs are filled on this thread, and
+     *  --pipeline and --token-cache do not apply. */
+    private static void formatPages(String infile, String outfile,
+                                    Options options, Diagnostics diagnostics)
+        throws IOException {
+        int[] range = options.pages() != null ? options.pages()
+            : new int[] { 1, Integer.MAX_VALUE };
+        PageIndex index = null;
+        boolean record = false;
+        if (!infile.equals("-")) {
+            index = new PageIndex(Path.of(infile), options.charset(),
+                                  options.stream());
+            record = options.pageIndex() || !index.read();
+        }
+        ChannelReader input = ChannelReader.open(infile, options.charset());
+        PrintWriter output;
+        try {
+            output = new PrintWriter(ChannelWriter.open(outfile,
+                                                        options.charset(),
+                                                        options.bufferSize()));
         } catch (IOException e) {
-            reportError(e.getMessage());
-            System.exit(1);
-        } catch (FormatException e) {
-            reportError("error");
-            System.exit(1);
+            input.close();
+            throw e;
+        }
+
+        try {
+            PageRange pages = new PageRange(output, options.bufferSize(),
+                                            range[0], range[1], !record);
+            Controller cntrl = new Controller(pages);
+            setUp(cntrl, options, null, diagnostics);
+            Lexer lexer = new Lexer(input);
+            InputParser parser = new InputParser(lexer, cntrl);
+            if (record) {
+                index.record(cntrl, pages, lexer);
+                parser.setIndex(index);
+            } else if (index != null
+                       && (index.endnotePage() == 0
+                           || range[1] < index.endnotePage())) {
+                int k = index.find(range[0]);
+                if (k >= 0) {
+                    input.seek(index.offset(k));
+                    lexer.setLineNumber(index.line(k));
+                    index.restore(k, cntrl);
+                }
+            }
+            try {
+                process(parser, cntrl);
+                if (record) {
+                    index.write();
+                }
+            } catch (PageRange.Done e) {
+                pages.flush();
+            }
+        } finally {
+            input.close();
+            output.close();
+        }
+        if (output.checkError()) {
+            diagnostics.error("error writing %s", outfile);
+        }
+    }
+
+    /** Format the tokens of LEXER or, if it is null, the text read from
+     *  INPUT, once for each width W given by --widths, onto the file
+     *  OUTFILE.W, as directed by OPTIONS, reporting errors to
+     *  DIAGNOSTICS.  The input is parsed only once.  FILLPOOL is not
+     *  used. */
+    private static void formatWidths(Lexer lexer, Reader input,
+                                     String outfile, Options options,
+                                     ExecutorService fillPool,
+                                     Diagnostics diagnostics)
+        throws IOException {
+        int[] widths = options.widths();
+        String[] names = new String[widths.length];
+        PrintWriter[] outputs = new PrintWriter[widths.length];
+        PageAssembler[] pages = new PageAssembler[widths.length];
+        try {
+            for (int k = 0; k < widths.length; k += 1) {
+                names[k] = outfile + "." + widths[k];
+                outputs[k] =
+                    new PrintWriter(ChannelWriter.open(names[k],
+                                                       options.charset(),
+                                                       options.bufferSize()));
+                pages[k] = new PagePrinter(outputs[k], options.bufferSize());
+            }
+            Controller cntrl = new Controller(pages, widths);
+            setUp(cntrl, options, fillPool, diagnostics);
+            if (lexer != null) {
+                process(new InputParser(lexer, cntrl), cntrl);
+            } else {
+                process(new InputParser(input, cntrl), cntrl);
+            }
+        } finally {
+            for (PrintWriter output : outputs) {
+                if (output != null) {
+                    output.close();
+                }
+            }
+        }
+        for (int k = 0; k < widths.length; k += 1) {
+            if (outputs[k].checkError()) {
+                diagnostics.error("error writing %s", names[k]);
+            }
+        }
+    }
+
+    /** Format the text read from INPUT onto OUTPUT, as directed by
+     *  OPTIONS, reporting errors to DIAGNOSTICS, and filling paragraphs
+     *  in parallel on FILLPOOL if it is non-null.  Neither INPUT nor
+     *  OUTPUT is closed. */
+    static void format(Reader input, PrintWriter output, Options options,
+                       ExecutorService fillPool, Diagnostics diagnostics) {
+        if (options.pipeline()) {
+            PipedLexer lexer = new PipedLexer(input);
+            try {
+                format(lexer, output, options, fillPool, diagnostics);
+            } finally {
+                lexer.close();
+            }
+            return;
+        }
+        Controller cntrl =
+            new Controller(new PagePrinter(output, options.bufferSize()));
+        setUp(cntrl, options, fillPool, diagnostics);
+        InputParser src = new InputParser(input, cntrl);
+        process(src, cntrl);
+    }
+
+    /** Format the tokens read from LEXER onto OUTPUT, as for
+     *  format(INPUT, OUTPUT, OPTIONS, FILLPOOL, DIAGNOSTICS).  With
+     *  --pipeline, OUTPUT is written on a thread of its own, connected to
+     *  this one by a bounded queue. */
+    static void format(Lexer lexer, PrintWriter output, Options options,
+                       ExecutorService fillPool, Diagnostics diagnostics) {
+        if (!options.pipeline()) {
+            Controller cntrl =
+                new Controller(new PagePrinter(output, options.bufferSize()));
+            setUp(cntrl, options, fillPool, diagnostics);
+            process(new InputParser(lexer, cntrl), cntrl);
+            return;
+        }
+        int blockSize = options.bufferSize() > 0 ? options.bufferSize()
+            : PagePrinter.BUFFER_SIZE;
+        PrintWriter pages = new PrintWriter(new OutputPipe(output, blockSize));
+        try {
+            Controller cntrl =
+                new Controller(new PagePrinter(pages, options.bufferSize()));
+            setUp(cntrl, options, fillPool, diagnostics);
+            process(new InputParser(lexer, cntrl), cntrl);
+        } finally {
+            pages.close();
+            if (pages.checkError()) {
+                diagnostics.error("error writing output");
+            }
+        }
+    }
+
+    /** Process all the input of PARSER, which sends it to CNTRL, and
+     *  release CNTRL's resources afterwards, whether or not formatting
+     *  succeeds. */
+    private static void process(InputParser parser, Controller cntrl) {
+        try {
+            parser.process();
+        } finally {
+            cntrl.release();
         }
+    }
 
-        System.exit(getTotalErrors() == 0 ? 0 : 1);
+    /** Configure CNTRL as directed by OPTIONS, reporting errors to
+     *  DIAGNOSTICS and filling paragraphs on FILLPOOL if it is
+     *  non-null. */
+    private static void setUp(Controller cntrl, Options options,
+                              ExecutorService fillPool,
+                              Diagnostics diagnostics) {
+        cntrl.setDiagnostics(diagnostics);
+        cntrl.setExecutor(fillPool);
+        cntrl.setStreaming(options.stream());
+        cntrl.setEndnoteMemory(options.endnoteMemory());
+    }
+
+    /** Start keeping counts and times, publish them over JMX, and
+     *  arrange to print them as JSON on the standard error when the
+     *  program exits. */
+    private static void startStats() {
+        Metrics.setEnabled(true);
+        Metrics.register();
+        Runtime.getRuntime().addShutdownHook(new Thread(() ->
+            System.err.println(Metrics.toJson())));
     }
 
     /** Print usage message. */
     private static void usage() {
-        System.out.printf("Usage: java format.Main INFILE [OUTFILE]%n"
-                          + "   Format INFILE, sending output to OUTFILE "
-                          + "(default: standard output).%n");
+        System.out.printf("Usage: java format.Main [OPTIONS] INFILE "
+                          + "[OUTFILE]%n"
+                          + "   Format INFILE (- for standard input), sending "
+                          + "output to OUTFILE%n"
+                          + "   (default: standard output).%n"
+                          + "       java format.Main [OPTIONS] --batch SOURCE "
+                          + "[OUTDIR]%n"
+                          + "   Format all files listed in the manifest file "
+                          + "SOURCE (lines of the%n"
+                          + "   form INFILE [OUTFILE]), or all files in the "
+                          + "directory SOURCE,%n"
+                          + "   concurrently.  Output goes to OUTDIR, if "
+                          + "given, and otherwise to%n"
+                          + "   INFILE.out, unless the manifest says "
+                          + "otherwise.%n"
+                          + "       java format.Main [OPTIONS] --server "
+                          + "ADDRESS%n"
+                          + "   Format documents sent to ADDRESS (a port on "
+                          + "localhost, or the path%n"
+                          + "   of a Unix-domain socket) until killed.  See "
+                          + "Server for the protocol.%n"
+                          + "Options:%n"
+                          + "   --charset NAME     character set of INFILE "
+                          + "and OUTFILE (default: UTF-8).%n"
+                          + "   --buffer-size N    write output in batches "
+                          + "of whole pages of up to%n"
+                          + "                      N characters "
+                          + "(default: %d; 0 to write each line).%n"
+                          + "   --threads N        fill paragraphs in "
+                          + "parallel on N threads (default: 1);%n"
+                          + "                      with --batch, format N "
+                          + "files at a time%n"
+                          + "                      (default: number of "
+                          + "processors); with%n"
+                          + "                      --server, serve N "
+                          + "connections at a time%n"
+                          + "                      (default: %d).%n"
+                          + "   --endnote-memory N keep up to N bytes of "
+                          + "endnotes in memory, and the%n"
+                          + "                      rest in a temporary file "
+                          + "(default: %d).%n"
+                          + "   --max-errors N     stop at the Nth error in "
+                          + "a document (default: 1;%n"
+                          + "                      0 to report all errors "
+                          + "and format the rest).%n"
+                          + "   --max-request N    with --server, accept "
+                          + "documents of up to N bytes%n"
+                          + "                      (default: %d).%n"
+                          + "   --regex-lexer      tokenize with regular "
+                          + "expressions (for comparison).%n"
+                          + "   --stats            count and time the stages "
+                          + "of formatting, publish%n"
+                          + "                      the results over JMX, and "
+                          + "print them as JSON on%n"
+                          + "                      the standard error at "
+                          + "exit.%n"
+                          + "   --stream           output each line of a "
+                          + "paragraph as soon as it%n"
+                          + "                      is complete, holding "
+                          + "only one line in memory.%n"
+                          + "   --pipeline         read input, format, and "
+                          + "write output on%n"
+                          + "                      separate threads.%n"
+                          + "   --token-cache DIR  keep the tokens of each "
+                          + "input file in DIR, and%n"
+                          + "                      reuse them while the file "
+                          + "is unchanged.%n"
+                          + "   --widths W,...     format at each of the "
+                          + "text widths W at once,%n"
+                          + "                      writing to OUTPUT.W for "
+                          + "each.  W replaces the%n"
+                          + "                      text widths set in the "
+                          + "main text; endnotes%n"
+                          + "                      keep their own.%n"
+                          + "   --pages N[-M]      output only pages N "
+                          + "through M, starting from%n"
+                          + "                      the page index of INFILE "
+                          + "if it is up to date.%n"
+                          + "   --page-index       record an index of the "
+                          + "pages of INFILE in%n"
+                          + "                      INFILE%s.%n",
+                          PagePrinter.BUFFER_SIZE, Server.MAX_CONNECTIONS,
+                          EndnoteStore.MEMORY_SIZE, Server.MAX_DOCUMENT,
+                          PageIndex.SUFFIX);
     }
 
 }
-
@@ -0,0 +1,194 @@
+package tex61;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/** Process-wide counts and times for the stages of formatting.  They
+ *  are only kept once enabled (by the --stats option), and are kept in
+ *  LongAdders, so that threads filling paragraphs or formatting other
+ *  documents do not contend for them.  Hot loops count locally and add
+ *  their totals here once per paragraph or document.
+ *  @author Austin Gandy
+ */
+final class Metrics implements MetricsMBean {
+
+    /** Indices of the counters and timers. */
+    static final int
+        /** Tokens read by InputParsers. */
+        TOKENS = 0,
+        /** Words accumulated by LineAssemblers. */
+        WORDS = 1,
+        /** Lines produced by LineAssemblers. */
+        LINES = 2,
+        /** Lines spread out by justification. */
+        JUSTIFIED_LINES = 3,
+        /** Pages begun by PagePrinters. */
+        PAGES = 4,
+        /** Endnotes formatted. */
+        ENDNOTES = 5,
+        /** Characters written by PagePrinters. */
+        CHARS_WRITTEN = 6,
+        /** Bytes written by ChannelWriters. */
+        BYTES_WRITTEN = 7,
+        /** Nanoseconds spent in InputParser.process. */
+        PARSE_NANOS = 8,
+        /** Nanoseconds spent filling paragraphs. */
+        FILL_NANOS = 9,
+        /** Nanoseconds spent writing buffered output. */
+        WRITE_NANOS = 10;
+
+    /** Names of the counters, as used in JSON summaries. */
+    private static final String[] NAMES = {
+        "tokens", "words", "lines", "justifiedLines", "pages", "endnotes",
+        "charsWritten", "bytesWritten", "parseNanos", "fillNanos",
+        "writeNanos"
+    };
+
+    /** The name under which the counters are registered with JMX. */
+    static final String OBJECT_NAME = "tex61:type=Metrics";
+
+    /** Iff ON, start keeping counts and times. */
+    static void setEnabled(boolean on) {
+        _enabled = on;
+    }
+
+    /** Return true iff counts and times are being kept. */
+    static boolean enabled() {
+        return _enabled;
+    }
+
+    /** Add N to counter COUNTER, if enabled. */
+    static void add(int counter, long n) {
+        if (_enabled) {
+            COUNTERS[counter].add(n);
+        }
+    }
+
+    /** Return the current time in nanoseconds to pass to stop, or 0 if
+     *  not enabled. */
+    static long start() {
+        return _enabled ? System.nanoTime() : 0;
+    }
+
+    /** Add the time since START, as returned by start(), to timer
+     *  TIMER, if enabled. */
+    static void stop(int timer, long start) {
+        if (_enabled) {
+            COUNTERS[timer].add(System.nanoTime() - start);
+        }
+    }
+
+    /** Return the value of counter COUNTER. */
+    static long get(int counter) {
+        return COUNTERS[counter].sum();
+    }
+
+    /** Publish the counters over JMX under OBJECT_NAME, if that has not
+     *  been done already. */
+    static synchronized void register() {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try {
+            ObjectName name = new ObjectName(OBJECT_NAME);
+            if (!server.isRegistered(name)) {
+                server.registerMBean(INSTANCE, name);
+            }
+        } catch (JMException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /** Return the counters as a JSON object. */
+    static String toJson() {
+        StringBuilder result = new StringBuilder("{");
+        for (int i = 0; i < NAMES.length; i += 1) {
+            if (i > 0) {
+                result.append(", ");
+            }
+            result.append('"').append(NAMES[i]).append("\": ")
+                .append(get(i));
+        }
+        return result.append('}').toString();
+    }
+
+    @Override
+    public long getTokens() {
+        return get(TOKENS);
+    }
+
+    @Override
+    public long getWords() {
+        return get(WORDS);
+    }
+
+    @Override
+    public long getLines() {
+        return get(LINES);
+    }
+
+    @Override
+    public long getJustifiedLines() {
+        return get(JUSTIFIED_LINES);
+    }
+
+    @Override
+    public long getPages() {
+        return get(PAGES);
+    }
+
+    @Override
+    public long getEndnotes() {
+        return get(ENDNOTES);
+    }
+
+    @Override
+    public long getCharsWritten() {
+        return get(CHARS_WRITTEN);
+    }
+
+    @Override
+    public long getBytesWritten() {
+        return get(BYTES_WRITTEN);
+    }
+
+    @Override
+    public long getParseNanos() {
+        return get(PARSE_NANOS);
+    }
+
+    @Override
+    public long getFillNanos() {
+        return get(FILL_NANOS);
+    }
+
+    @Override
+    public long getWriteNanos() {
+        return get(WRITE_NANOS);
+    }
+
+    @Override
+    public void reset() {
+        for (LongAdder counter : COUNTERS) {
+            counter.reset();
+        }
+    }
+
+    /** The only Metrics, which is registered with JMX. */
+    private static final Metrics INSTANCE = new Metrics();
+
+    /** The counters, indexed by TOKENS, WORDS, etc. */
+    private static final LongAdder[] COUNTERS = new LongAdder[NAMES.length];
+
+    static {
+        for (int i = 0; i < COUNTERS.length; i += 1) {
+            COUNTERS[i] = new LongAdder();
+        }
+    }
+
+    /** True iff counts and times are being kept.  Set before formatting
+     *  starts, and read on every count. */
+    private static volatile boolean _enabled;
+
+}
@@ -0,0 +1,48 @@
+package tex61;
+
+/** The management interface through which Metrics are published over
+ *  JMX, under the name Metrics.OBJECT_NAME.  Times are in nanoseconds,
+ *  summed over all threads.
+ *  @author Austin Gandy
+ */
+public interface MetricsMBean {
+
+    /** Return the number of tokens read by InputParsers. */
+    long getTokens();
+
+    /** Return the number of words accumulated by LineAssemblers. */
+    long getWords();
+
+    /** Return the number of lines produced by LineAssemblers. */
+    long getLines();
+
+    /** Return the number of lines spread out by justification. */
+    long getJustifiedLines();
+
+    /** Return the number of pages begun by PagePrinters. */
+    long getPages();
+
+    /** Return the number of endnotes formatted. */
+    long getEndnotes();
+
+    /** Return the number of characters written by PagePrinters. */
+    long getCharsWritten();
+
+    /** Return the number of encoded bytes written to output files. */
+    long getBytesWritten();
+
+    /** Return the time spent parsing documents, including everything
+     *  done with what was parsed. */
+    long getParseNanos();
+
+    /** Return the time spent filling paragraphs. */
+    long getFillNanos();
+
+    /** Return the time spent passing buffered output to its
+     *  destination. */
+    long getWriteNanos();
+
+    /** Set all counts and times to 0. */
+    void reset();
+
+}
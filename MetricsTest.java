@@ -0,0 +1,62 @@
+package tex61;
+
+import java.io.PrintWriter;
+import java.io.StringReader;
+import java.io.StringWriter;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/** Unit tests of Metrics.
+ *  @author Austin Gandy
+ */
+public class MetricsTest {
+
+    /** Return the output of formatting INPUT. */
+    private String format(String input) {
+        StringWriter output = new StringWriter();
+        PrintWriter writer = new PrintWriter(output);
+        Controller controller = new Controller(writer);
+        new InputParser(new StringReader(input), controller).process();
+        writer.close();
+        return output.toString();
+    }
+
+    @Test
+    public void testCounts() {
+        String input = "\\textheight{2}\\textwidth{12}\\justify "
+            + "aa bb cc dd\\endnote{note}\n\nee\n";
+        Metrics metrics = new Metrics();
+        metrics.reset();
+        format(input);
+        assertEquals(0, Metrics.get(Metrics.TOKENS));
+        Metrics.setEnabled(true);
+        String output;
+        try {
+            output = format(input);
+        } finally {
+            Metrics.setEnabled(false);
+        }
+        assertEquals(16, metrics.getTokens());
+        assertEquals(6, metrics.getWords());
+        assertEquals(4, metrics.getLines());
+        assertEquals(1, metrics.getJustifiedLines());
+        assertEquals(2, metrics.getPages());
+        assertEquals(1, metrics.getEndnotes());
+        assertEquals(output.length(), metrics.getCharsWritten());
+        assertTrue(Metrics.toJson().startsWith("{\"tokens\": 16, "));
+        metrics.reset();
+        assertEquals(0, metrics.getTokens());
+    }
+
+    @Test
+    public void testRegister() throws Exception {
+        Metrics.register();
+        Metrics.register();
+        assertTrue(java.lang.management.ManagementFactory
+                   .getPlatformMBeanServer()
+                   .isRegistered(new javax.management.ObjectName(
+                       Metrics.OBJECT_NAME)));
+    }
+
+}
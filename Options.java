@@ -0,0 +1,285 @@
+package tex61;
+
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import static tex61.FormatException.reportError;
+
+/** The options given on Main's command line, and the operands that
+ *  follow them.
+ *  @author Austin Gandy
+ */
+class Options {
+
+    /** The options and operands in ARGS.  Options come first and start
+     *  with "--".  Reports an error for any unknown or malformed option. */
+    Options(String[] args) {
+        _charset = StandardCharsets.UTF_8;
+        _bufferSize = PagePrinter.BUFFER_SIZE;
+        _endnoteMemory = EndnoteStore.MEMORY_SIZE;
+        _maxErrors = 1;
+        _maxRequest = Server.MAX_DOCUMENT;
+        int k;
+        for (k = 0; k < args.length && args[k].startsWith("--"); k += 1) {
+            switch (args[k]) {
+            case "--regex-lexer":
+                InputParser.setRegexLexer(true);
+                break;
+            case "--charset":
+                k += 1;
+                try {
+                    _charset = Charset.forName(value(args, k));
+                } catch (IllegalArgumentException e) {
+                    reportError("unknown charset: %s", args[k]);
+                }
+                break;
+            case "--buffer-size":
+                k += 1;
+                _bufferSize = intValue(args, k, 0);
+                break;
+            case "--endnote-memory":
+                k += 1;
+                _endnoteMemory = intValue(args, k, 0);
+                break;
+            case "--max-errors":
+                k += 1;
+                _maxErrors = intValue(args, k, 0);
+                break;
+            case "--max-request":
+                k += 1;
+                _maxRequest = intValue(args, k, 0);
+                break;
+            case "--threads":
+                k += 1;
+                _threads = intValue(args, k, 1);
+                break;
+            case "--stats":
+                _stats = true;
+                break;
+            case "--stream":
+                _stream = true;
+                break;
+            case "--pipeline":
+                _pipeline = true;
+                break;
+            case "--widths":
+                k += 1;
+                _widths = widthsValue(args, k);
+                break;
+            case "--pages":
+                k += 1;
+                _pages = pagesValue(args, k);
+                break;
+            case "--page-index":
+                _pageIndex = true;
+                break;
+            case "--token-cache":
+                k += 1;
+                _tokenCache = value(args, k);
+                break;
+            case "--batch":
+                k += 1;
+                _batch = value(args, k);
+                break;
+            case "--server":
+                k += 1;
+                _server = value(args, k);
+                break;
+            default:
+                reportError("unknown option: %s", args[k]);
+            }
+        }
+        _operands = Arrays.copyOfRange(args, k, args.length);
+    }
+
+    /** Return the operands following the options. */
+    String[] operands() {
+        return _operands;
+    }
+
+    /** Return the character set of input and output files. */
+    Charset charset() {
+        return _charset;
+    }
+
+    /** Return the size of PagePrinter output buffers. */
+    int bufferSize() {
+        return _bufferSize;
+    }
+
+    /** Return the number of bytes of endnotes to keep in memory. */
+    int endnoteMemory() {
+        return _endnoteMemory;
+    }
+
+    /** Return the number of errors at which to stop formatting a
+     *  document, or Diagnostics.UNLIMITED. */
+    int maxErrors() {
+        return _maxErrors;
+    }
+
+    /** Return the length in bytes of the longest document that a Server
+     *  accepts in one request. */
+    int maxRequest() {
+        return _maxRequest;
+    }
+
+    /** Return the number of threads requested with --threads, or 0 if
+     *  none was. */
+    int threads() {
+        return _threads;
+    }
+
+    /** Return true iff --stats was given, asking for counts and times
+     *  to be kept and printed at exit. */
+    boolean stats() {
+        return _stats;
+    }
+
+    /** Return true iff --stream was given, asking for paragraphs to be
+     *  filled as they are read. */
+    boolean stream() {
+        return _stream;
+    }
+
+    /** Return true iff --pipeline was given, asking for input, filling,
+     *  and output to run on separate threads. */
+    boolean pipeline() {
+        return _pipeline;
+    }
+
+    /** Return the text widths given by --widths, at each of which the
+     *  input is to be formatted, or null if none were given. */
+    int[] widths() {
+        return _widths;
+    }
+
+    /** Return the first and last pages to be output, as given by
+     *  --pages, or null if all pages are. */
+    int[] pages() {
+        return _pages;
+    }
+
+    /** Return true iff --page-index was given, asking for an index of
+     *  the pages of the input file to be recorded beside it. */
+    boolean pageIndex() {
+        return _pageIndex;
+    }
+
+    /** Return the directory in which to cache the tokens of input
+     *  files, or null if they are not cached. */
+    String tokenCache() {
+        return _tokenCache;
+    }
+
+    /** Return the manifest file or directory of a batch of documents to
+     *  format, or null if not formatting a batch. */
+    String batch() {
+        return _batch;
+    }
+
+    /** Return the address on which to serve formatting requests, or
+     *  null if not running as a server. */
+    String server() {
+        return _server;
+    }
+
+    /** Return ARGS[K], the value of the option ARGS[K-1], reporting an
+     *  error if it is missing. */
+    private static String value(String[] args, int k) {
+        if (k >= args.length) {
+            reportError("missing value for option %s", args[k - 1]);
+        }
+        return args[k];
+    }
+
+    /** Return ARGS[K], the value of the option ARGS[K-1], as an integer,
+     *  reporting an error if it is missing or less than MIN. */
+    private static int intValue(String[] args, int k, int min) {
+        String value = value(args, k);
+        try {
+            int result = Integer.parseInt(value);
+            if (result >= min) {
+                return result;
+            }
+        } catch (NumberFormatException e) {
+            /* Fall through to report the error. */
+        }
+        reportError("bad value for option %s: %s", args[k - 1], value);
+        return min;
+    }
+
+    /** Return ARGS[K], the value of the option ARGS[K-1], as a list of
+     *  positive integers separated by commas, reporting an error if it
+     *  is missing or malformed. */
+    private static int[] widthsValue(String[] args, int k) {
+        String[] values = value(args, k).split(",", -1);
+        int[] result = new int[values.length];
+        for (int i = 0; i < values.length; i += 1) {
+            try {
+                result[i] = Integer.parseInt(values[i]);
+            } catch (NumberFormatException e) {
+                result[i] = 0;
+            }
+            if (result[i] < 1) {
+                reportError("bad value for option %s: %s", args[k - 1],
+                            args[k]);
+            }
+        }
+        return result;
+    }
+
+    /** Return ARGS[K], the value of the option ARGS[K-1], as a page
+     *  number N or range of page numbers N-M, where 1 <= N <= M, as the
+     *  array {N, M}, reporting an error if it is missing or malformed. */
+    private static int[] pagesValue(String[] args, int k) {
+        String[] values = value(args, k).split("-", -1);
+        int[] result = new int[2];
+        try {
+            result[0] = Integer.parseInt(values[0]);
+            result[1] = values.length == 1 ? result[0]
+                : Integer.parseInt(values[1]);
+        } catch (NumberFormatException e) {
+            result[0] = 0;
+        }
+        if (values.length > 2 || result[0] < 1 || result[1] < result[0]) {
+            reportError("bad value for option %s: %s", args[k - 1], args[k]);
+        }
+        return result;
+    }
+
+    /** Character set of input and output. */
+    private Charset _charset;
+    /** Size of output buffers. */
+    private int _bufferSize;
+    /** Bytes of endnotes kept in memory. */
+    private int _endnoteMemory;
+    /** Errors at which to stop, or Diagnostics.UNLIMITED. */
+    private int _maxErrors;
+    /** Longest document a Server accepts, in bytes. */
+    private int _maxRequest;
+    /** Number of threads, or 0 if unspecified. */
+    private int _threads;
+    /** True iff keeping counts and times. */
+    private boolean _stats;
+    /** True iff filling paragraphs as they are read. */
+    private boolean _stream;
+    /** True iff reading, formatting and writing on separate threads. */
+    private boolean _pipeline;
+    /** Text widths to format at, or null. */
+    private int[] _widths;
+    /** First and last pages to output, or null for all. */
+    private int[] _pages;
+    /** True iff recording an index of pages. */
+    private boolean _pageIndex;
+    /** Directory of cached tokens, or null. */
+    private String _tokenCache;
+    /** Source of a batch of documents, or null. */
+    private String _batch;
+    /** Address to serve on, or null. */
+    private String _server;
+    /** The arguments following the options. */
+    private String[] _operands;
+
+}
@@ -0,0 +1,155 @@
+package tex61;
+
+import java.io.IOException;
+import java.io.Writer;
+
+/** A Writer that passes the characters written to it to another Writer
+ *  on a thread of its own, so that output overlaps with formatting.
+ *  Characters are collected in blocks, which go to the output thread
+ *  through a RingBuffer and come back through another to be reused, so
+ *  that at most BLOCKS blocks are ever in use; when all are, writers
+ *  wait for the output thread to catch up.  Closing the pipe waits for
+ *  all output to be written, but does not close the other Writer.
+ *  Failures of the other Writer are thrown by the next write, flush, or
+ *  close.
+ *  @author Austin Gandy
+ */
+class OutputPipe extends Writer {
+
+    /** Number of blocks of characters in flight between the threads. */
+    static final int BLOCKS = 4;
+
+    /** A new OutputPipe that writes to OUT in blocks of BLOCKSIZE
+     *  characters (at least MIN_SIZE), starting the thread that writes
+     *  them. */
+    OutputPipe(Writer out, int blockSize) {
+        _out = out;
+        _full = new RingBuffer<Block>(BLOCKS);
+        _free = new RingBuffer<Block>(BLOCKS);
+        for (int i = 0; i < BLOCKS; i += 1) {
+            _free.put(new Block(Math.max(blockSize, MIN_SIZE)));
+        }
+        _writer = new Thread(this::drain, "tex61-output");
+        _writer.setDaemon(true);
+        _writer.start();
+    }
+
+    @Override
+    public void write(char[] cbuf, int off, int len) throws IOException {
+        check();
+        while (len > 0) {
+            if (_block == null) {
+                _block = _free.take();
+                check();
+            }
+            int n = Math.min(len, _block.chars.length - _block.length);
+            System.arraycopy(cbuf, off, _block.chars, _block.length, n);
+            _block.length += n;
+            off += n;
+            len -= n;
+            if (_block.length == _block.chars.length) {
+                send();
+            }
+        }
+    }
+
+    /** Pass any characters collected so far to the output thread,
+     *  without waiting for them to be written. */
+    @Override
+    public void flush() throws IOException {
+        check();
+        if (_block != null && _block.length > 0) {
+            send();
+        }
+    }
+
+    /** Write all characters collected to the other Writer, flush it, and
+     *  stop the output thread. */
+    @Override
+    public void close() throws IOException {
+        if (_closed) {
+            return;
+        }
+        _closed = true;
+        flush();
+        _full.close();
+        try {
+            _writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("interrupted while writing output");
+        }
+        check();
+        _out.flush();
+    }
+
+    /** Pass the current block to the output thread. */
+    private void send() throws IOException {
+        Block block = _block;
+        _block = null;
+        if (!_full.put(block)) {
+            check();
+        }
+    }
+
+    /** Throw the exception that stopped the output thread, if any. */
+    private void check() throws IOException {
+        if (_failure != null) {
+            throw _failure;
+        }
+    }
+
+    /** Write each block passed from other threads to _out, and return it
+     *  for reuse, until the pipe is closed or _out fails. */
+    private void drain() {
+        try {
+            Block block;
+            while ((block = _full.take()) != null) {
+                _out.write(block.chars, 0, block.length);
+                block.length = 0;
+                _free.put(block);
+            }
+        } catch (IOException e) {
+            _failure = e;
+        } catch (RuntimeException e) {
+            _failure = new IOException(e);
+        }
+        if (_failure != null) {
+            _full.cancel();
+            _free.close();
+        }
+    }
+
+    /** Smallest block size we use. */
+    private static final int MIN_SIZE = 16;
+
+    /** A block of characters. */
+    private static class Block {
+
+        /** An empty block holding up to SIZE characters. */
+        Block(int size) {
+            chars = new char[size];
+        }
+
+        /** The characters, in positions 0 through length-1. */
+        private final char[] chars;
+        /** Number of characters used. */
+        private int length;
+    }
+
+    /** Where output goes. */
+    private final Writer _out;
+    /** Blocks waiting to be written. */
+    private final RingBuffer<Block> _full;
+    /** Blocks already written, returned for reuse. */
+    private final RingBuffer<Block> _free;
+    /** The output thread. */
+    private final Thread _writer;
+    /** The block being filled, or null. */
+    private Block _block;
+    /** True iff I have been closed. */
+    private boolean _closed;
+    /** What stopped the output thread, if it failed. */
+    private volatile IOException _failure;
+
+}
@@ -4,7 +4,7 @@ package tex61;
  *  terminating newlines) and turns them into pages, adding form
  *  feeds as needed.  It prepends a form feed (Control-L  or ASCII 12)
  *  to the first line of each page after the first.  By overriding the
- *  'write' method, subtypes can determine what is done with
+ *  'write' methods, subtypes can determine what is done with
  *  the finished lines.
  *  @author Austin Gandy
  */
@@ -16,23 +16,62 @@ abstract class PageAssembler {
     PageAssembler() {
         _textHeight = Integer.MAX_VALUE;
         _currentHeight = 0;
+        _pageNumber = 1;
+        _scratch = new char[SCRATCH_SIZE];
     }
 
     /** Add LINE to the current page, starting a new page with it if
-     *  the previous page is full. A null LINE indicates a skipped line,
-     *  and has no effect at the top of a page. */
+     *  the previous page is full. A null LINE (or one consisting of just
+     *  a newline) indicates a skipped line, and has no effect at the top
+     *  of a page. */
     void addLine(String line) {
+        if (line == null || line.equals("\n")) {
+            addBlankLine();
+            return;
+        }
+        int len = line.length();
+        if (len > _scratch.length) {
+            _scratch = new char[Math.max(len, 2 * _scratch.length)];
+        }
+        line.getChars(0, len, _scratch, 0);
+        addLine(_scratch, 0, len);
+    }
+
+    /** Add the line BUF[START .. END-1] to the current page, starting a
+     *  new page with it if the previous page is full.  The contents of
+     *  BUF are not retained. */
+    void addLine(char[] buf, int start, int end) {
         if (_currentHeight < _textHeight) {
-            if (line.matches("\\n")) {
-                write(line);
-            } else {
-                write(line + "\n");
-            }
+            write(buf, start, end, false, true);
             _currentHeight += 1;
-        } else if (line != null && !line.contains("\n")) {
-            write("\f" + line);
+        } else {
+            _pageNumber += 1;
+            if (_checkpoints != null) {
+                _checkpoints.add(_lineNumber, _pageNumber, _textHeight);
+            }
+            endPage();
+            write(buf, start, end, true, false);
             _currentHeight = 1;
         }
+        _lineNumber += 1;
+    }
+
+    /** Add a blank line to the current page.  Has no effect at the top of
+     *  a page. */
+    void addBlankLine() {
+        if (_currentHeight < _textHeight) {
+            write(_scratch, 0, 0, false, true);
+            _currentHeight += 1;
+        }
+        _lineNumber += 1;
+    }
+
+    /** End the current page, so that the next line starts a new one.  Has
+     *  no effect at the top of a page. */
+    void breakPage() {
+        if (_currentHeight > 0) {
+            _currentHeight = _textHeight;
+        }
     }
 
     /** Set text height to VAL, where VAL > 0. */
@@ -45,13 +84,106 @@ abstract class PageAssembler {
         return (_currentHeight == _textHeight);
     }
 
+    /** Return the number of lines and blank lines added so far. */
+    int lineNumber() {
+        return _lineNumber;
+    }
+
+    /** Return the number of the current page, counting from 1. */
+    int pageNumber() {
+        return _pageNumber;
+    }
+
+    /** Return the current text height. */
+    int textHeight() {
+        return _textHeight;
+    }
+
+    /** Add a checkpoint to CHECKPOINTS at the start of each page after
+     *  the first from now on, or stop doing so if CHECKPOINTS is null. */
+    void setCheckpoints(PageCheckpoints checkpoints) {
+        _checkpoints = checkpoints;
+    }
+
+    /** Set my state to that just before line LINENUMBER, which begins
+     *  page PAGENUMBER > 1 at text height TEXTHEIGHT, as recorded in a
+     *  checkpoint.  Adding that line then starts the page again. */
+    void resume(int lineNumber, int pageNumber, int textHeight) {
+        _lineNumber = lineNumber;
+        _pageNumber = pageNumber - 1;
+        _textHeight = _currentHeight = textHeight;
+    }
+
+    /** Store my state in STATE[K .. K+STATE-1]: the numbers of lines
+     *  added and of the current page, the text height, and the height of
+     *  the current page so far. */
+    void saveState(int[] state, int k) {
+        state[k] = _lineNumber;
+        state[k + 1] = _pageNumber;
+        state[k + 2] = _textHeight;
+        state[k + 3] = _currentHeight;
+    }
+
+    /** Restore the state stored in STATE[K .. K+STATE-1] by saveState,
+     *  so that the lines that follow are paged as they were after it
+     *  was saved. */
+    void restoreState(int[] state, int k) {
+        _lineNumber = state[k];
+        _pageNumber = state[k + 1];
+        _textHeight = state[k + 2];
+        _currentHeight = state[k + 3];
+    }
+
+    /** Called when a page is complete, just before the first line of the
+     *  next page is written.  By default, does nothing. */
+    void endPage() {
+    }
+
+    /** Finish disposing of all lines added so far.  By default, does
+     *  nothing. */
+    void flush() {
+    }
+
+    /** Perform final disposition of the line BUF[START .. END-1], preceded
+     *  by a form feed iff FORMFEED and followed by a newline iff NEWLINE.
+     *  By default, forms the result into a String and passes it to
+     *  write(String); subtypes that can use the characters directly
+     *  should override this. */
+    void write(char[] buf, int start, int end, boolean formFeed,
+               boolean newline) {
+        StringBuilder line = new StringBuilder(end - start + 2);
+        if (formFeed) {
+            line.append('\f');
+        }
+        line.append(buf, start, end - start);
+        if (newline) {
+            line.append('\n');
+        }
+        write(line.toString());
+    }
+
     /** Perform final disposition of LINE, as determined by the
      *  concrete subtype. */
     abstract void write(String line);
     /** Write a blank line to the output. */
     abstract void write();
+
+    /** Number of values stored by saveState. */
+    static final int STATE = 4;
+
+    /** Initial size of _scratch. */
+    private static final int SCRATCH_SIZE = 128;
+
     /** Amount of lines allowed on each page. */
     private int _textHeight;
     /** The current height of the line on the page. */
     private int _currentHeight;
+    /** Number of lines and blank lines added so far. */
+    private int _lineNumber;
+    /** Number of the current page. */
+    private int _pageNumber;
+    /** Receives a checkpoint at the start of each page, or null. */
+    private PageCheckpoints _checkpoints;
+    /** Buffer used to pass the characters of String lines to write. */
+    private char[] _scratch;
 }
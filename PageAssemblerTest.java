@@ -2,6 +2,7 @@ package tex61;
 
 import java.util.List;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.io.StringWriter;
 import java.io.PrintWriter;
 
@@ -56,6 +57,100 @@ public class PageAssemblerTest {
         assertEquals("wrong contents: printer", joinLines(), output.toString());
     }
 
+    @Test
+    public void testCollectorPages() {
+        setupCollector();
+        pages = new PageCollector(outList);
+        pages.setTextHeight(2);
+        char[] buf = "xLine 0Line 1".toCharArray();
+        pages.addLine(buf, 1, 7);
+        pages.addBlankLine();
+        pages.addBlankLine();
+        pages.addLine(buf, 7, 13);
+        pages.addLine("Line 2");
+        pages.breakPage();
+        pages.addLine("Line 3");
+        assertEquals(Arrays.asList("Line 0\n", "\n", "\fLine 1",
+                                   "Line 2\n", "\fLine 3"),
+                     outList);
+    }
+
+    @Test
+    public void testCheckpoints() {
+        setupCollector();
+        pages = new PageCollector(outList);
+        PageCheckpoints checkpoints = new PageCheckpoints();
+        pages.setCheckpoints(checkpoints);
+        pages.setTextHeight(3);
+        makeTestLines(7);
+        for (String line : testLines) {
+            pages.addLine(line);
+            pages.addBlankLine();
+        }
+        assertEquals(14, pages.lineNumber());
+        assertEquals(4, pages.pageNumber());
+        assertEquals(3, checkpoints.size());
+        assertEquals(8, checkpoints.line(1));
+        assertEquals(3, checkpoints.page(1));
+        assertEquals(3, checkpoints.height(1));
+        assertEquals(1, checkpoints.find(9));
+        assertEquals(-1, checkpoints.find(1));
+
+        List<String> full = outList;
+        setupCollector();
+        pages = new PageCollector(outList);
+        pages.resume(checkpoints.line(1), checkpoints.page(1), 3);
+        for (String line : testLines.subList(4, 7)) {
+            pages.addLine(line);
+            pages.addBlankLine();
+        }
+        assertEquals(full.subList(full.size() - outList.size(), full.size()),
+                     outList);
+        assertEquals(4, pages.pageNumber());
+    }
+
+    @Test
+    public void testPrinterPages() {
+        setupWriter();
+        pages = new PagePrinter(writer);
+        pages.setTextHeight(3);
+        pages.breakPage();
+        for (int i = 0; i < 4; i += 1) {
+            pages.addLine("Line " + i);
+            pages.addBlankLine();
+        }
+        writer.close();
+        assertEquals("Line 0\n\nLine 1\n\fLine 2\nLine 3\n",
+                     output.toString());
+    }
+
+    /** Checks that buffering output by pages does not change it, and
+     *  that whole pages are passed on as the buffer fills. */
+    @Test
+    public void testBufferedPrinter() {
+        makeTestLines(20);
+        setupWriter();
+        pages = new PagePrinter(writer, 40);
+        pages.setTextHeight(3);
+        writeTestLines();
+        writer.flush();
+        String partial = output.toString();
+        assertTrue(partial.length() > 0);
+        assertTrue(partial.endsWith("\n"));
+        pages.flush();
+        StringBuilder expected = new StringBuilder();
+        for (int i = 0; i < testLines.size(); i += 1) {
+            if (i > 0 && i % 3 == 0) {
+                expected.append("\f");
+            }
+            expected.append(testLines.get(i));
+            if (i % 3 != 0 || i == 0) {
+                expected.append("\n");
+            }
+        }
+        assertEquals(expected.toString(), output.toString());
+    }
+
     /** Collects output to a PrintWriter. */
     private StringWriter output;
     /** Collects output from a PageAssembler. */
@@ -0,0 +1,98 @@
+package tex61;
+
+import java.util.Arrays;
+
+/** A compact record of where the pages formed by a PageAssembler begin.
+ *  Each checkpoint holds the number of the first line of a page (counting
+ *  lines and blank lines from 0), the page's number, and the text height
+ *  in effect when it began.  A page after the first always begins with a
+ *  non-blank line following a full page, with any blank lines (paragraph
+ *  skips) pending at the break discarded, so nothing more is needed to
+ *  resume paging at a checkpoint.
+ *  @author Austin Gandy
+ */
+class PageCheckpoints {
+
+    /** Initial capacity. */
+    private static final int INITIAL_SIZE = 64;
+
+    /** A new, empty record. */
+    PageCheckpoints() {
+        _lines = new int[INITIAL_SIZE];
+        _pages = new int[INITIAL_SIZE];
+        _heights = new int[INITIAL_SIZE];
+    }
+
+    /** Add a checkpoint for page PAGE, which begins at line LINE with
+     *  text height HEIGHT.  LINE must be at least that of the last
+     *  checkpoint. */
+    void add(int line, int page, int height) {
+        if (_size == _lines.length) {
+            _lines = Arrays.copyOf(_lines, 2 * _size);
+            _pages = Arrays.copyOf(_pages, 2 * _size);
+            _heights = Arrays.copyOf(_heights, 2 * _size);
+        }
+        _lines[_size] = line;
+        _pages[_size] = page;
+        _heights[_size] = height;
+        _size += 1;
+    }
+
+    /** Add the checkpoints K and after of FROM, adding LINEDELTA to their
+     *  line numbers and PAGEDELTA to their page numbers. */
+    void append(PageCheckpoints from, int k, int lineDelta, int pageDelta) {
+        for (; k < from._size; k += 1) {
+            add(from._lines[k] + lineDelta, from._pages[k] + pageDelta,
+                from._heights[k]);
+        }
+    }
+
+    /** Discard all but the first K checkpoints. */
+    void truncate(int k) {
+        _size = Math.min(_size, k);
+    }
+
+    /** Return the number of checkpoints. */
+    int size() {
+        return _size;
+    }
+
+    /** Return the first line of the page of checkpoint K. */
+    int line(int k) {
+        return _lines[k];
+    }
+
+    /** Return the page number of checkpoint K. */
+    int page(int k) {
+        return _pages[k];
+    }
+
+    /** Return the text height at checkpoint K. */
+    int height(int k) {
+        return _heights[k];
+    }
+
+    /** Return the index of the last checkpoint whose line is at most
+     *  LINE, or -1 if there is none. */
+    int find(int line) {
+        int lo = 0, hi = _size;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (_lines[mid] <= line) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo - 1;
+    }
+
+    /** First lines of the pages. */
+    private int[] _lines;
+    /** Page numbers. */
+    private int[] _pages;
+    /** Text heights at the start of the pages. */
+    private int[] _heights;
+    /** Number of checkpoints. */
+    private int _size;
+}
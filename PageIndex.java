@@ -0,0 +1,318 @@
+package tex61;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/** An index of where in a source file each page of its formatted output
+ *  begins, kept beside it in a ".tex61idx" file, so that any range of
+ *  pages can be formatted without formatting the pages before them.
+ *
+ *  Formatting can only resume between paragraphs, and a page may begin
+ *  in the middle of one, so for each page the index records the last
+ *  paragraph break of the input before the page began: the position in
+ *  bytes and the line number of the input that follows it, the number
+ *  of macros defined by then, and the state of the Controller there (see
+ *  Controller.saveState), which includes all settings, any paragraph
+ *  skip held for the next paragraph, the number of the next endnote, and
+ *  the paging state.  Formatting resumed there reproduces the page
+ *  exactly.  Consecutive pages that begin in the same paragraph, or in
+ *  paragraphs that start no page, share a checkpoint, which is recorded
+ *  once, for the first of them.  Endnotes are gathered from the whole
+ *  document, so pages from the one on which they begin are formatted
+ *  from the start.
+ *
+ *  An index file holds a header (MAGIC, VERSION, the charset, the
+ *  source's length and modification time, and whether paragraphs were
+ *  streamed), the page on which endnotes begin (0 if none), the macro
+ *  definitions in order, and the checkpoints, written as by
+ *  DataOutputStream.  An index that does not match the source, or cannot
+ *  be read, is ignored.
+ *  @author Austin Gandy
+ */
+class PageIndex {
+
+    /** First bytes of every index file. */
+    static final byte[] MAGIC =
+        "TEX61IDX".getBytes(StandardCharsets.US_ASCII);
+    /** Version of the format of index files. */
+    static final int VERSION = 1;
+    /** Suffix of the names of index files. */
+    static final String SUFFIX = ".tex61idx";
+
+    /** Number of ints in each checkpoint: the first page it serves, the
+     *  line number of the input, the number of macros defined, and the
+     *  state of the Controller. */
+    private static final int RECORD = 3 + Controller.STATE;
+
+    /** Initial capacity, in checkpoints. */
+    private static final int INITIAL_SIZE = 64;
+
+    /** Size of the buffer used for writing index files. */
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    /** The index of the pages of SOURCE, decoded according to CHARSET and
+     *  formatted with paragraphs streamed iff STREAM. */
+    PageIndex(Path source, Charset charset, boolean stream) {
+        _source = source;
+        _charset = charset;
+        _stream = stream;
+        _file = Path.of(source + SUFFIX);
+        _offsets = new long[INITIAL_SIZE];
+        _states = new int[INITIAL_SIZE * RECORD];
+        _macros = new ArrayList<char[]>();
+    }
+
+    /** Return the index file. */
+    Path file() {
+        return _file;
+    }
+
+    /** Read my index file, returning true iff it exists and is valid for
+     *  the source's current contents. */
+    boolean read() {
+        _size = 0;
+        _macros.clear();
+        try (DataInputStream in = new DataInputStream(
+                 new ByteArrayInputStream(Files.readAllBytes(_file)))) {
+            byte[] magic = new byte[MAGIC.length];
+            in.readFully(magic);
+            if (!Arrays.equals(magic, MAGIC) || in.readInt() != VERSION
+                || !in.readUTF().equals(_charset.name())
+                || in.readLong() != Files.size(_source)
+                || in.readLong()
+                   != Files.getLastModifiedTime(_source).toMillis()
+                || in.readBoolean() != _stream) {
+                return false;
+            }
+            _endnotePage = in.readInt();
+            for (int n = in.readInt(); n > 0; n -= 1) {
+                _macros.add(readChars(in));
+            }
+            for (int n = in.readInt(); n > 0; n -= 1) {
+                reserve();
+                _offsets[_size] = in.readLong();
+                for (int i = 0; i < RECORD; i += 1) {
+                    _states[_size * RECORD + i] = in.readInt();
+                }
+                _size += 1;
+            }
+            return in.read() < 0;
+        } catch (IOException e) {
+            _size = 0;
+            _macros.clear();
+            return false;
+        }
+    }
+
+    /** Record the index while CNTRL formats the input scanned by LEXER,
+     *  from its start, onto PAGES, its main PageAssembler.  LEXER must
+     *  report each paragraph break by calling paragraph(), as
+     *  InputParser.setIndex arranges, and lines must reach PAGES as each
+     *  paragraph ends (so CNTRL must have no executor).  Must be called
+     *  before any input is scanned. */
+    void record(Controller cntrl, PageAssembler pages, Lexer lexer) {
+        _cntrl = cntrl;
+        _lexer = lexer;
+        _size = 0;
+        _macros.clear();
+        _starts = new PageCheckpoints();
+        _seen = 0;
+        pages.setCheckpoints(_starts);
+        cntrl.macros().setLog(_macros);
+        lexer.countBytes(_charset, 0);
+        save();
+    }
+
+    /** Record that a paragraph of the input has just ended. */
+    void paragraph() {
+        commit();
+        save();
+    }
+
+    /** Record that formatting is complete, and write the index file.
+     *  The index is only an aid to speed, so failing to write it is not
+     *  an error. */
+    void write() {
+        commit();
+        _endnotePage = _cntrl.endnotePage();
+        Path temp = null;
+        try {
+            temp = Files.createTempFile(_file.toAbsolutePath().getParent(),
+                                        "tex61", ".tmp");
+            try (DataOutputStream out = new DataOutputStream(
+                     new BufferedOutputStream(Files.newOutputStream(temp),
+                                              BUFFER_SIZE))) {
+                out.write(MAGIC);
+                out.writeInt(VERSION);
+                out.writeUTF(_charset.name());
+                out.writeLong(Files.size(_source));
+                out.writeLong(Files.getLastModifiedTime(_source).toMillis());
+                out.writeBoolean(_stream);
+                out.writeInt(_endnotePage);
+                out.writeInt(_macros.size());
+                for (char[] chars : _macros) {
+                    out.writeInt(chars.length);
+                    for (char c : chars) {
+                        out.writeChar(c);
+                    }
+                }
+                out.writeInt(_size);
+                for (int k = 0; k < _size; k += 1) {
+                    out.writeLong(_offsets[k]);
+                    for (int i = 0; i < RECORD; i += 1) {
+                        out.writeInt(_states[k * RECORD + i]);
+                    }
+                }
+            }
+            try {
+                Files.move(temp, _file, StandardCopyOption.REPLACE_EXISTING,
+                           StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(temp, _file, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } catch (IOException e) {
+            try {
+                if (temp != null) {
+                    Files.deleteIfExists(temp);
+                }
+            } catch (IOException ignored) {
+                /* Nothing more to do. */
+            }
+        }
+    }
+
+    /** Return the number of checkpoints. */
+    int size() {
+        return _size;
+    }
+
+    /** Return the page on which endnotes begin, or 0 if there are none.
+     *  Pages from there on cannot be formatted from a checkpoint. */
+    int endnotePage() {
+        return _endnotePage;
+    }
+
+    /** Return the last checkpoint from which page PAGE can be formatted,
+     *  or -1 if it must be formatted from the start. */
+    int find(int page) {
+        int lo = 0, hi = _size;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (_states[mid * RECORD] <= page) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo - 1;
+    }
+
+    /** Return the position in bytes of the input at checkpoint K. */
+    long offset(int k) {
+        return _offsets[k];
+    }
+
+    /** Return the line number of the input at checkpoint K. */
+    int line(int k) {
+        return _states[k * RECORD + 1];
+    }
+
+    /** Set CNTRL, which must be new, to the state recorded at checkpoint
+     *  K, defining the macros defined by then. */
+    void restore(int k, Controller cntrl) {
+        MacroTable macros = cntrl.macros();
+        int n = _states[k * RECORD + 2];
+        for (int i = 0; i < n; i += 1) {
+            char[] name = _macros.get(2 * i), body = _macros.get(2 * i + 1);
+            macros.define(name, 0, name.length, body, 0, body.length);
+        }
+        cntrl.restoreState(_states, k * RECORD + 3);
+    }
+
+    /** Save the state at the current paragraph break in _last. */
+    private void save() {
+        _lastOffset = _lexer.offset();
+        _last[1] = _lexer.nextLine();
+        _last[2] = _macros.size() / 2;
+        _cntrl.saveState(_last, 3);
+    }
+
+    /** If any pages have begun since the last paragraph break, add a
+     *  checkpoint for the first of them holding the state saved there. */
+    private void commit() {
+        if (_starts.size() > _seen) {
+            _last[0] = _starts.page(_seen);
+            _seen = _starts.size();
+            reserve();
+            _offsets[_size] = _lastOffset;
+            System.arraycopy(_last, 0, _states, _size * RECORD, RECORD);
+            _size += 1;
+        }
+    }
+
+    /** Make room for another checkpoint. */
+    private void reserve() {
+        if (_size == _offsets.length) {
+            _offsets = Arrays.copyOf(_offsets, 2 * _size);
+            _states = Arrays.copyOf(_states, 2 * _size * RECORD);
+        }
+    }
+
+    /** Return the characters written by write() at the current position
+     *  of IN. */
+    private static char[] readChars(DataInputStream in) throws IOException {
+        int len = in.readInt();
+        if (len < 0 || len > in.available() / 2) {
+            throw new IOException("damaged index");
+        }
+        char[] chars = new char[len];
+        for (int i = 0; i < len; i += 1) {
+            chars[i] = in.readChar();
+        }
+        return chars;
+    }
+
+    /** The source file. */
+    private final Path _source;
+    /** Its charset. */
+    private final Charset _charset;
+    /** True iff paragraphs are streamed. */
+    private final boolean _stream;
+    /** The index file. */
+    private final Path _file;
+    /** Position in bytes of the input at each checkpoint. */
+    private long[] _offsets;
+    /** The other values of each checkpoint, RECORD ints apiece. */
+    private int[] _states;
+    /** Number of checkpoints. */
+    private int _size;
+    /** Names and bodies of the macros defined, in order. */
+    private final List<char[]> _macros;
+    /** Page on which endnotes begin, or 0. */
+    private int _endnotePage;
+    /** While recording: the Controller formatting the input. */
+    private Controller _cntrl;
+    /** While recording: the Lexer scanning the input. */
+    private Lexer _lexer;
+    /** While recording: the pages begun so far. */
+    private PageCheckpoints _starts;
+    /** While recording: the number of _starts already covered by a
+     *  checkpoint. */
+    private int _seen;
+    /** While recording: the state at the last paragraph break. */
+    private final int[] _last = new int[RECORD];
+    /** While recording: the position in bytes at that break. */
+    private long _lastOffset;
+}
@@ -0,0 +1,124 @@
+package tex61;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/** Unit tests of PageIndex and formatting ranges of pages.
+ *  @author Austin Gandy
+ */
+public class PageIndexTest {
+
+    /** Return the output of formatting SOURCE into OUTPUT with the
+     *  command-line options ARGS. */
+    private String format(Path source, Path output, String... args)
+        throws IOException {
+        Main.format(source.toString(), output.toString(),
+                    new Options(args), null, Diagnostics.failFast());
+        return Files.readString(output);
+    }
+
+    /** Return pages FIRST through LAST of the formatted document FULL. */
+    private String pages(String full, int first, int last) {
+        int start = 0;
+        for (int page = 1; page < first && start >= 0; page += 1) {
+            start = full.indexOf('\f', start + 1);
+        }
+        if (start < 0) {
+            return "";
+        }
+        int end = start;
+        for (int page = first; page <= last && end >= 0; page += 1) {
+            end = full.indexOf('\f', end + 1);
+        }
+        return full.substring(start, end < 0 ? full.length() : end);
+    }
+
+    /** Return a document of many short pages, whose settings and macros
+     *  change along the way. */
+    private String document(String mode) {
+        Corpus corpus = new Corpus(61, "mixed", mode);
+        corpus.setEndnoteFraction(0.0);
+        String text = corpus.generate(6000)
+            .replace("\\textheight{60}", "\\textheight{9}");
+        int middle = text.indexOf("\n\n", text.length() / 2) + 2;
+        return "\\def{m}{d\u00e9j\u00e0 vu\n\nnew}\\parskip{2}\\m\n\n"
+            + text.substring(0, middle)
+            + "\\textwidth{40}\\indent{3}\\def{m}{\u20ac}\\m \\m\n\n"
+            + text.substring(middle) + "\\endnote{last}\n";
+    }
+
+    /** Checks that each range of pages formatted from the index is
+     *  exactly that part of the whole document. */
+    @Test
+    public void testRanges() throws IOException {
+        Path directory = Files.createTempDirectory("tex61");
+        Path source = directory.resolve("doc.txt");
+        Path output = directory.resolve("doc.out");
+        for (String mode : Corpus.MODES) {
+            Files.writeString(source, document(mode));
+            String full = format(source, output);
+            assertEquals(full, format(source, output, "--page-index"));
+            PageIndex index = new PageIndex(source, StandardCharsets.UTF_8,
+                                            false);
+            assertTrue(index.read());
+            int last = full.split("\f", -1).length;
+            assertTrue(mode, index.find(last / 2) > 0);
+            assertTrue(index.endnotePage() >= last - 1);
+            int[][] ranges = {
+                { 1, 1 }, { 2, 4 }, { last / 3, last / 3 },
+                { last / 2, last / 2 + 5 }, { last - 2, last - 1 },
+                { last, last }, { 1, last }, { last + 1, last + 9 }
+            };
+            for (int[] range : ranges) {
+                assertEquals(mode + " " + range[0] + "-" + range[1],
+                             pages(full, range[0], range[1]),
+                             format(source, output, "--pages",
+                                    range[0] + "-" + range[1]));
+            }
+            Files.delete(index.file());
+        }
+        Files.delete(output);
+        Files.delete(source);
+        Files.delete(directory);
+    }
+
+    /** Checks that an index that no longer matches its source is
+     *  recorded again rather than used. */
+    @Test
+    public void testStale() throws IOException {
+        Path directory = Files.createTempDirectory("tex61");
+        Path source = directory.resolve("doc.txt");
+        Path output = directory.resolve("doc.out");
+        String text = document("justify");
+        Files.writeString(source, text);
+        String page = pages(format(source, output), 20, 20);
+        assertEquals(page, format(source, output, "--pages", "20"));
+        PageIndex index = new PageIndex(source, StandardCharsets.UTF_8,
+                                        false);
+        assertTrue(index.read());
+        assertFalse(new PageIndex(source, StandardCharsets.UTF_8, true)
+                    .read());
+
+        Files.writeString(source, "\\indent{1}" + text);
+        String changed = pages(format(source, output), 20, 20);
+        assertNotEquals(page, changed);
+        assertEquals(changed, format(source, output, "--pages", "20"));
+        assertEquals(changed, format(source, output, "--pages", "20"));
+
+        Files.write(index.file(), new byte[] { 1, 2, 3 });
+        assertFalse(index.read());
+        assertEquals(changed, format(source, output, "--pages", "20"));
+        assertTrue(index.read());
+
+        Files.delete(index.file());
+        Files.delete(output);
+        Files.delete(source);
+        Files.delete(directory);
+    }
+
+}
@@ -2,30 +2,132 @@ package tex61;
 
 import java.io.PrintWriter;
 
-/** A PageAssembler that sends lines immediately to a PrintWriter, with
- *  terminating newlines.
+/** A PageAssembler that sends lines to a PrintWriter, with terminating
+ *  newlines.  Unless created with a buffer size of 0, it collects
+ *  output in a buffer and passes it on in batches of whole pages, so as
+ *  to make as few, and as large, writes as possible.
  *  @author Austin Gandy
  */
 class PagePrinter extends PageAssembler {
 
-    /** A new PagePrinter that sends lines to OUT. */
+    /** Default size in characters of the output buffer. */
+    static final int BUFFER_SIZE = 1 << 16;
+
+    /** A new PagePrinter that sends lines immediately to OUT. */
     PagePrinter(PrintWriter out) {
+        this(out, 0);
+    }
+
+    /** A new PagePrinter that sends lines to OUT through a buffer of
+     *  BUFFERSIZE characters, or immediately if BUFFERSIZE is 0. */
+    PagePrinter(PrintWriter out, int bufferSize) {
         super();
         _out = out;
+        _buf = new char[bufferSize];
     }
 
     /** Print LINE to my output. */
     @Override
     void write(String line) {
-        _out.print(line);
+        int len = line.length();
+        if (reserve(len)) {
+            line.getChars(0, len, _buf, _length);
+            _length += len;
+        } else {
+            Metrics.add(Metrics.CHARS_WRITTEN, len);
+            _out.print(line);
+        }
+    }
+
+    /** Print the line BUF[START .. END-1] to my output, preceded by a form
+     *  feed iff FORMFEED and followed by a newline iff NEWLINE. */
+    @Override
+    void write(char[] buf, int start, int end, boolean formFeed,
+               boolean newline) {
+        int len = end - start;
+        if (formFeed || !_started) {
+            Metrics.add(Metrics.PAGES, 1);
+            _started = true;
+        }
+        if (reserve(len + 2)) {
+            if (formFeed) {
+                _buf[_length] = '\f';
+                _length += 1;
+            }
+            System.arraycopy(buf, start, _buf, _length, len);
+            _length += len;
+            if (newline) {
+                _buf[_length] = '\n';
+                _length += 1;
+            }
+            return;
+        }
+        Metrics.add(Metrics.CHARS_WRITTEN,
+                    len + (formFeed ? 1 : 0) + (newline ? 1 : 0));
+        if (formFeed) {
+            _out.write('\f');
+        }
+        _out.write(buf, start, len);
+        if (newline) {
+            _out.write('\n');
+        }
     }
 
     /** Prints a blank line. */
     @Override
     void write() {
-        _out.println();
+        write(System.lineSeparator());
+    }
+
+    /** Pass the buffered pages on to my output, unless there is room for
+     *  at least another page of the same size. */
+    @Override
+    void endPage() {
+        if (_buf.length - _length < _length - _pageStart) {
+            flushBuffer();
+        }
+        _pageStart = _length;
+    }
+
+    /** Pass all buffered output on to my output, and flush it. */
+    @Override
+    void flush() {
+        flushBuffer();
+        long start = Metrics.start();
+        _out.flush();
+        Metrics.stop(Metrics.WRITE_NANOS, start);
+    }
+
+    /** Make room for LEN more characters in _buf, if possible, passing
+     *  buffered output on as needed.  Returns false if LEN characters
+     *  will not fit even in an empty buffer. */
+    private boolean reserve(int len) {
+        if (_length + len > _buf.length) {
+            flushBuffer();
+        }
+        return len <= _buf.length;
+    }
+
+    /** Pass the contents of _buf on to _out and empty it. */
+    private void flushBuffer() {
+        if (_length > 0) {
+            long start = Metrics.start();
+            Metrics.add(Metrics.CHARS_WRITTEN, _length);
+            _out.write(_buf, 0, _length);
+            _length = 0;
+            Metrics.stop(Metrics.WRITE_NANOS, start);
+        }
+        _pageStart = 0;
     }
 
     /** Where we print stuff to. */
     private java.io.PrintWriter _out;
+    /** Output not yet passed on to _out. */
+    private char[] _buf;
+    /** Number of characters in _buf. */
+    private int _length;
+    /** Position in _buf of the start of the current page. */
+    private int _pageStart;
+    /** True iff I have written any line. */
+    private boolean _started;
 }
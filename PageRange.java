@@ -0,0 +1,67 @@
+package tex61;
+
+import java.io.PrintWriter;
+
+/** A PagePrinter that prints only the lines of a range of pages,
+ *  discarding the rest.  Each page is printed just as it would be in
+ *  the whole document, so that the output for pages FIRST through LAST
+ *  is exactly the part of the whole output from the start of page FIRST
+ *  to the start of page LAST+1.  Optionally, it stops formatting by
+ *  throwing Done when the page after the range begins.
+ *  @author Austin Gandy
+ */
+class PageRange extends PagePrinter {
+
+    /** Thrown to stop formatting once the last page wanted is complete. */
+    static class Done extends RuntimeException {
+
+        /** Version of the serialized form. */
+        private static final long serialVersionUID = 1L;
+
+        /** A new Done. */
+        Done() {
+            super(null, null, false, false);
+        }
+    }
+
+    /** A new PageRange that prints pages FIRST through LAST to OUT
+     *  through a buffer of BUFFERSIZE characters (see PagePrinter).  Iff
+     *  STOP, it throws Done on reaching page LAST+1. */
+    PageRange(PrintWriter out, int bufferSize, int first, int last,
+              boolean stop) {
+        super(out, bufferSize);
+        _first = first;
+        _last = last;
+        _stop = stop;
+    }
+
+    @Override
+    void write(String line) {
+        if (wanted()) {
+            super.write(line);
+        }
+    }
+
+    @Override
+    void write(char[] buf, int start, int end, boolean formFeed,
+               boolean newline) {
+        if (wanted()) {
+            super.write(buf, start, end, formFeed, newline);
+        }
+    }
+
+    /** Return true iff the current page is in my range, throwing Done if
+     *  it is past the range and I am to stop there. */
+    private boolean wanted() {
+        int page = pageNumber();
+        if (page > _last && _stop) {
+            throw new Done();
+        }
+        return page >= _first && page <= _last;
+    }
+
+    /** First and last pages printed. */
+    private final int _first, _last;
+    /** True iff I stop formatting after page _last. */
+    private final boolean _stop;
+}
@@ -0,0 +1,60 @@
+package tex61;
+
+import java.util.ArrayList;
+import java.util.concurrent.Callable;
+
+/** A sequence of ended paragraphs, each held by a LineAssembler with its
+ *  own copy of the paragraph's words and of the settings in effect when
+ *  it ended, to be filled independently of the rest of the document.
+ *  The lines of all the paragraphs are recorded, in order, in a single
+ *  LineBuffer.
+ *  @author Austin Gandy
+ */
+class ParagraphBatch implements Callable<LineBuffer> {
+
+    /** A new, empty batch. */
+    ParagraphBatch() {
+        _lines = new LineBuffer();
+        _paragraphs = new ArrayList<LineAssembler>();
+        _skips = new ArrayList<Integer>();
+    }
+
+    /** Return the LineBuffer that receives my lines.  LineAssemblers
+     *  added to me must send their lines to it. */
+    LineBuffer lines() {
+        return _lines;
+    }
+
+    /** Add PARAGRAPH, to be preceded by SKIP blank lines. */
+    void add(LineAssembler paragraph, int skip) {
+        _paragraphs.add(paragraph);
+        _skips.add(skip);
+        _numWords += paragraph.numWords();
+    }
+
+    /** Return the total number of words in my paragraphs. */
+    int numWords() {
+        return _numWords;
+    }
+
+    /** Fill all my paragraphs, returning their lines. */
+    @Override
+    public LineBuffer call() {
+        for (int i = 0; i < _paragraphs.size(); i += 1) {
+            for (int k = _skips.get(i); k > 0; k -= 1) {
+                _lines.addBlankLine();
+            }
+            _paragraphs.get(i).fillParagraph();
+        }
+        return _lines;
+    }
+
+    /** Receives the lines of all my paragraphs. */
+    private final LineBuffer _lines;
+    /** The paragraphs to be filled. */
+    private final ArrayList<LineAssembler> _paragraphs;
+    /** Number of blank lines to precede each paragraph. */
+    private final ArrayList<Integer> _skips;
+    /** Total words in _paragraphs. */
+    private int _numWords;
+}
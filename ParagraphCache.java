@@ -0,0 +1,152 @@
+package tex61;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/** A cache of the filled lines of paragraphs, so that a document that is
+ *  formatted repeatedly need only have its changed paragraphs filled and
+ *  justified again.  Each entry is keyed by the words of a paragraph
+ *  together with the settings that determine how they are filled.  When
+ *  the estimated memory used by the entries exceeds a bound, the least
+ *  recently used entries are discarded.  A ParagraphCache may be shared
+ *  between threads.
+ *  @author Austin Gandy
+ */
+class ParagraphCache {
+
+    /** Default bound on the memory used by a cache, in bytes. */
+    static final long DEFAULT_MAX_BYTES = 1L << 25;
+
+    /** Estimated memory used by an entry beyond its arrays, in bytes. */
+    private static final int ENTRY_OVERHEAD = 128;
+
+    /** A new, empty cache whose entries use at most about MAXBYTES bytes
+     *  of memory. */
+    ParagraphCache(long maxBytes) {
+        _maxBytes = maxBytes;
+        _entries = new LinkedHashMap<Key, LineBuffer>(16, 0.75f, true);
+    }
+
+    /** Return the lines cached for KEY, or null if there are none. */
+    synchronized LineBuffer get(Key key) {
+        LineBuffer lines = _entries.get(key);
+        if (lines == null) {
+            _misses += 1;
+        } else {
+            _hits += 1;
+        }
+        return lines;
+    }
+
+    /** Cache LINES as the filled lines of the paragraph described by KEY,
+     *  discarding old entries as needed to stay within my bound. */
+    synchronized void put(Key key, LineBuffer lines) {
+        long bytes = size(key, lines);
+        if (bytes > _maxBytes) {
+            return;
+        }
+        LineBuffer old = _entries.put(key, lines);
+        if (old != null) {
+            _bytes -= size(key, old);
+        }
+        _bytes += bytes;
+        Iterator<Map.Entry<Key, LineBuffer>> entries =
+            _entries.entrySet().iterator();
+        while (_bytes > _maxBytes) {
+            Map.Entry<Key, LineBuffer> eldest = entries.next();
+            _bytes -= size(eldest.getKey(), eldest.getValue());
+            entries.remove();
+        }
+    }
+
+    /** Discard all entries. */
+    synchronized void clear() {
+        _entries.clear();
+        _bytes = 0;
+    }
+
+    /** Return the number of entries. */
+    synchronized int entries() {
+        return _entries.size();
+    }
+
+    /** Return the estimated memory used by my entries, in bytes. */
+    synchronized long bytes() {
+        return _bytes;
+    }
+
+    /** Return the number of calls to get that found an entry. */
+    synchronized long hits() {
+        return _hits;
+    }
+
+    /** Return the number of calls to get that found no entry. */
+    synchronized long misses() {
+        return _misses;
+    }
+
+    /** Return the estimated memory used by an entry for KEY and LINES. */
+    private static long size(Key key, LineBuffer lines) {
+        return ENTRY_OVERHEAD + key.bytes() + lines.bytes();
+    }
+
+    /** The words of a paragraph and the settings in effect when it was
+     *  filled. */
+    static final class Key {
+
+        /** A key for the paragraph whose words are the characters of
+         *  CHARS, taken in order with lengths LENGTHS, filled with
+         *  SETTINGS.  The arrays become the property of the key. */
+        Key(int[] settings, char[] chars, int[] lengths) {
+            _settings = settings;
+            _chars = chars;
+            _lengths = lengths;
+            _hash = 31 * (31 * Arrays.hashCode(settings)
+                          + Arrays.hashCode(chars))
+                + Arrays.hashCode(lengths);
+        }
+
+        @Override
+        public int hashCode() {
+            return _hash;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) obj;
+            return _hash == other._hash
+                && Arrays.equals(_settings, other._settings)
+                && Arrays.equals(_lengths, other._lengths)
+                && Arrays.equals(_chars, other._chars);
+        }
+
+        /** Return the estimated memory used by my arrays, in bytes. */
+        int bytes() {
+            return 2 * _chars.length
+                + 4 * (_settings.length + _lengths.length);
+        }
+
+        /** Settings that affect filling. */
+        private final int[] _settings;
+        /** Characters of the words. */
+        private final char[] _chars;
+        /** Lengths of the words. */
+        private final int[] _lengths;
+        /** Hash code. */
+        private final int _hash;
+    }
+
+    /** Bound on _bytes. */
+    private final long _maxBytes;
+    /** The cached lines, least recently used first. */
+    private final LinkedHashMap<Key, LineBuffer> _entries;
+    /** Estimated memory used by _entries. */
+    private long _bytes;
+    /** Counts of calls to get that did and did not find an entry. */
+    private long _hits, _misses;
+}
@@ -0,0 +1,251 @@
+package tex61;
+
+import java.io.Closeable;
+import java.io.Reader;
+import java.util.Arrays;
+
+/** A Lexer whose tokens are scanned ahead of time by a Lexer running on
+ *  another thread, so that reading and tokenizing input overlap with
+ *  formatting it.  The scanning thread passes tokens over in batches,
+ *  through a RingBuffer holding at most BATCHES batches; when it is
+ *  full, the scanning thread waits.  Since the argument of every
+ *  COMMAND_ARG_TOKEN is always read, the scanning thread reads it too,
+ *  along with the second argument of a \def.  Errors in reading input are
+ *  thrown by next(), after the tokens that preceded them.
+ *  @author Austin Gandy
+ */
+class PipedLexer extends Lexer implements Closeable {
+
+    /** Number of batches of tokens in flight between the threads. */
+    static final int BATCHES = 4;
+    /** Number of tokens in a batch. */
+    static final int BATCH_SIZE = 1 << 10;
+
+    /** A new PipedLexer that reads characters from READER, starting the
+     *  thread that scans them. */
+    PipedLexer(Reader reader) {
+        super();
+        _full = new RingBuffer<Batch>(BATCHES);
+        _free = new RingBuffer<Batch>(BATCHES);
+        for (int i = 0; i < BATCHES; i += 1) {
+            _free.put(new Batch());
+        }
+        Thread scanner = new Thread(() -> scan(new Lexer(reader)),
+                                    "tex61-lexer");
+        scanner.setDaemon(true);
+        scanner.start();
+    }
+
+    @Override
+    void reset(char[] buf, int start, int end) {
+        throw new IllegalStateException("lexer reads from a Reader");
+    }
+
+    @Override
+    int next() {
+        while (true) {
+            if (_batch != null && _next < _batch.size) {
+                int kind = _batch.kinds[_next];
+                _next += 1;
+                if (kind >= 0) {
+                    _current = _next - 1;
+                    _line = _batch.lines[_current];
+                    _column = _batch.columns[_current];
+                    return kind;
+                }
+            } else if (_done) {
+                return EOF_TOKEN;
+            } else {
+                nextBatch();
+            }
+        }
+    }
+
+    @Override
+    boolean readArgument() {
+        if (_batch == null || _next >= _batch.size
+            || _batch.kinds[_next] >= 0) {
+            return false;
+        }
+        _current = _next;
+        _next += 1;
+        return _batch.kinds[_current] == ARGUMENT;
+    }
+
+    @Override
+    boolean readNextArgument() {
+        return readArgument();
+    }
+
+    @Override
+    int line() {
+        return _line;
+    }
+
+    @Override
+    int column() {
+        return _column;
+    }
+
+    @Override
+    String text() {
+        return new String(_batch.text, start(), end() - start());
+    }
+
+    @Override
+    char[] buffer() {
+        return _batch.text;
+    }
+
+    @Override
+    int start() {
+        return _batch.starts[_current];
+    }
+
+    @Override
+    int end() {
+        return _batch.ends[_current];
+    }
+
+    /** Stop the scanning thread, if it is still running.  Any tokens not
+     *  yet returned by next() are discarded. */
+    @Override
+    public void close() {
+        _done = true;
+        _full.cancel();
+        _free.close();
+    }
+
+    /** Return the current batch, if any, to the scanning thread, and make
+     *  the next one current, setting _done at the end of the tokens.
+     *  Throws the exception that stopped the scanning thread, if any. */
+    private void nextBatch() {
+        if (_batch != null) {
+            _free.put(_batch);
+            _batch = null;
+        }
+        Batch batch = _full.take();
+        if (batch == null) {
+            _done = true;
+            if (_failure instanceof Error) {
+                throw (Error) _failure;
+            } else if (_failure != null) {
+                throw (RuntimeException) _failure;
+            }
+            return;
+        }
+        _batch = batch;
+        _next = 0;
+    }
+
+    /** Scan all the tokens of LEXER, passing them over in batches, until
+     *  the end of input, a failure, or close. */
+    private void scan(Lexer lexer) {
+        try {
+            Batch batch = _free.take();
+            while (batch != null) {
+                batch.size = 0;
+                batch.length = 0;
+                int kind;
+                do {
+                    kind = lexer.next();
+                    batch.add(kind, lexer);
+                    if (kind == COMMAND_ARG_TOKEN) {
+                        boolean def =
+                            Arrays.equals(lexer.buffer(), lexer.start(),
+                                          lexer.end(), MacroTable.DEF, 0,
+                                          MacroTable.DEF.length);
+                        boolean ok = lexer.readArgument();
+                        batch.add(ok ? ARGUMENT : BAD_ARGUMENT, lexer);
+                        if (def && ok) {
+                            ok = lexer.readNextArgument();
+                            batch.add(ok ? ARGUMENT : BAD_ARGUMENT, lexer);
+                        }
+                    }
+                } while (kind != EOF_TOKEN && batch.size < BATCH_SIZE);
+                if (!_full.put(batch) || kind == EOF_TOKEN) {
+                    break;
+                }
+                batch = _free.take();
+            }
+        } catch (RuntimeException | Error e) {
+            _failure = e;
+        } finally {
+            _full.close();
+        }
+    }
+
+    /** Kinds of the records of arguments that follow a
+     *  COMMAND_ARG_TOKEN: a well-formed argument, whose text is recorded,
+     *  and a malformed or missing one. */
+    private static final int ARGUMENT = -1, BAD_ARGUMENT = -2;
+
+    /** A batch of tokens and arguments, with their kinds, positions, and
+     *  (for those whose text is used) text. */
+    private static class Batch {
+
+        /** Add a record of kind KIND for the token or argument last
+         *  scanned by LEXER. */
+        void add(int kind, Lexer lexer) {
+            if (size == kinds.length) {
+                int n = 2 * size;
+                kinds = Arrays.copyOf(kinds, n);
+                starts = Arrays.copyOf(starts, n);
+                ends = Arrays.copyOf(ends, n);
+                lines = Arrays.copyOf(lines, n);
+                columns = Arrays.copyOf(columns, n);
+            }
+            kinds[size] = kind;
+            lines[size] = lexer.line();
+            columns[size] = lexer.column();
+            starts[size] = ends[size] = length;
+            if (kind != BLANK_TOKEN && kind != EOL_TOKEN && kind != EOP_TOKEN
+                && kind != EOF_TOKEN && kind != BAD_ARGUMENT) {
+                int len = lexer.end() - lexer.start();
+                if (length + len > text.length) {
+                    text = Arrays.copyOf(text,
+                                         Math.max(2 * text.length,
+                                                  length + len));
+                }
+                System.arraycopy(lexer.buffer(), lexer.start(), text, length,
+                                 len);
+                length += len;
+                ends[size] = length;
+            }
+            size += 1;
+        }
+
+        /** Kinds of the records: token kinds, ARGUMENT, or
+         *  BAD_ARGUMENT. */
+        private int[] kinds = new int[BATCH_SIZE + 2];
+        /** Bounds in text of the text of each record. */
+        private int[] starts = new int[BATCH_SIZE + 2],
+            ends = new int[BATCH_SIZE + 2];
+        /** Line and column of the start of each record's token. */
+        private int[] lines = new int[BATCH_SIZE + 2],
+            columns = new int[BATCH_SIZE + 2];
+        /** The text of all the records. */
+        private char[] text = new char[BATCH_SIZE * 8];
+        /** Number of records. */
+        private int size;
+        /** Number of characters of text used. */
+        private int length;
+    }
+
+    /** Batches of scanned tokens, from the scanning thread. */
+    private final RingBuffer<Batch> _full;
+    /** Batches already used, returned to the scanning thread. */
+    private final RingBuffer<Batch> _free;
+    /** The batch holding the next token, or null. */
+    private Batch _batch;
+    /** Index in _batch of the next record, and of the last token or
+     *  argument returned. */
+    private int _next, _current;
+    /** Line and column of the last token returned by next(). */
+    private int _line, _column;
+    /** True iff there are no more batches. */
+    private boolean _done;
+    /** What stopped the scanning thread, if it failed. */
+    private volatile Throwable _failure;
+
+}
@@ -0,0 +1,120 @@
+package tex61;
+
+import java.io.PrintWriter;
+import java.io.Reader;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+
+/** Formats successive versions of a document, as from an editor that
+ *  formats its buffer each time it is saved.  Each version is parsed in
+ *  full, but the filled and justified lines of its paragraphs are kept in
+ *  a ParagraphCache, so that only paragraphs whose words or settings have
+ *  changed since an earlier version are filled again, and its pages are
+ *  kept by a Repaginator, so that only the pages from the first changed
+ *  line up to where page breaks fall as before are formed again.
+ *  @author Austin Gandy
+ */
+public class Reformatter {
+
+    /** A new Reformatter whose cache uses a default amount of memory. */
+    public Reformatter() {
+        this(ParagraphCache.DEFAULT_MAX_BYTES);
+    }
+
+    /** A new Reformatter whose cache uses at most about MAXBYTES bytes of
+     *  memory. */
+    public Reformatter(long maxBytes) {
+        _cache = new ParagraphCache(maxBytes);
+        _pages = new Repaginator();
+    }
+
+    /** Return the result of formatting TEXT.  Any errors and warnings
+     *  are then given by diagnostics(). */
+    public String format(String text) {
+        StringWriter output = new StringWriter();
+        format(new StringReader(text), output);
+        return output.toString();
+    }
+
+    /** Format the text read from INPUT, writing the result to OUTPUT,
+     *  and return the errors and warnings found, in order, each as
+     *  "LINE:COLUMN: SEVERITY: MESSAGE".  Input in error is skipped and
+     *  the rest formatted; an error that stops formatting altogether,
+     *  such as a failure to read INPUT, is the last reported, and the
+     *  document is then formatted only up to it. */
+    public List<String> format(Reader input, Writer output) {
+        LineBuffer lines = new LineBuffer();
+        Controller controller = new Controller(lines);
+        Diagnostics diagnostics = Diagnostics.collect();
+        controller.setDiagnostics(diagnostics);
+        controller.setCache(_cache);
+        try {
+            new InputParser(input, controller).process();
+        } catch (FormatException e) {
+            /* Already recorded in diagnostics. */
+        } finally {
+            controller.release();
+        }
+        _repaged = _pages.paginate(lines);
+        PrintWriter writer = new PrintWriter(output);
+        _pages.write(writer);
+        writer.flush();
+        _diagnostics = new ArrayList<String>();
+        for (Diagnostics.Diagnostic diagnostic : diagnostics.diagnostics()) {
+            _diagnostics.add(diagnostic.toString());
+        }
+        return diagnostics();
+    }
+
+    /** Return the errors and warnings found in the last document
+     *  formatted, as for format(INPUT, OUTPUT). */
+    public List<String> diagnostics() {
+        return new ArrayList<String>(_diagnostics);
+    }
+
+    /** Discard all cached paragraphs and pages. */
+    public void clear() {
+        _cache.clear();
+        _pages = new Repaginator();
+    }
+
+    /** Return the number of pages in the last document formatted. */
+    public int pages() {
+        return _pages.pages();
+    }
+
+    /** Return the number of pages formed anew by the last call to
+     *  format. */
+    public int repaged() {
+        return _repaged;
+    }
+
+    /** Return the number of paragraphs whose lines were found in the
+     *  cache. */
+    public long hits() {
+        return _cache.hits();
+    }
+
+    /** Return the number of paragraphs that had to be filled. */
+    public long misses() {
+        return _cache.misses();
+    }
+
+    /** Return the estimated memory used by the cache, in bytes. */
+    public long cacheBytes() {
+        return _cache.bytes();
+    }
+
+    /** Lines of previously filled paragraphs. */
+    private final ParagraphCache _cache;
+    /** Pages of the last document formatted. */
+    private Repaginator _pages;
+    /** Number of pages formed anew by the last call to format. */
+    private int _repaged;
+    /** Errors and warnings in the last document formatted. */
+    private List<String> _diagnostics = new ArrayList<String>();
+
+}
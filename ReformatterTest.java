@@ -0,0 +1,146 @@
+package tex61;
+
+import java.io.PrintWriter;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/** Unit tests of Reformatter and ParagraphCache.
+ *  @author Austin Gandy
+ */
+public class ReformatterTest {
+
+    /** Paragraphs of a generated document, without its text height. */
+    private static final String[] PARAGRAPHS =
+        new Corpus(61, "mixed", "justify").generate(6000)
+        .replace("\\textheight{60}", "").split("\n\n");
+
+    /** Return a document made of PARAGRAPHS, the Kth of which is replaced
+     *  by CHANGED if K >= 0. */
+    private String document(int k, String changed) {
+        StringBuilder text = new StringBuilder("\\textheight{20}");
+        for (int i = 0; i < PARAGRAPHS.length; i += 1) {
+            text.append(i == k ? changed : PARAGRAPHS[i]);
+            text.append("\n\n");
+        }
+        return text.toString();
+    }
+
+    /** Return the result of formatting TEXT without a cache. */
+    private String format(String text) {
+        StringWriter output = new StringWriter();
+        PrintWriter writer = new PrintWriter(output);
+        Controller controller = new Controller(writer);
+        new InputParser(new StringReader(text), controller).process();
+        writer.close();
+        return output.toString();
+    }
+
+    /** Checks that reformatting gives the same results as formatting
+     *  from scratch, filling only changed paragraphs. */
+    @Test
+    public void testReformat() {
+        Reformatter reformatter = new Reformatter();
+        String text = document(-1, null);
+        assertEquals(format(text), reformatter.format(text));
+        long misses = reformatter.misses();
+        assertEquals(0, reformatter.hits());
+        assertEquals(format(text), reformatter.format(text));
+        assertEquals(misses, reformatter.misses());
+
+        text = document(12, "A changed paragraph.");
+        assertEquals(format(text), reformatter.format(text));
+        assertEquals(misses + 1, reformatter.misses());
+
+        text = "\\textwidth{40}" + text;
+        assertEquals(format(text), reformatter.format(text));
+        assertEquals(2 * misses + 1, reformatter.misses());
+    }
+
+    /** Checks that repaginating after an edit gives the same pages as
+     *  formatting from scratch, and that an edit that does not change the
+     *  number of lines re-forms only the page it is on. */
+    @Test
+    public void testRepaginate() {
+        Reformatter reformatter = new Reformatter();
+        String text = document(-1, null);
+        reformatter.format(text);
+        int pages = reformatter.pages();
+        assertTrue(pages > 10);
+
+        String edited = text.replace(PARAGRAPHS[8],
+                                     PARAGRAPHS[8].replace('a', 'b'));
+        assertNotEquals(text, edited);
+        assertEquals(format(edited), reformatter.format(edited));
+        assertEquals(pages, reformatter.pages());
+        assertEquals(1, reformatter.repaged());
+
+        assertEquals(format(edited), reformatter.format(edited));
+        assertEquals(0, reformatter.repaged());
+
+        text = edited.replace("\\textheight{20}", "\\textheight{15}");
+        assertEquals(format(text), reformatter.format(text));
+        assertEquals(reformatter.pages(), reformatter.repaged());
+    }
+
+    /** Checks repagination after random insertions and deletions of
+     *  paragraphs. */
+    @Test
+    public void testRandomEdits() {
+        Reformatter reformatter = new Reformatter();
+        Random random = new Random(61);
+        ArrayList<String> paragraphs =
+            new ArrayList<String>(Arrays.asList(PARAGRAPHS));
+        for (int n = 0; n < 40; n += 1) {
+            int k = 1 + random.nextInt(paragraphs.size() - 1);
+            if (random.nextBoolean()) {
+                paragraphs.remove(k);
+            } else {
+                paragraphs.add(k, PARAGRAPHS[random.nextInt(
+                                                 PARAGRAPHS.length)]);
+            }
+            String text = String.join("\n\n", paragraphs);
+            assertEquals(format(text), reformatter.format(text));
+        }
+    }
+
+    /** Checks that errors in a document are returned to the caller,
+     *  with the rest of the document formatted, rather than ending the
+     *  program. */
+    @Test
+    public void testErrors() {
+        Reformatter reformatter = new Reformatter();
+        String text = "Some \\nosuchcommand text.\n\n\\textwidth{x}More.\n";
+        String output = reformatter.format(text);
+        assertEquals(Arrays.asList(
+                         "1:6: error: unknown command: nosuchcommand",
+                         "3:1: error: For input string: \"x\""),
+                     reformatter.diagnostics());
+        assertTrue(output.contains("More."));
+        assertEquals(reformatter.diagnostics(),
+                     reformatter.format(new StringReader(text),
+                                        new StringWriter()));
+        reformatter.format("Fine.\n");
+        assertEquals(0, reformatter.diagnostics().size());
+    }
+
+    /** Checks that the cache stays within its memory bound, and that
+     *  results are still correct when entries have been discarded. */
+    @Test
+    public void testMemoryBound() {
+        Reformatter reformatter = new Reformatter(10000);
+        String text = document(-1, null);
+        assertEquals(format(text), reformatter.format(text));
+        assertTrue(reformatter.cacheBytes() <= 10000);
+        assertTrue(reformatter.cacheBytes() > 0);
+        assertEquals(format(text), reformatter.format(text));
+        reformatter.clear();
+        assertEquals(0, reformatter.cacheBytes());
+    }
+
+}
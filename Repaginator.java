@@ -0,0 +1,193 @@
+package tex61;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+
+/** Forms the lines of successive versions of a document into pages,
+ *  keeping the text of each page and a record of where each page begins.
+ *  When the lines change, paging resumes at the checkpoint of the page
+ *  holding the first changed line, and stops as soon as a page begins
+ *  within the unchanged lines at the end of the document exactly where a
+ *  page began before; the rest of the previous pages are then reused.
+ *  @author Austin Gandy
+ */
+class Repaginator {
+
+    /** A new Repaginator with no pages. */
+    Repaginator() {
+        _pages = new ArrayList<String>();
+        _checkpoints = new PageCheckpoints();
+    }
+
+    /** Form LINES into pages, reusing what I can of the pages formed from
+     *  the lines given to the previous call.  LINES must not be changed
+     *  afterwards.  Returns the number of pages formed anew. */
+    int paginate(LineBuffer lines) {
+        if (_lines == null) {
+            return paginate(lines, 0);
+        }
+        int first = lines.firstDifference(_lines);
+        if (first == lines.size() && first == _lines.size()) {
+            _lines = lines;
+            return 0;
+        }
+        return paginate(lines, first);
+    }
+
+    /** As for paginate(LINES), where FIRSTCHANGED is the number of the
+     *  first line or blank line of LINES that may differ from the lines
+     *  given to the previous call. */
+    int paginate(LineBuffer lines, int firstChanged) {
+        _old = _lines;
+        _oldPages = _pages;
+        _oldCheckpoints = _checkpoints;
+        _lines = lines;
+        _pages = new ArrayList<String>();
+        _checkpoints = new PageCheckpoints();
+        _converged = false;
+        _repaged = 0;
+        Pager pager = new Pager();
+        int k = _old == null ? -1 : _oldCheckpoints.find(firstChanged);
+        int from = 0;
+        if (k >= 0) {
+            int page = _oldCheckpoints.page(k);
+            _pages.addAll(_oldPages.subList(0, page - 2));
+            _checkpoints.append(_oldCheckpoints, 0, 0, 0);
+            _checkpoints.truncate(k);
+            pager.resume(_oldPages.get(page - 2),
+                         from = _oldCheckpoints.line(k), page,
+                         _oldCheckpoints.height(k));
+        }
+        if (_old != null) {
+            _delta = lines.size() - _old.size();
+            _unchanged = lines.size()
+                - lines.commonSuffix(_old, Math.min(lines.size(),
+                                                    _old.size())
+                                     - firstChanged);
+        }
+        pager.setCheckpoints(_checkpoints);
+        for (int i = from; i < lines.size() && !_converged; i += 1) {
+            lines.replay(pager, i, i + 1);
+        }
+        if (!_converged) {
+            pager.finishPage();
+        }
+        _old = null;
+        _oldPages = null;
+        _oldCheckpoints = null;
+        return _repaged;
+    }
+
+    /** Return the number of pages. */
+    int pages() {
+        return _pages.size();
+    }
+
+    /** Return the checkpoints recorded at the start of each page after
+     *  the first. */
+    PageCheckpoints checkpoints() {
+        return _checkpoints;
+    }
+
+    /** Write all my pages to OUT. */
+    void write(PrintWriter out) {
+        for (String page : _pages) {
+            out.print(page);
+        }
+    }
+
+    /** A PageAssembler that collects the text of each page in _pages,
+     *  and detects when its pages converge with _oldPages. */
+    private class Pager extends PageAssembler {
+
+        /** Resume paging at line LINE, which begins page PAGE at text
+         *  height HEIGHT, following the page whose text is PREVIOUS. */
+        void resume(String previous, int line, int page, int height) {
+            _page.append(previous);
+            resume(line, page, height);
+            /* The previous page is only passed through, not re-formed. */
+            _repaged -= 1;
+        }
+
+        /** Add the current page to _pages. */
+        void finishPage() {
+            _pages.add(_page.toString());
+            _page.setLength(0);
+            _repaged += 1;
+        }
+
+        /** Finish the current page, and if the new page begins where one
+         *  of the old pages did, and everything after is unchanged, add
+         *  the remaining old pages and checkpoints and stop paging. */
+        @Override
+        void endPage() {
+            finishPage();
+            int line = lineNumber();
+            if (_old == null || line < _unchanged) {
+                return;
+            }
+            int k = _oldCheckpoints.find(line - _delta);
+            if (k >= 0 && _oldCheckpoints.line(k) == line - _delta
+                && _oldCheckpoints.height(k) == textHeight()) {
+                int page = _oldCheckpoints.page(k);
+                _pages.addAll(_oldPages.subList(page - 1, _oldPages.size()));
+                _checkpoints.append(_oldCheckpoints, k + 1, _delta,
+                                    pageNumber() - page);
+                _converged = true;
+            }
+        }
+
+        @Override
+        void write(char[] buf, int start, int end, boolean formFeed,
+                   boolean newline) {
+            if (_converged) {
+                return;
+            }
+            if (formFeed) {
+                _page.append('\f');
+            }
+            _page.append(buf, start, end - start);
+            if (newline) {
+                _page.append('\n');
+            }
+        }
+
+        @Override
+        void write(String line) {
+            if (!_converged) {
+                _page.append(line);
+            }
+        }
+
+        @Override
+        void write() {
+            write(System.lineSeparator());
+        }
+
+        /** Text of the current page. */
+        private final StringBuilder _page = new StringBuilder();
+    }
+
+    /** The lines most recently paged. */
+    private LineBuffer _lines;
+    /** Text of the pages of _lines. */
+    private ArrayList<String> _pages;
+    /** Where the pages of _lines after the first begin. */
+    private PageCheckpoints _checkpoints;
+    /** While paging, the previous lines, pages and checkpoints, or null if
+     *  there are none. */
+    private LineBuffer _old;
+    /** While paging, the previous pages. */
+    private ArrayList<String> _oldPages;
+    /** While paging, the previous checkpoints. */
+    private PageCheckpoints _oldCheckpoints;
+    /** While paging, the change in the number of lines from _old. */
+    private int _delta;
+    /** While paging, the number of the first of the lines at the end that
+     *  are unchanged from _old. */
+    private int _unchanged;
+    /** True once paging has converged with the previous pages. */
+    private boolean _converged;
+    /** Number of pages formed by the current or last call to paginate. */
+    private int _repaged;
+}
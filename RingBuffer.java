@@ -0,0 +1,109 @@
+package tex61;
+
+import java.util.concurrent.locks.LockSupport;
+
+/** A bounded queue connecting exactly one producer thread to exactly one
+ *  consumer thread.  Items are kept in a circular array indexed by two
+ *  counters, each written by only one of the threads, so that neither
+ *  put nor take needs a lock.  A producer that finds the queue full, or a
+ *  consumer that finds it empty, waits until the other thread makes
+ *  room or supplies an item, which keeps a fast producer from running
+ *  arbitrarily far ahead of a slow consumer.
+ *  @author Austin Gandy
+ */
+class RingBuffer<T> {
+
+    /** An empty RingBuffer holding up to CAPACITY items, which must be a
+     *  power of 2. */
+    RingBuffer(int capacity) {
+        if (capacity <= 0 || (capacity & (capacity - 1)) != 0) {
+            throw new IllegalArgumentException("bad capacity: " + capacity);
+        }
+        _items = new Object[capacity];
+        _mask = capacity - 1;
+    }
+
+    /** Add ITEM to the end of the queue, first waiting for room if it
+     *  is full.  Returns false, without adding ITEM, if the queue has been
+     *  cancelled.  Called only by the producer. */
+    boolean put(T item) {
+        long tail = _tail;
+        if (tail - _head > _mask) {
+            _producer = Thread.currentThread();
+            while (tail - _head > _mask && !_cancelled) {
+                LockSupport.park(this);
+            }
+            _producer = null;
+        }
+        if (_cancelled) {
+            return false;
+        }
+        _items[(int) tail & _mask] = item;
+        _tail = tail + 1;
+        LockSupport.unpark(_consumer);
+        return true;
+    }
+
+    /** Remove and return the item at the front of the queue, first
+     *  waiting for one if it is empty.  Returns null if the queue is
+     *  empty and has been closed.  Called only by the consumer. */
+    @SuppressWarnings("unchecked")
+    T take() {
+        long head = _head;
+        if (head == _tail) {
+            _consumer = Thread.currentThread();
+            while (head == _tail && !_closed) {
+                LockSupport.park(this);
+            }
+            _consumer = null;
+            if (head == _tail) {
+                return null;
+            }
+        }
+        int k = (int) head & _mask;
+        T item = (T) _items[k];
+        _items[k] = null;
+        _head = head + 1;
+        LockSupport.unpark(_producer);
+        return item;
+    }
+
+    /** Indicate that no more items will be put, so that take returns
+     *  null once the queue is empty.  Called only by the producer. */
+    void close() {
+        _closed = true;
+        LockSupport.unpark(_consumer);
+    }
+
+    /** Indicate that no more items will be taken, so that put returns
+     *  false rather than waiting.  Called only by the consumer. */
+    void cancel() {
+        _cancelled = true;
+        LockSupport.unpark(_producer);
+    }
+
+    /** Return true iff I have been cancelled. */
+    boolean cancelled() {
+        return _cancelled;
+    }
+
+    /** The items, at positions _head through _tail-1 (modulo the
+     *  capacity). */
+    private final Object[] _items;
+    /** The capacity minus 1, for reducing counters modulo the
+     *  capacity. */
+    private final int _mask;
+    /** Number of items ever taken.  Written only by the consumer. */
+    private volatile long _head;
+    /** Number of items ever put.  Written only by the producer. */
+    private volatile long _tail;
+    /** The producer, while it waits for room, or null. */
+    private volatile Thread _producer;
+    /** The consumer, while it waits for an item, or null. */
+    private volatile Thread _consumer;
+    /** True iff the producer has closed me. */
+    private volatile boolean _closed;
+    /** True iff the consumer has cancelled me. */
+    private volatile boolean _cancelled;
+
+}
@@ -0,0 +1,120 @@
+package tex61;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.io.Writer;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/** Unit tests of RingBuffer and the pipelined stages built on it.
+ *  @author Austin Gandy
+ */
+public class RingBufferTest {
+
+    /** Return the output of formatting INPUT with the command-line
+     *  options ARGS. */
+    private String format(String input, String... args) {
+        StringWriter output = new StringWriter();
+        PrintWriter writer = new PrintWriter(output);
+        Main.format(new StringReader(input), writer, new Options(args),
+                    null, Diagnostics.failFast());
+        writer.close();
+        return output.toString();
+    }
+
+    /** Checks that items pass between threads in order, through a
+     *  buffer much smaller than their number. */
+    @Test(timeout = 10000)
+    public void testOrder() throws Exception {
+        RingBuffer<Integer> ring = new RingBuffer<Integer>(4);
+        Thread producer = new Thread(() -> {
+            for (int i = 0; i < 100000; i += 1) {
+                assertTrue(ring.put(i));
+            }
+            ring.close();
+        });
+        producer.start();
+        Integer item;
+        int n;
+        for (n = 0; (item = ring.take()) != null; n += 1) {
+            assertEquals(n, (int) item);
+        }
+        assertEquals(100000, n);
+        producer.join();
+    }
+
+    /** Checks that cancelling releases a waiting producer. */
+    @Test(timeout = 10000)
+    public void testCancel() throws Exception {
+        RingBuffer<String> ring = new RingBuffer<String>(2);
+        boolean[] put = new boolean[1];
+        Thread producer = new Thread(() -> {
+            while (ring.put("x")) {
+                put[0] = true;
+            }
+        });
+        producer.start();
+        assertEquals("x", ring.take());
+        ring.cancel();
+        producer.join();
+        assertTrue(put[0]);
+        assertTrue(ring.cancelled());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testBadCapacity() {
+        new RingBuffer<String>(3);
+    }
+
+    /** Checks that pipelined formatting gives the same output as
+     *  ordinary formatting, and reports the same errors. */
+    @Test(timeout = 20000)
+    public void testPipelined() {
+        for (String mode : Corpus.MODES) {
+            String input = new Corpus(61, "long", mode).generate(20000);
+            assertEquals(mode, format(input),
+                         format(input, "--pipeline", "--buffer-size", "100"));
+        }
+        String input = "\\def{x}{a \\endnote{b}}\\x\\x c\n\n\\textwidth{z}";
+        try {
+            format(input, "--pipeline");
+            fail("missing error");
+        } catch (FormatException e) {
+            assertEquals("For input string: \"z\"", e.getMessage());
+        }
+    }
+
+    /** Checks that a failure writing output is reported by the pipe. */
+    @Test(timeout = 10000)
+    public void testOutputFailure() throws Exception {
+        Writer broken = new Writer() {
+            @Override
+            public void write(char[] cbuf, int off, int len)
+                throws IOException {
+                throw new IOException("disk full");
+            }
+
+            @Override
+            public void flush() {
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+        OutputPipe pipe = new OutputPipe(broken, 16);
+        try {
+            for (int i = 0; i < 100; i += 1) {
+                pipe.write("0123456789abcdef");
+            }
+            pipe.close();
+            fail("missing exception");
+        } catch (IOException e) {
+            assertEquals("disk full", e.getMessage());
+        }
+    }
+
+}
@@ -0,0 +1,357 @@
+package tex61;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintWriter;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousCloseException;
+import java.nio.channels.Channels;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/** Formats documents sent over a socket, so that many documents can be
+ *  formatted by one long-running JVM.  Each connection is served by its
+ *  own thread, and each document by its own Controller, InputParser and
+ *  PageAssembler.  Errors in a document are reported to its client and
+ *  do not affect other documents.  At most --threads connections
+ *  (MAX_CONNECTIONS by default) are served at once, and documents
+ *  longer than --max-request bytes are refused, so that the memory a
+ *  server uses is bounded.
+ *
+ *  A client sends any number of requests on a connection, each a header
+ *  line
+ *      FORMAT LENGTH [OPTION VALUE]...
+ *  followed by LENGTH bytes of document.  The OPTIONs may be --charset,
+ *  --buffer-size, --endnote-memory, and --max-errors, as for Main.  The
+ *  server replies with any number of chunks of output, each a line
+ *  "DATA N" followed by N bytes, and then either the line "END", or the
+ *  line "ERROR N" followed by an N-byte UTF-8 message listing the
+ *  diagnostics, one per line, in which case the output already sent is
+ *  incomplete.  Header and status lines are ASCII, and end with
+ *  a newline.  A malformed request, one whose document is too long, or
+ *  a connection made while all threads are busy is sent an ERROR reply,
+ *  and the connection is then closed.
+ *  @author Austin Gandy
+ */
+class Server implements Closeable {
+
+    /** Longest header line accepted. */
+    static final int MAX_HEADER = 1 << 12;
+    /** Default longest document accepted, in bytes. */
+    static final int MAX_DOCUMENT = 1 << 26;
+    /** Default number of connections served at once. */
+    static final int MAX_CONNECTIONS = 64;
+    /** Seconds for which a thread waits for another connection before
+     *  ending. */
+    private static final long IDLE_SECONDS = 60;
+
+    /** Options that may be given in a request header. */
+    private static final String[] REQUEST_OPTIONS = {
+        "--charset", "--buffer-size", "--endnote-memory", "--max-errors"
+    };
+
+    /** A server that formats documents according to OPTIONS (unless a
+     *  request says otherwise), listening on ADDRESS: a port on the
+     *  loopback interface if ADDRESS is a number (0 for any free port),
+     *  and otherwise the path of a Unix-domain socket to create. */
+    Server(Options options, String address) throws IOException {
+        _options = options;
+        if (address.matches("\\d{1,5}")) {
+            _socket = null;
+            _channel = ServerSocketChannel.open();
+            try {
+                _channel.bind(new InetSocketAddress(
+                                  InetAddress.getLoopbackAddress(),
+                                  Integer.parseInt(address)));
+            } catch (IllegalArgumentException e) {
+                _channel.close();
+                throw new IOException("bad port: " + address);
+            }
+        } else {
+            _socket = Path.of(address);
+            _channel = ServerSocketChannel.open(StandardProtocolFamily.UNIX);
+            _channel.bind(UnixDomainSocketAddress.of(_socket));
+        }
+        int threads = options.threads() > 0 ? options.threads()
+            : MAX_CONNECTIONS;
+        _pool = new ThreadPoolExecutor(0, threads, IDLE_SECONDS,
+                                       TimeUnit.SECONDS,
+                                       new SynchronousQueue<Runnable>(),
+                                       Server::newThread);
+    }
+
+    /** Return the port I listen on, or -1 if I use a Unix-domain
+     *  socket. */
+    int port() throws IOException {
+        if (_socket != null) {
+            return -1;
+        }
+        return ((InetSocketAddress) _channel.getLocalAddress()).getPort();
+    }
+
+    /** Accept and serve connections until I am closed.  Errors in
+     *  documents are reported to their clients. */
+    void serve() throws IOException {
+        while (true) {
+            SocketChannel client;
+            try {
+                client = _channel.accept();
+            } catch (AsynchronousCloseException e) {
+                return;
+            }
+            try {
+                _pool.execute(() -> serve(client));
+            } catch (RejectedExecutionException e) {
+                refuse(client);
+            }
+        }
+    }
+
+    /** Stop accepting connections, abandon any being served, and remove
+     *  my socket file, if any. */
+    @Override
+    public void close() throws IOException {
+        _channel.close();
+        _pool.shutdownNow();
+        if (_socket != null) {
+            Files.deleteIfExists(_socket);
+        }
+    }
+
+    /** Return a new daemon thread that runs TASK. */
+    private static Thread newThread(Runnable task) {
+        Thread thread = new Thread(task, "tex61-server");
+        thread.setDaemon(true);
+        return thread;
+    }
+
+    /** Tell CLIENT that all my threads are busy, and close the
+     *  connection. */
+    private static void refuse(SocketChannel client) {
+        try (client) {
+            new Frames(client).error("server busy");
+        } catch (IOException e) {
+            /* The client has gone away: nothing to report it to. */
+        }
+    }
+
+    /** Serve the requests on CLIENT until it closes the connection or
+     *  sends a malformed or overlong request. */
+    private void serve(SocketChannel client) {
+        try (client) {
+            InputStream in =
+                new BufferedInputStream(Channels.newInputStream(client));
+            Frames out = new Frames(client);
+            String header;
+            while ((header = readLine(in)) != null) {
+                String[] fields = header.split(" ");
+                long length = -1;
+                if (fields.length >= 2 && fields[0].equals("FORMAT")
+                    && fields[1].matches("\\d{1,10}")) {
+                    length = Long.parseLong(fields[1]);
+                }
+                if (length < 0) {
+                    out.error("bad request: " + header);
+                    return;
+                } else if (length > _options.maxRequest()) {
+                    out.error(String.format("document too long: %d bytes "
+                                            + "(at most %d)", length,
+                                            _options.maxRequest()));
+                    return;
+                }
+                byte[] document = in.readNBytes((int) length);
+                if (document.length < length) {
+                    return;
+                }
+                format(fields, document, out);
+            }
+        } catch (IOException e) {
+            /* The client has gone away: nothing to report it to. */
+            return;
+        }
+    }
+
+    /** Format DOCUMENT as directed by the request header FIELDS, sending
+     *  the output or error message to OUT. */
+    private void format(String[] fields, byte[] document, Frames out)
+        throws IOException {
+        String message;
+        Diagnostics diagnostics = null;
+        try {
+            Options options = requestOptions(fields);
+            diagnostics = new Diagnostics(options.maxErrors());
+            PrintWriter output =
+                new PrintWriter(new ChannelWriter(out, options.charset(),
+                                                  options.bufferSize()));
+            ChannelReader input =
+                new ChannelReader(Channels.newChannel(
+                                      new ByteArrayInputStream(document)),
+                                  options.charset());
+            try {
+                Main.format(input, output, options, null, diagnostics);
+            } finally {
+                output.close();
+            }
+            if (output.checkError()) {
+                throw new IOException("error writing output");
+            }
+            if (diagnostics.errors() == 0) {
+                out.end();
+                return;
+            }
+            message = null;
+        } catch (FormatException e) {
+            message = e.getMessage() == null ? "error" : e.getMessage();
+        } catch (RuntimeException e) {
+            message = "internal error: " + e;
+        }
+        if (diagnostics != null && diagnostics.errors() > 0) {
+            StringBuilder report = new StringBuilder();
+            for (Diagnostics.Diagnostic d : diagnostics.diagnostics()) {
+                report.append(report.length() == 0 ? "" : "\n").append(d);
+            }
+            message = report.toString();
+        }
+        out.error(message);
+    }
+
+    /** Return the Options given by the request header FIELDS, starting
+     *  with mine.  Reports an error for any option that may not be given
+     *  in a request. */
+    private Options requestOptions(String[] fields) {
+        ArrayList<String> args = new ArrayList<String>();
+        addOption(args, "--charset", _options.charset().name());
+        addOption(args, "--buffer-size",
+                  Integer.toString(_options.bufferSize()));
+        addOption(args, "--endnote-memory",
+                  Integer.toString(_options.endnoteMemory()));
+        addOption(args, "--max-errors",
+                  Integer.toString(_options.maxErrors()));
+        for (int k = 2; k < fields.length; k += 2) {
+            boolean allowed = false;
+            for (String option : REQUEST_OPTIONS) {
+                allowed |= option.equals(fields[k]);
+            }
+            if (!allowed || k + 1 >= fields.length) {
+                FormatException.reportError("bad request option: %s",
+                                            fields[k]);
+            }
+            addOption(args, fields[k], fields[k + 1]);
+        }
+        Options result = new Options(args.toArray(new String[0]));
+        if (result.operands().length > 0) {
+            FormatException.reportError("bad request option: %s",
+                                        result.operands()[0]);
+        }
+        return result;
+    }
+
+    /** Add OPTION with value VALUE to ARGS. */
+    private static void addOption(ArrayList<String> args, String option,
+                                  String value) {
+        args.add(option);
+        args.add(value);
+    }
+
+    /** Return the next line read from IN, without its newline, or null
+     *  at end of input.  Throws an IOException if the line is longer
+     *  than MAX_HEADER or is cut off by the end of input. */
+    private static String readLine(InputStream in) throws IOException {
+        byte[] line = new byte[MAX_HEADER];
+        int n;
+        int c;
+        for (n = 0; (c = in.read()) != '\n'; n += 1) {
+            if (c < 0 && n == 0) {
+                return null;
+            } else if (c < 0 || n == MAX_HEADER) {
+                throw new IOException("bad request header");
+            }
+            line[n] = (byte) c;
+        }
+        return new String(line, 0, n, StandardCharsets.US_ASCII);
+    }
+
+    /** The replies sent to a client.  As a channel, it sends each buffer
+     *  written to it as a DATA chunk. */
+    private static class Frames implements WritableByteChannel {
+
+        /** Frames sent to CLIENT. */
+        Frames(SocketChannel client) {
+            _client = client;
+        }
+
+        @Override
+        public int write(ByteBuffer bytes) throws IOException {
+            int n = bytes.remaining();
+            if (n > 0) {
+                send(ascii("DATA " + n + "\n"));
+                send(bytes);
+            }
+            return n;
+        }
+
+        /** Send the status line "END". */
+        void end() throws IOException {
+            send(ascii("END\n"));
+        }
+
+        /** Send MESSAGE as an ERROR reply. */
+        void error(String message) throws IOException {
+            byte[] text = message.getBytes(StandardCharsets.UTF_8);
+            send(ascii("ERROR " + text.length + "\n"));
+            send(ByteBuffer.wrap(text));
+        }
+
+        @Override
+        public boolean isOpen() {
+            return _client.isOpen();
+        }
+
+        /** Does nothing: the connection outlives each reply. */
+        @Override
+        public void close() {
+        }
+
+        /** Return the ASCII encoding of TEXT. */
+        private static ByteBuffer ascii(String text) {
+            return ByteBuffer.wrap(text.getBytes(StandardCharsets.US_ASCII));
+        }
+
+        /** Write all of BYTES to the client. */
+        private void send(ByteBuffer bytes) throws IOException {
+            while (bytes.hasRemaining()) {
+                _client.write(bytes);
+            }
+        }
+
+        /** The connection to the client. */
+        private final SocketChannel _client;
+    }
+
+    /** Default options for formatting. */
+    private final Options _options;
+    /** Path of my Unix-domain socket, or null if I use TCP. */
+    private final Path _socket;
+    /** Channel on which I accept connections. */
+    private final ServerSocketChannel _channel;
+    /** Threads serving connections. */
+    private final ExecutorService _pool;
+
+}
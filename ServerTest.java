@@ -0,0 +1,213 @@
+package tex61;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/** Unit tests of Server.
+ *  @author Austin Gandy
+ */
+public class ServerTest {
+
+    /** A document with an error in it. */
+    private static final String BAD = "Some text \\nosuchcommand more.\n";
+
+    /** Return the output of formatting INPUT directly. */
+    private String format(String input) {
+        StringWriter output = new StringWriter();
+        PrintWriter writer = new PrintWriter(output);
+        new InputParser(new StringReader(input),
+                        new Controller(writer)).process();
+        writer.close();
+        return output.toString();
+    }
+
+    /** Send a request for DOCUMENT with options OPTIONS on CLIENT and
+     *  return the reply: the output, or "ERROR: " and the error
+     *  message. */
+    private String request(SocketChannel client, String options,
+                           String document) throws IOException {
+        byte[] body = document.getBytes(StandardCharsets.UTF_8);
+        String header = "FORMAT " + body.length + options + "\n";
+        client.write(ByteBuffer.wrap(header
+                                     .getBytes(StandardCharsets.US_ASCII)));
+        client.write(ByteBuffer.wrap(body));
+        return reply(client);
+    }
+
+    /** Return the next reply on CLIENT, as for request. */
+    private String reply(SocketChannel client) throws IOException {
+        DataInputStream in =
+            new DataInputStream(Channels.newInputStream(client));
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        while (true) {
+            String[] status = readLine(in).split(" ");
+            if (status[0].equals("END")) {
+                return output.toString(StandardCharsets.UTF_8);
+            }
+            byte[] chunk = new byte[Integer.parseInt(status[1])];
+            in.readFully(chunk);
+            if (status[0].equals("ERROR")) {
+                return "ERROR: " + new String(chunk, StandardCharsets.UTF_8);
+            }
+            assertEquals("DATA", status[0]);
+            output.write(chunk);
+        }
+    }
+
+    /** Return the next line from IN, without its newline. */
+    private String readLine(DataInputStream in) throws IOException {
+        StringBuilder line = new StringBuilder();
+        for (int c = in.read(); c != '\n'; c = in.read()) {
+            assertTrue(c >= 0);
+            line.append((char) c);
+        }
+        return line.toString();
+    }
+
+    /** Return a new connection to ADDRESS. */
+    private SocketChannel connect(SocketAddress address) throws IOException {
+        SocketChannel client =
+            address instanceof UnixDomainSocketAddress
+            ? SocketChannel.open(StandardProtocolFamily.UNIX)
+            : SocketChannel.open();
+        client.connect(address);
+        return client;
+    }
+
+    /** Start SERVER serving on another thread. */
+    private void start(Server server) {
+        Thread thread = new Thread(() -> {
+            try {
+                server.serve();
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+        });
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /** Checks that errors are reported to the client, which can go on
+     *  using its connection, and that documents may be sent
+     *  concurrently. */
+    @Test
+    public void testTcp() throws Exception {
+        String document =
+            new Corpus(61, "mixed", "justify").generate(3000);
+        String expected = format(document);
+        try (Server server = new Server(new Options(new String[0]), "0")) {
+            start(server);
+            SocketAddress address =
+                new InetSocketAddress(InetAddress.getLoopbackAddress(),
+                                      server.port());
+            try (SocketChannel client = connect(address)) {
+                assertEquals("ERROR: 1:11: error: unknown command: nosuchcommand",
+                             request(client, "", BAD));
+                assertEquals(expected, request(client, "", document));
+                assertEquals(expected,
+                             request(client, " --buffer-size 0",
+                                     document));
+                assertEquals("ERROR: bad request option: --threads",
+                             request(client, " --threads 2", ""));
+            }
+            ExecutorService pool = Executors.newFixedThreadPool(4);
+            List<Future<String>> replies = new ArrayList<Future<String>>();
+            for (int i = 0; i < 8; i += 1) {
+                replies.add(pool.submit(() -> {
+                    try (SocketChannel client = connect(address)) {
+                        return request(client, "", document);
+                    }
+                }));
+            }
+            for (Future<String> reply : replies) {
+                assertEquals(expected, reply.get());
+            }
+            pool.shutdown();
+        }
+    }
+
+    /** Checks that the server's --max-errors applies to requests that do
+     *  not give their own. */
+    @Test
+    public void testMaxErrors() throws Exception {
+        String document = BAD + "\\alsonosuchcommand\n";
+        try (Server server = new Server(new Options(new String[] {
+                    "--max-errors", "0" }), "0")) {
+            start(server);
+            SocketAddress address =
+                new InetSocketAddress(InetAddress.getLoopbackAddress(),
+                                      server.port());
+            try (SocketChannel client = connect(address)) {
+                String reply = request(client, "", document);
+                assertTrue(reply, reply.contains("nosuchcommand"));
+                assertTrue(reply, reply.contains("alsonosuchcommand"));
+                reply = request(client, " --max-errors 1", document);
+                assertFalse(reply, reply.contains("alsonosuchcommand"));
+            }
+        }
+    }
+
+    /** Checks that a document longer than --max-request, and a
+     *  connection beyond the --threads being served, are refused. */
+    @Test
+    public void testLimits() throws Exception {
+        try (Server server = new Server(new Options(new String[] {
+                    "--max-request", "10", "--threads", "1" }), "0")) {
+            start(server);
+            SocketAddress address =
+                new InetSocketAddress(InetAddress.getLoopbackAddress(),
+                                      server.port());
+            try (SocketChannel client = connect(address)) {
+                assertEquals(format("short\n"),
+                             request(client, "", "short\n"));
+                try (SocketChannel other = connect(address)) {
+                    assertEquals("ERROR: server busy", reply(other));
+                }
+                client.write(ByteBuffer.wrap(
+                                 "FORMAT 2147483639\n"
+                                 .getBytes(StandardCharsets.US_ASCII)));
+                assertEquals("ERROR: document too long: 2147483639 bytes "
+                             + "(at most 10)", reply(client));
+            }
+        }
+    }
+
+    @Test
+    public void testUnixSocket() throws Exception {
+        File socket = File.createTempFile("tex61", ".sock");
+        socket.delete();
+        try (Server server = new Server(new Options(new String[0]),
+                                        socket.getPath())) {
+            start(server);
+            try (SocketChannel client =
+                 connect(UnixDomainSocketAddress.of(socket.toPath()))) {
+                assertEquals(format("caf\u00e9\n"),
+                             request(client, "", "caf\u00e9\n"));
+            }
+        }
+        assertFalse(socket.exists());
+    }
+
+}
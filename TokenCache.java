@@ -0,0 +1,644 @@
+package tex61;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.zip.CRC32C;
+import java.util.zip.CheckedOutputStream;
+
+/** The tokens of one source file, cached in a ".tex61tok" file so that
+ *  formatting the file again (say, at another \textwidth) need not read
+ *  and tokenize it again.  The first time, lexer() returns a Lexer that
+ *  scans the source and records its tokens as they are read; once it
+ *  reaches the end of the source, the cache file is put in place.  Later,
+ *  as long as the source's length, modification time and checksum are
+ *  unchanged, lexer() returns a Lexer that replays the recorded tokens.
+ *
+ *  A cache file holds a header (MAGIC, VERSION, the charset, and the
+ *  source's length, modification time and CRC-32C), a body of one
+ *  record per token or command argument, and a trailer giving the
+ *  length and CRC-32C of the body as a long and an int.  All numbers in
+ *  the header and body are variable-length integers.  Each record starts
+ *  with its kind.  Tokens continue with the number of lines since the
+ *  previous token and their column, relative to the previous token's if
+ *  on the same line.  Records with text continue with an index into a
+ *  table of the distinct texts seen so far; an index equal to the size
+ *  of the table adds a new text, given by its length and its characters.
+ *  Small numeric arguments, such as that of \textwidth, are given inline
+ *  by their value instead.  A cache file whose body does not match its
+ *  trailer is deleted and recorded again.
+ *  @author Austin Gandy
+ */
+class TokenCache implements Closeable {
+
+    /** First bytes of every cache file. */
+    static final byte[] MAGIC =
+        "TEX61TOK".getBytes(StandardCharsets.US_ASCII);
+    /** Version of the format of cache files. */
+    static final int VERSION = 2;
+    /** Suffix of the names of cache files. */
+    static final String SUFFIX = ".tex61tok";
+
+    /** Kinds of the records of command arguments, following the token
+     *  kinds of Lexer: a well-formed argument, a malformed or missing
+     *  one, and a well-formed argument that is a number of at most
+     *  MAX_DIGITS digits with no leading zeros, given by its value. */
+    private static final int
+        ARGUMENT = Lexer.ERROR_TOKEN + 1,
+        BAD_ARGUMENT = ARGUMENT + 1,
+        NUMBER = BAD_ARGUMENT + 1;
+
+    /** Longest numeric argument given by its value. */
+    private static final int MAX_DIGITS = 9;
+
+    /** Size in bytes of the trailer of a cache file. */
+    private static final int TRAILER = Long.BYTES + Integer.BYTES;
+
+    /** Size of the buffer used for writing cache files. */
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    /** The cache, in directory DIRECTORY, of the tokens of the file
+     *  SOURCE, decoded according to CHARSET. */
+    TokenCache(Path directory, Path source, Charset charset) {
+        _source = source;
+        _charset = charset;
+        Path absolute = source.toAbsolutePath().normalize();
+        _file = directory.resolve(String.format("%s-%08x%s",
+                                                source.getFileName(),
+                                                absolute.hashCode(),
+                                                SUFFIX));
+    }
+
+    /** Return the cache file. */
+    Path file() {
+        return _file;
+    }
+
+    /** Return a Lexer that replays the cached tokens, if they are still
+     *  valid, or else one that reads the source and records its tokens,
+     *  or just reads it if the cache file cannot be created.  May be
+     *  called only once. */
+    Lexer lexer() throws IOException {
+        byte[] header = header();
+        byte[] cached = read();
+        if (cached != null && cached.length >= header.length
+            && Arrays.equals(cached, 0, header.length,
+                             header, 0, header.length)) {
+            if (intact(cached, header.length)) {
+                return new Replayer(cached, header.length,
+                                    cached.length - TRAILER);
+            }
+            discard();
+        }
+        _input = ChannelReader.open(_source.toString(), _charset);
+        if (!record(header)) {
+            return new Lexer(_input);
+        }
+        return new Recorder(new Lexer(_input));
+    }
+
+    /** Close the source, and discard any cache file whose recording was
+     *  not finished. */
+    @Override
+    public void close() throws IOException {
+        if (_input != null) {
+            _input.close();
+        }
+        if (_output != null) {
+            _output.close();
+            _output = null;
+        }
+        if (_temp != null) {
+            Files.deleteIfExists(_temp);
+        }
+    }
+
+    /** Return the header that a valid cache file for the source's
+     *  current contents starts with. */
+    private byte[] header() throws IOException {
+        ByteArrayOutputStream header = new ByteArrayOutputStream();
+        header.write(MAGIC);
+        writeInt(header, VERSION);
+        byte[] charset = _charset.name().getBytes(StandardCharsets.US_ASCII);
+        writeInt(header, charset.length);
+        header.write(charset);
+        CRC32C crc = new CRC32C();
+        long length;
+        try (FileChannel source = FileChannel.open(_source)) {
+            length = source.size();
+            for (long pos = 0; pos < length; pos += ChannelReader.MAP_SIZE) {
+                MappedByteBuffer bytes =
+                    source.map(FileChannel.MapMode.READ_ONLY, pos,
+                               Math.min(ChannelReader.MAP_SIZE,
+                                        length - pos));
+                crc.update(bytes);
+            }
+        }
+        writeLong(header, length);
+        writeLong(header, Files.getLastModifiedTime(_source).toMillis());
+        writeLong(header, crc.getValue());
+        return header.toByteArray();
+    }
+
+    /** Return the contents of the cache file, or null if it cannot be
+     *  read. */
+    private byte[] read() {
+        try {
+            return Files.readAllBytes(_file);
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /** Start recording a cache file that begins with HEADER, returning
+     *  true iff it could be created.  The cache is only an aid to speed,
+     *  so failing to create it is not an error. */
+    private boolean record(byte[] header) {
+        OutputStream file = null;
+        try {
+            _temp = Files.createTempFile(_file.getParent(), "tex61", ".tmp");
+            file = new BufferedOutputStream(Files.newOutputStream(_temp),
+                                            BUFFER_SIZE);
+            file.write(header);
+            _output = new Body(file);
+            return true;
+        } catch (IOException e) {
+            try {
+                if (file != null) {
+                    file.close();
+                }
+                if (_temp != null) {
+                    Files.deleteIfExists(_temp);
+                }
+            } catch (IOException ignored) {
+                /* Nothing more to do. */
+            }
+            _temp = null;
+            return false;
+        }
+    }
+
+    /** Return true iff the body of the cache file DATA, which starts at
+     *  position START, has the length and CRC-32C given by its trailer. */
+    private static boolean intact(byte[] data, int start) {
+        if (data.length - start < TRAILER) {
+            return false;
+        }
+        int end = data.length - TRAILER;
+        ByteBuffer trailer = ByteBuffer.wrap(data, end, TRAILER);
+        if (trailer.getLong() != end - start) {
+            return false;
+        }
+        CRC32C crc = new CRC32C();
+        crc.update(data, start, end - start);
+        return trailer.getInt() == (int) crc.getValue();
+    }
+
+    /** Delete the cache file, which is damaged.  It is recorded again, so
+     *  failing to delete it is not an error. */
+    private void discard() {
+        try {
+            Files.deleteIfExists(_file);
+        } catch (IOException e) {
+            /* Replaced when the new recording is put in place. */
+        }
+    }
+
+    /** Record that the end of the source has been reached, and put the
+     *  recorded cache file in place, ending it with its trailer.  The
+     *  cache is only an aid to speed, so failing to write it is not an
+     *  error. */
+    private void finish() {
+        try {
+            ByteBuffer trailer = ByteBuffer.allocate(TRAILER);
+            trailer.putLong(_output.length());
+            trailer.putInt((int) _output.getChecksum().getValue());
+            _output.write(trailer.array());
+            _output.close();
+            _output = null;
+            try {
+                Files.move(_temp, _file, StandardCopyOption.REPLACE_EXISTING,
+                           StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(_temp, _file, StandardCopyOption.REPLACE_EXISTING);
+            }
+            _temp = null;
+        } catch (IOException e) {
+            _output = null;
+        }
+    }
+
+    /** Write VAL, which must be non-negative, to OUT as a variable-length
+     *  integer. */
+    private static void writeLong(OutputStream out, long val)
+        throws IOException {
+        while (val >= 0x80) {
+            out.write((int) (val & 0x7f) | 0x80);
+            val >>>= 7;
+        }
+        out.write((int) val);
+    }
+
+    /** Write VAL, which must be non-negative, to OUT as a variable-length
+     *  integer. */
+    private static void writeInt(OutputStream out, int val)
+        throws IOException {
+        writeLong(out, val);
+    }
+
+    /** The stream to which the body of a cache file is written, which
+     *  keeps its length and CRC-32C. */
+    private static class Body extends CheckedOutputStream {
+
+        /** A Body written to OUT. */
+        Body(OutputStream out) {
+            super(out, new CRC32C());
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            super.write(b);
+            _length += 1;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            super.write(b, off, len);
+            _length += len;
+        }
+
+        /** Return the number of bytes written to me. */
+        long length() {
+            return _length;
+        }
+
+        /** Number of bytes written. */
+        private long _length;
+    }
+
+    /** A Lexer that scans its input with another Lexer, and records the
+     *  tokens and arguments it returns in the cache file. */
+    private class Recorder extends Lexer {
+
+        /** A Recorder of the tokens of LEXER. */
+        Recorder(Lexer lexer) {
+            super();
+            _lexer = lexer;
+            _texts = new HashMap<String, Integer>();
+        }
+
+        @Override
+        void reset(char[] buf, int start, int end) {
+            throw new IllegalStateException("lexer reads from a Reader");
+        }
+
+        @Override
+        int next() {
+            int kind = _lexer.next();
+            if (_output == null) {
+                return kind;
+            }
+            try {
+                writeInt(_output, kind);
+                if (kind == EOF_TOKEN) {
+                    finish();
+                    return kind;
+                }
+                int line = _lexer.line(), column = _lexer.column();
+                writeInt(_output, line - _line);
+                writeInt(_output, line == _line ? column - _column : column);
+                _line = line;
+                _column = column;
+                switch (kind) {
+                case BLANK_TOKEN: case EOL_TOKEN: case EOP_TOKEN:
+                    break;
+                default:
+                    writeText();
+                }
+            } catch (IOException e) {
+                abandon();
+            }
+            return kind;
+        }
+
+        @Override
+        boolean readArgument() {
+            return record(_lexer.readArgument());
+        }
+
+        @Override
+        boolean readNextArgument() {
+            return record(_lexer.readNextArgument());
+        }
+
+        @Override
+        int line() {
+            return _lexer.line();
+        }
+
+        @Override
+        int column() {
+            return _lexer.column();
+        }
+
+        @Override
+        String text() {
+            return _lexer.text();
+        }
+
+        @Override
+        char[] buffer() {
+            return _lexer.buffer();
+        }
+
+        @Override
+        int start() {
+            return _lexer.start();
+        }
+
+        @Override
+        int end() {
+            return _lexer.end();
+        }
+
+        /** Record an argument that was well formed iff OK.  Returns
+         *  OK. */
+        private boolean record(boolean ok) {
+            if (_output == null) {
+                return ok;
+            }
+            try {
+                if (!ok) {
+                    writeInt(_output, BAD_ARGUMENT);
+                } else if (isNumber()) {
+                    writeInt(_output, NUMBER);
+                    writeInt(_output, Integer.parseInt(_lexer.text()));
+                } else {
+                    writeInt(_output, ARGUMENT);
+                    writeText();
+                }
+            } catch (IOException e) {
+                abandon();
+            }
+            return ok;
+        }
+
+        /** Return true iff the text last scanned is a number that a
+         *  NUMBER record reproduces exactly. */
+        private boolean isNumber() {
+            char[] buf = _lexer.buffer();
+            int start = _lexer.start(), end = _lexer.end();
+            if (end == start || end - start > MAX_DIGITS
+                || (buf[start] == '0' && end - start > 1)) {
+                return false;
+            }
+            for (int k = start; k < end; k += 1) {
+                if (buf[k] < '0' || buf[k] > '9') {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /** Write the text last scanned as an index into the table of
+         *  texts, adding it to the table if it is new. */
+        private void writeText() throws IOException {
+            String text = _lexer.text();
+            Integer index = _texts.get(text);
+            if (index != null) {
+                writeInt(_output, index);
+                return;
+            }
+            writeInt(_output, _texts.size());
+            _texts.put(text, _texts.size());
+            writeInt(_output, text.length());
+            for (int k = 0; k < text.length(); k += 1) {
+                writeInt(_output, text.charAt(k));
+            }
+        }
+
+        /** Stop recording after a failure to write the cache file. */
+        private void abandon() {
+            try {
+                _output.close();
+            } catch (IOException e) {
+                /* Already failed: the cache file is discarded anyway. */
+            }
+            _output = null;
+        }
+
+        /** The Lexer whose tokens I record. */
+        private final Lexer _lexer;
+        /** Indices of the texts recorded so far. */
+        private final HashMap<String, Integer> _texts;
+        /** Line and column of the last token recorded. */
+        private int _line = 1, _column = 1;
+    }
+
+    /** A Lexer that replays the tokens recorded in a cache file. */
+    private static class Replayer extends Lexer {
+
+        /** A Replayer of the records in DATA from position START to
+         *  LIMIT. */
+        Replayer(byte[] data, int start, int limit) {
+            super();
+            _data = data;
+            _pos = start;
+            _limit = limit;
+            _line = _column = 1;
+            _chars = new char[1 << 12];
+            _starts = new int[1 << 8];
+        }
+
+        @Override
+        void reset(char[] buf, int start, int end) {
+            throw new IllegalStateException("lexer replays a cache file");
+        }
+
+        @Override
+        int next() {
+            if (_done) {
+                return EOF_TOKEN;
+            }
+            int kind = readInt();
+            if (kind == EOF_TOKEN) {
+                _done = true;
+                return kind;
+            } else if (kind > Lexer.ERROR_TOKEN) {
+                throw corrupt();
+            }
+            int lines = readInt();
+            _line += lines;
+            _column = lines == 0 ? _column + readInt() : readInt();
+            switch (kind) {
+            case BLANK_TOKEN: case EOL_TOKEN: case EOP_TOKEN:
+                break;
+            default:
+                readText();
+            }
+            return kind;
+        }
+
+        @Override
+        boolean readArgument() {
+            if (_done || _pos >= _limit) {
+                return false;
+            }
+            int pos = _pos;
+            int kind = readInt();
+            if (kind == ARGUMENT) {
+                readText();
+                return true;
+            } else if (kind == NUMBER) {
+                String value = Integer.toString(readInt());
+                _buf = _number;
+                _start = 0;
+                _end = value.length();
+                value.getChars(0, _end, _number, 0);
+                return true;
+            } else if (kind == BAD_ARGUMENT) {
+                return false;
+            }
+            _pos = pos;
+            return false;
+        }
+
+        @Override
+        boolean readNextArgument() {
+            return readArgument();
+        }
+
+        @Override
+        int line() {
+            return _line;
+        }
+
+        @Override
+        int column() {
+            return _column;
+        }
+
+        @Override
+        String text() {
+            return new String(_buf, _start, _end - _start);
+        }
+
+        @Override
+        char[] buffer() {
+            return _buf;
+        }
+
+        @Override
+        int start() {
+            return _start;
+        }
+
+        @Override
+        int end() {
+            return _end;
+        }
+
+        /** Read a reference to the table of texts, adding a new text if it
+         *  is one, and make the text referred to the current one. */
+        private void readText() {
+            int index = readInt();
+            if (index > _size) {
+                throw corrupt();
+            }
+            if (index == _size) {
+                int len = readInt();
+                int start = _starts[_size];
+                if (start + len > _chars.length) {
+                    _chars = Arrays.copyOf(_chars,
+                                           Math.max(2 * _chars.length,
+                                                    start + len));
+                }
+                for (int k = 0; k < len; k += 1) {
+                    _chars[start + k] = (char) readInt();
+                }
+                if (_size + 2 > _starts.length) {
+                    _starts = Arrays.copyOf(_starts, 2 * _starts.length);
+                }
+                _size += 1;
+                _starts[_size] = start + len;
+            }
+            _buf = _chars;
+            _start = _starts[index];
+            _end = _starts[index + 1];
+        }
+
+        /** Read an integer written by writeInt. */
+        private int readInt() {
+            int result = 0;
+            for (int shift = 0;; shift += 7) {
+                if (_pos >= _limit || shift > 28) {
+                    throw corrupt();
+                }
+                int b = _data[_pos];
+                _pos += 1;
+                result |= (b & 0x7f) << shift;
+                if (b >= 0) {
+                    return result;
+                }
+            }
+        }
+
+        /** Return an exception reporting that the cache file is
+         *  damaged. */
+        private static FormatException corrupt() {
+            return FormatException.fatal("token cache file is damaged");
+        }
+
+        /** The cache file's contents. */
+        private final byte[] _data;
+        /** Position in _data of the next record. */
+        private int _pos;
+        /** Position in _data of the end of the records. */
+        private final int _limit;
+        /** True iff the EOF_TOKEN record has been read. */
+        private boolean _done;
+        /** Line and column of the last token. */
+        private int _line, _column;
+        /** The characters of the table of texts. */
+        private char[] _chars;
+        /** Text i of the table is _chars[_starts[i] .. _starts[i+1]-1]. */
+        private int[] _starts;
+        /** Number of texts in the table. */
+        private int _size;
+        /** Holds the text of the last NUMBER argument. */
+        private final char[] _number = new char[MAX_DIGITS + 1];
+        /** Buffer holding the text of the last token or argument. */
+        private char[] _buf;
+        /** Bounds of that text in _buf. */
+        private int _start, _end;
+    }
+
+    /** The source file. */
+    private final Path _source;
+    /** Its character set. */
+    private final Charset _charset;
+    /** The cache file. */
+    private final Path _file;
+    /** The source, while it is being read, or null. */
+    private Reader _input;
+    /** The body of the file being recorded, while recording, or null. */
+    private Body _output;
+    /** The name of the file being recorded, until it is put in place or
+     *  discarded. */
+    private Path _temp;
+
+}
@@ -0,0 +1,121 @@
+package tex61;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.Arrays;
+import java.util.stream.Stream;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/** Unit tests of TokenCache.
+ *  @author Austin Gandy
+ */
+public class TokenCacheTest {
+
+    /** Return the output of formatting the tokens of SOURCE, taken from
+     *  or recorded in DIRECTORY, followed by the diagnostics reported. */
+    private String format(Path directory, Path source) throws IOException {
+        StringWriter output = new StringWriter();
+        PrintWriter writer = new PrintWriter(output);
+        Diagnostics diagnostics = Diagnostics.collect();
+        try (TokenCache cache = new TokenCache(directory, source,
+                                               StandardCharsets.UTF_8)) {
+            Main.format(cache.lexer(), writer, new Options(new String[0]),
+                        null, diagnostics);
+        }
+        writer.close();
+        return output + diagnostics.diagnostics().toString();
+    }
+
+    /** Checks that replayed tokens give the same output and diagnostics
+     *  as the source, and that changing the source invalidates them. */
+    @Test
+    public void testReplay() throws IOException {
+        Path directory = Files.createTempDirectory("tex61");
+        Path source = directory.resolve("doc.txt");
+        String text = new Corpus(61, "long", "justify").generate(5000)
+            + "\\textwidth{072}\\textwidth{72}\\indent{x}\n\n"
+            + "\\def{m}{a\\endnote{b}}\\m\\m{c} \\\\ \\{ \\ }\n\\";
+        Files.writeString(source, text);
+        String expected = format(directory, source);
+        Path file = new TokenCache(directory, source,
+                                   StandardCharsets.UTF_8).file();
+        assertTrue(Files.exists(file));
+        assertTrue(file.toString().endsWith(TokenCache.SUFFIX));
+        Files.setLastModifiedTime(file, FileTime.fromMillis(0));
+        assertEquals(expected, format(directory, source));
+        assertEquals(0, Files.getLastModifiedTime(file).toMillis());
+
+        Files.writeString(source, text + " more");
+        String changed = format(directory, source);
+        assertNotEquals(expected, changed);
+        assertNotEquals(0, Files.getLastModifiedTime(file).toMillis());
+        assertEquals(changed, format(directory, source));
+
+        Files.delete(file);
+        Files.delete(source);
+        Files.delete(directory);
+    }
+
+    /** Checks that a cache directory that does not exist or cannot be
+     *  written leaves the source to be read without being recorded. */
+    @Test
+    public void testUnwritable() throws IOException {
+        Path directory = Files.createTempDirectory("tex61");
+        Path source = directory.resolve("doc.txt");
+        Files.writeString(source, "Some words.\n\n\\textwidth{20}More.\n");
+        String expected = format(directory, source);
+        Files.delete(new TokenCache(directory, source,
+                                    StandardCharsets.UTF_8).file());
+
+        Path missing = directory.resolve("missing");
+        assertEquals(expected, format(missing, source));
+        assertFalse(Files.exists(missing));
+
+        Path file = directory.resolve("file");
+        Files.writeString(file, "");
+        assertEquals(expected, format(file, source));
+        try (Stream<Path> files = Files.list(directory)) {
+            assertEquals(2, files.count());
+        }
+
+        Files.delete(file);
+        Files.delete(source);
+        Files.delete(directory);
+    }
+
+    /** Checks that a cache file that is cut short or altered is deleted
+     *  and recorded again, giving the same output as the source.  The
+     *  byte altered is in the body, before the 12-byte trailer. */
+    @Test
+    public void testDamaged() throws IOException {
+        Path directory = Files.createTempDirectory("tex61");
+        Path source = directory.resolve("doc.txt");
+        Files.writeString(source, "Some words.\n\n\\textwidth{20}More.\n");
+        String expected = format(directory, source);
+        Path file = new TokenCache(directory, source,
+                                   StandardCharsets.UTF_8).file();
+        byte[] data = Files.readAllBytes(file);
+        Files.write(file, Arrays.copyOf(data, data.length - 3));
+        assertEquals(expected, format(directory, source));
+        assertArrayEquals(data, Files.readAllBytes(file));
+
+        byte[] altered = data.clone();
+        altered[data.length - 16] ^= 1;
+        Files.write(file, altered);
+        assertEquals(expected, format(directory, source));
+        assertArrayEquals(data, Files.readAllBytes(file));
+        assertEquals(expected, format(directory, source));
+
+        Files.delete(file);
+        Files.delete(source);
+        Files.delete(directory);
+    }
+
+}
@@ -10,7 +10,13 @@ public class UnitTest {
     /** Run the JUnit tests in the tex61 package. */
     public static void main(String[] ignored) {
         textui.runClasses(tex61.PageAssemblerTest.class,
-                tex61.LineAssemblerTest.class, tex61.InputParserTest.class);
+                tex61.LineAssemblerTest.class, tex61.InputParserTest.class,
+                tex61.LexerTest.class, tex61.ChannelReaderTest.class,
+                tex61.ReformatterTest.class, tex61.EndnoteStoreTest.class,
+                tex61.CommandTableTest.class, tex61.MacroTableTest.class,
+                tex61.MetricsTest.class, tex61.ServerTest.class,
+                tex61.DiagnosticsTest.class, tex61.RingBufferTest.class,
+                tex61.TokenCacheTest.class, tex61.PageIndexTest.class);
     }
 
 }